@@ -0,0 +1,187 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.mozilla.android.sync.CryptoExecutors;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.metrics.LatencyHistogram;
+
+/*
+ * Load test for the asynchronous API: thousands of records in flight
+ * at once, each one "fetched" (a fixed delay standing in for the
+ * network) and then decrypted. Reports per-record latency from submit
+ * to decrypted result, so the tail shows how long records queue.
+ * 
+ *   blocking        fetch and decryptWBO on a fixed pool of platform
+ *                   threads, each thread held for the whole fetch
+ *   async-bounded   fetch completes a future without holding a thread,
+ *                   decryptWBOAsync on the bounded CryptoExecutors pool
+ *   async-virtual   as above on virtual threads, each starting with cold
+ *                   per-thread caches (JDK 21+ only)
+ * 
+ * Not a JMH benchmark, the interesting number is the latency
+ * distribution of one large burst rather than steady-state throughput.
+ * 
+ * Usage: java -cp benchmarks/target/benchmarks.jar \
+ *            org.mozilla.android.sync.bench.AsyncLoadTest [records] [fetch millis] [blocking threads]
+ */
+public class AsyncLoadTest {
+    
+    private static final String USERNAME =     "b6evr62dptbxz7fvebek7btljyu322wp";
+    private static final String SYNC_KEY =     "basuxv2426eqj7frhvpcwkavdi";
+    private static final int ROUNDS =          3;
+    
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        long fetchMillis = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        int blockingThreads = args.length > 2 ? Integer.parseInt(args[2]) : 
+                                                Runtime.getRuntime().availableProcessors() * 8;
+        
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        String[] wbos = new String[records];
+        for (int i = 0; i < records; i++) {
+            JSONObject wbo = new JSONObject();
+            Utils.asMap(wbo).put("id", "record" + i);
+            Utils.asMap(wbo).put("payload", cryptographer.encryptWBO("{\"id\":\"record" + i + 
+                    "\",\"histUri\":\"https://www.mozilla.org/" + i + "\",\"title\":\"Mozilla\"}").getJson());
+            wbos[i] = wbo.toString();
+        }
+        
+        System.out.println(records + " records, " + fetchMillis + " ms fetch, " + 
+                           Runtime.getRuntime().availableProcessors() + " cpus");
+        
+        ExecutorService blocking = CryptoExecutors.newBoundedExecutor(blockingThreads);
+        ExecutorService bounded = CryptoExecutors.newBoundedExecutor(Runtime.getRuntime().availableProcessors());
+        ExecutorService virtual = CryptoExecutors.newVirtualThreadExecutor();
+        try {
+            // The last round of each is reported, earlier ones warm up
+            for (int round = 1; round <= ROUNDS; round++) {
+                boolean report = round == ROUNDS;
+                run("blocking(" + blockingThreads + ")", runBlocking(cryptographer, wbos, fetchMillis, blocking), report);
+                cryptographer.setAsyncExecutor(bounded);
+                run("async-bounded", runAsync(cryptographer, wbos, fetchMillis), report);
+                if (virtual != null) {
+                    cryptographer.setAsyncExecutor(virtual);
+                    run("async-virtual", runAsync(cryptographer, wbos, fetchMillis), report);
+                } else if (report) {
+                    System.out.println("async-virtual: virtual threads need JDK 21+");
+                }
+            }
+        } finally {
+            blocking.shutdown();
+            bounded.shutdown();
+            if (virtual != null) {
+                virtual.shutdown();
+            }
+        }
+    }
+    
+    private interface Load {
+        List<CompletableFuture<CryptoStatusBundle>> submit(LatencyHistogram latencies);
+    }
+    
+    private static void run(String name, Load load, boolean report) {
+        LatencyHistogram latencies = new LatencyHistogram();
+        long start = System.nanoTime();
+        List<CompletableFuture<CryptoStatusBundle>> results = load.submit(latencies);
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).join();
+        long elapsed = System.nanoTime() - start;
+        
+        if (report) {
+            System.out.printf("%-16s %8.0f records/s  p50 %7.1f ms  p99 %7.1f ms  p99.9 %7.1f ms  max %7.1f ms%n", 
+                              name + ":", results.size() * 1e9 / elapsed, millis(latencies.getP50()), 
+                              millis(latencies.getP99()), millis(latencies.getP999()), millis(latencies.getMax()));
+        }
+    }
+    
+    /*
+     * Today's pattern: a thread per record for the fetch and the decrypt
+     */
+    private static Load runBlocking(final SyncCryptographer cryptographer, final String[] wbos, 
+                                    final long fetchMillis, final Executor executor) {
+        return latencies -> {
+            List<CompletableFuture<CryptoStatusBundle>> results = new ArrayList<CompletableFuture<CryptoStatusBundle>>();
+            for (String wbo : wbos) {
+                final long submitted = System.nanoTime();
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Thread.sleep(fetchMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    CryptoStatusBundle result = cryptographer.decryptWBO(wbo);
+                    latencies.record(System.nanoTime() - submitted);
+                    return result;
+                }, executor));
+            }
+            return results;
+        };
+    }
+    
+    /*
+     * Fetch without a thread, then decrypt on the async executor
+     */
+    private static Load runAsync(final SyncCryptographer cryptographer, final String[] wbos, final long fetchMillis) {
+        final Executor fetched = CompletableFuture.delayedExecutor(fetchMillis, TimeUnit.MILLISECONDS, Runnable::run);
+        return latencies -> {
+            List<CompletableFuture<CryptoStatusBundle>> results = new ArrayList<CompletableFuture<CryptoStatusBundle>>();
+            for (String wbo : wbos) {
+                final long submitted = System.nanoTime();
+                results.add(CompletableFuture.supplyAsync(() -> wbo, fetched)
+                        .thenCompose(cryptographer::decryptWBOAsync)
+                        .whenComplete((result, error) -> latencies.record(System.nanoTime() - submitted)));
+            }
+            return results;
+        };
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,136 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.mozilla.android.sync.BufferCryptographer;
+import org.mozilla.android.sync.ByteBufferPool;
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.domain.CryptoInfo;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Steady-state batch decrypt of history-sized records held in direct
+ * buffers: BufferCryptographer into a pooled buffer against the byte[]
+ * Cryptographer.decrypt path. Run with -prof gc and compare
+ * gc.alloc.rate.norm to see the garbage per batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferCryptographerBenchmark {
+    
+    private static final int BATCH_SIZE = 100;
+    
+    private final ByteBufferPool pool = new ByteBufferPool(true);
+    private KeyBundle keys;
+    private ByteBuffer[] cipherTexts;
+    private ByteBuffer[] ivs;
+    private ByteBuffer[] hmacs;
+    
+    @Setup
+    public void setup() {
+        keys = Cryptographer.generateKeys();
+        cipherTexts = new ByteBuffer[BATCH_SIZE];
+        ivs = new ByteBuffer[BATCH_SIZE];
+        hmacs = new ByteBuffer[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            byte[] clearText = ("{\"id\":\"record" + i + "\",\"histUri\":\"https://www.mozilla.org/en-US/firefox/" + i +
+                    "/\",\"title\":\"Firefox release notes\",\"visits\":[{\"date\":1319149012372425,\"type\":1}]}")
+                    .getBytes(StandardCharsets.UTF_8);
+            CryptoInfo info = Cryptographer.encrypt(new CryptoInfo(clearText, keys));
+            cipherTexts[i] = direct(Base64.encodeBase64(info.getMessage()));
+            ivs[i] = direct(Base64.encodeBase64(info.getIv()));
+            hmacs[i] = direct(info.getHmac());
+        }
+    }
+    
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+    
+    @Benchmark
+    public void decryptBatchPooled(Blackhole blackhole) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ByteBuffer cipherText = cipherTexts[i].duplicate();
+            ByteBuffer out = pool.acquire(BufferCryptographer.maxClearTextLength(cipherText.remaining()));
+            CryptoStatus status = BufferCryptographer.decrypt(cipherText, ivs[i].duplicate(), hmacs[i].duplicate(), keys, out);
+            blackhole.consume(status);
+            blackhole.consume(out.position());
+            pool.release(out);
+        }
+    }
+    
+    /*
+     * The same batch through the byte[] API, copying each record out
+     * of its direct buffers first
+     */
+    @Benchmark
+    public void decryptBatchArrays(Blackhole blackhole) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            blackhole.consume(Cryptographer.decrypt(toArray(cipherTexts[i]), toArray(ivs[i]), toArray(hmacs[i]), keys));
+        }
+    }
+    
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
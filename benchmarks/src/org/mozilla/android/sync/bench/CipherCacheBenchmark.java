@@ -0,0 +1,124 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.domain.CryptoInfo;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Per-record cost of encrypting and decrypting a small history-sized
+ * record, once with a fresh Cipher and Mac per call (how Cryptographer
+ * used to work) and once through Cryptographer with its per-thread
+ * Cipher/Mac cache. The difference in ops/s is the per-record saving.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherCacheBenchmark {
+    
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    
+    private KeyBundle keys;
+    private byte[] clearText;
+    
+    @Setup
+    public void setup() throws Exception {
+        keys = Cryptographer.generateKeys();
+        clearText = SyncCryptographerBenchmark.HISTORY_RECORD.getBytes("UTF-8");
+    }
+    
+    /*
+     * Encrypt and decrypt through Cryptographer (cached Cipher/Mac)
+     */
+    @Benchmark
+    public byte[] cached() {
+        CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(clearText, keys));
+        return Cryptographer.decrypt(encrypted);
+    }
+    
+    /*
+     * Encrypt and decrypt building a new Cipher and Mac for every call
+     */
+    @Benchmark
+    public byte[] uncached() throws Exception {
+        // Encrypt
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keys.getEncryptionKey(), "AES"));
+        byte[] cipherText = cipher.doFinal(clearText);
+        byte[] iv = cipher.getIV();
+        byte[] hmac = newMac().doFinal(Base64.encodeBase64(cipherText));
+        
+        // Decrypt
+        if (!Arrays.equals(hmac, newMac().doFinal(Base64.encodeBase64(cipherText)))) {
+            throw new IllegalStateException("hmac mismatch");
+        }
+        cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys.getEncryptionKey(), "AES"),
+                    new IvParameterSpec(iv));
+        return cipher.doFinal(cipherText);
+    }
+    
+    private Mac newMac() throws Exception {
+        Mac mac = Mac.getInstance("hmacSHA256");
+        mac.init(new SecretKeySpec(keys.getHmacKey(), "HmacSHA256"));
+        return mac;
+    }
+}
@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.android.sync.HKDF;
+import org.mozilla.android.sync.HkdfEngine;
+import org.mozilla.android.sync.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * HKDF extract/expand (RFC 5869 test case 2 sizes) and the Mozilla
+ * crypto/keys bundle key derivation, through the HKDF helpers and a
+ * reused HkdfEngine writing into existing arrays. Expanding with a PRK
+ * the engine is already keyed with only allocates inside the JCE Mac,
+ * keying adds a SecretKeySpec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HKDFBenchmark {
+    
+    private final byte[] ikm = Utils.hex2Byte(
+            "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f" +
+            "202122232425262728292a2b2c2d2e2f303132333435363738393a3b3c3d3e3f" +
+            "404142434445464748494a4b4c4d4e4f");
+    private final byte[] salt = Utils.hex2Byte(
+            "606162636465666768696a6b6c6d6e6f707172737475767778797a7b7c7d7e7f" +
+            "808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f" +
+            "a0a1a2a3a4a5a6a7a8a9aaabacadaeaf");
+    private final byte[] info = Utils.hex2Byte(
+            "b0b1b2b3b4b5b6b7b8b9babbbcbdbebfc0c1c2c3c4c5c6c7c8c9cacbcccdcecf" +
+            "d0d1d2d3d4d5d6d7d8d9dadbdcdddedfe0e1e2e3e4e5e6e7e8e9eaebecedeeef" +
+            "f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+    private final byte[] prk = Utils.hex2Byte(
+            "06a6b88c5853361a06104c9ceb35b45cef760014904671014a193f40c15fc244");
+    private final byte[] syncKey = Utils.decodeFriendlyBase32("gbh7teqqcgyzd65svjgibd7tqy");
+    private final byte[] username = "smqvooxj664hmrkrv6bw4r4vkegjhkns".getBytes();
+    
+    private final HkdfEngine engine = new HkdfEngine();
+    private final HkdfEngine keyedEngine = new HkdfEngine();
+    private final byte[] prkOut = new byte[HkdfEngine.HASH_LENGTH];
+    private final byte[] okm = new byte[82];
+    private final byte[] encryptionKey = new byte[HkdfEngine.HASH_LENGTH];
+    private final byte[] hmacKey = new byte[HkdfEngine.HASH_LENGTH];
+    
+    @Setup
+    public void setUp() {
+        keyedEngine.init(prk);
+    }
+    
+    @Benchmark
+    public byte[] hkdfExtract() {
+        return HKDF.hkdfExtract(salt, ikm);
+    }
+    
+    @Benchmark
+    public byte[] hkdfExpand() {
+        return HKDF.hkdfExpand(prk, info, 82);
+    }
+    
+    @Benchmark
+    public byte[][] getCryptoKeysBundleKeys() {
+        return HKDF.getCryptoKeysBundleKeys(syncKey, username);
+    }
+    
+    @Benchmark
+    public byte[] engineExtract() {
+        engine.extract(salt, ikm, prkOut, 0);
+        return prkOut;
+    }
+    
+    @Benchmark
+    public byte[] engineExpand() {
+        engine.init(prk);
+        engine.expand(info, okm, 0, okm.length);
+        return okm;
+    }
+    
+    @Benchmark
+    public byte[] engineExpandKeyed() {
+        keyedEngine.expand(info, okm, 0, okm.length);
+        return okm;
+    }
+    
+    @Benchmark
+    public byte[] engineCryptoKeysBundleKeys() {
+        engine.deriveCryptoKeysBundleKeys(syncKey, username, encryptionKey, hmacKey);
+        return hmacKey;
+    }
+}
@@ -0,0 +1,113 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.android.sync.IntegrityAuditor;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Checking a stored collection: decryptWBOs on the whole batch, against
+ * IntegrityAuditor which only verifies HMACs. Records are history
+ * records padded to the given size. Scores are records per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntegrityAuditBenchmark {
+    
+    private static final int RECORDS =      1000;
+    
+    @Param({ "0", "4096" })
+    public int padding;
+    
+    private SyncCryptographer cryptographer;
+    private List<String> wbos;
+    private List<byte[]> wboBytes;
+    
+    @Setup
+    public void setup() {
+        cryptographer = SyncCryptographerBenchmark.newCryptographer();
+        StringBuilder pad = new StringBuilder();
+        for (int i = 0; i < padding; i++) {
+            pad.append('x');
+        }
+        String clearText = SyncCryptographerBenchmark.HISTORY_RECORD.replace("\"title\":\"", "\"title\":\"" + pad);
+        
+        wbos = new ArrayList<String>();
+        wboBytes = new ArrayList<byte[]>();
+        for (int i = 0; i < RECORDS; i++) {
+            String wbo = SyncCryptographerBenchmark.newWBO(cryptographer, "hkZYpC-BH" + i, clearText);
+            wbos.add(wbo);
+            wboBytes.add(wbo.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public List<CryptoStatusBundle> decrypt() {
+        return cryptographer.decryptWBOs(wbos, null, ForkJoinPool.commonPool());
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public IntegrityAuditor.Result audit() {
+        return new IntegrityAuditor(cryptographer).audit(wboBytes.iterator(), null, ForkJoinPool.commonPool());
+    }
+}
@@ -0,0 +1,136 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.DrbgIvSource;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * IV generation from many threads at once: one shared SecureRandom
+ * (what cipher.init without an IV falls back to) against the per-thread
+ * buffered DrbgIvSource, and small-record AES encryptions with each.
+ * 
+ * Runs with 4 threads; compare against -t 1 to see how each scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class IvSourceBenchmark {
+    
+    private static final byte[] CLEAR_TEXT = "{\"id\":\"hkZYpC-BH4Xi\"}".getBytes();
+    
+    private final SecureRandom sharedRandom = new SecureRandom();
+    private final DrbgIvSource ivSource = new DrbgIvSource();
+    private KeyBundle keys;
+    
+    @Setup
+    public void setup() {
+        keys = Cryptographer.generateKeys();
+    }
+    
+    @State(Scope.Thread)
+    public static class ThreadCipher {
+        
+        Cipher cipher;
+        SecretKeySpec key;
+        
+        @Setup
+        public void setup(IvSourceBenchmark benchmark) throws GeneralSecurityException {
+            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            key = new SecretKeySpec(benchmark.keys.getEncryptionKey(), "AES");
+        }
+    }
+    
+    @Benchmark
+    public byte[] sharedSecureRandomIv() {
+        byte[] iv = new byte[16];
+        sharedRandom.nextBytes(iv);
+        return iv;
+    }
+    
+    @Benchmark
+    public byte[] drbgIvSourceIv() {
+        byte[] iv = new byte[16];
+        ivSource.nextIv(iv);
+        return iv;
+    }
+    
+    /*
+     * The old encrypt path: the Cipher picks its own IV
+     */
+    @Benchmark
+    public byte[] encryptImplicitIv(ThreadCipher state) throws GeneralSecurityException {
+        state.cipher.init(Cipher.ENCRYPT_MODE, state.key);
+        return state.cipher.doFinal(CLEAR_TEXT);
+    }
+    
+    /*
+     * The new encrypt path: IV from the IvSource, passed explicitly
+     */
+    @Benchmark
+    public byte[] encryptIvSource(ThreadCipher state) throws GeneralSecurityException {
+        byte[] iv = new byte[16];
+        ivSource.nextIv(iv);
+        state.cipher.init(Cipher.ENCRYPT_MODE, state.key, new IvParameterSpec(iv));
+        return state.cipher.doFinal(CLEAR_TEXT);
+    }
+}
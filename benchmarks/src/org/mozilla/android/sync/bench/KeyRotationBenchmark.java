@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.KeyRotationReencryptor;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.mozilla.android.sync.domain.RecordFailure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Moving history records to new bulk keys: decryptWBO with the old
+ * keys then encryptWBO with the new ones per record, against
+ * KeyRotationReencryptor without checkpoints. Scores are records per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyRotationBenchmark {
+    
+    private static final int RECORDS =      1000;
+    
+    private SyncCryptographer oldCryptographer;
+    private SyncCryptographer newCryptographer;
+    private KeyBundle oldKeys;
+    private KeyBundle newKeys;
+    private List<String> wbos;
+    private List<byte[]> wboBytes;
+    
+    @Setup
+    public void setup() {
+        oldCryptographer = SyncCryptographerBenchmark.newCryptographer();
+        oldKeys = oldCryptographer.getKeyRegistry().getDefaultKeys();
+        newKeys = Cryptographer.generateKeys();
+        newCryptographer = SyncCryptographerBenchmark.newCryptographer();
+        newCryptographer.getKeyRegistry().setKeys(newKeys, new HashMap<String, KeyBundle>());
+        
+        wbos = new ArrayList<String>();
+        wboBytes = new ArrayList<byte[]>();
+        for (int i = 0; i < RECORDS; i++) {
+            String wbo = SyncCryptographerBenchmark.newWBO(oldCryptographer, "hkZYpC-BH" + i, 
+                                                           SyncCryptographerBenchmark.HISTORY_RECORD);
+            wbos.add(wbo);
+            wboBytes.add(wbo.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void chained(Blackhole blackhole) {
+        for (int i = 0; i < RECORDS; i++) {
+            String clearText = oldCryptographer.decryptWBO(wbos.get(i)).getJson();
+            JSONObject json = new JSONObject();
+            Utils.asMap(json).put("id", "hkZYpC-BH" + i);
+            Utils.asMap(json).put("payload", newCryptographer.encryptWBO(clearText).getJson());
+            blackhole.consume(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public KeyRotationReencryptor.Result reencryptor(final Blackhole blackhole) throws IOException {
+        return new KeyRotationReencryptor(null).reencrypt("history", oldKeys, newKeys, wboBytes.iterator(), 
+                new KeyRotationReencryptor.RecordSink() {
+            @Override
+            public void reencrypted(String collection, String id, byte[] wbo) {
+                blackhole.consume(wbo);
+            }
+            
+            @Override
+            public void failed(String collection, RecordFailure failure) {
+            }
+            
+            @Override
+            public void flush() {
+            }
+        }, ForkJoinPool.commonPool());
+    }
+}
@@ -0,0 +1,123 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.domain.CryptoInfo;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Decryption of multi-megabyte records (large tab or bookmark trees)
+ * in one doFinal against parallel segments on the common pool. Only
+ * meaningful with more than one core; with one, both run serially.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelDecryptBenchmark {
+    
+    @Param({"1048576", "8388608"})
+    public int payloadSize;
+    
+    private CryptoInfo encrypted;
+    
+    @Setup
+    public void setup() {
+        KeyBundle keys = Cryptographer.generateKeys();
+        byte[] clearText = new byte[payloadSize];
+        new Random(42).nextBytes(clearText);
+        encrypted = Cryptographer.encrypt(new CryptoInfo(clearText, keys));
+    }
+    
+    @State(Scope.Benchmark)
+    public static class Serial {
+        
+        @Setup(Level.Trial)
+        public void setup() {
+            Cryptographer.setParallelDecryptThreshold(Integer.MAX_VALUE);
+        }
+        
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Cryptographer.setParallelDecryptThreshold(Cryptographer.DEFAULT_PARALLEL_DECRYPT_THRESHOLD);
+        }
+    }
+    
+    @State(Scope.Benchmark)
+    public static class Parallel {
+        
+        @Setup(Level.Trial)
+        public void setup() {
+            Cryptographer.setParallelDecryptThreshold(0);
+        }
+        
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Cryptographer.setParallelDecryptThreshold(Cryptographer.DEFAULT_PARALLEL_DECRYPT_THRESHOLD);
+        }
+    }
+    
+    @Benchmark
+    public byte[] decryptSerial(Serial mode) {
+        return Cryptographer.decrypt(encrypted);
+    }
+    
+    @Benchmark
+    public byte[] decryptParallel(Parallel mode) {
+        return Cryptographer.decrypt(encrypted);
+    }
+}
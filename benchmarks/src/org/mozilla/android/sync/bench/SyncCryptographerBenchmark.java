@@ -0,0 +1,152 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.mozilla.android.sync.DecryptedRecordCache;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.metrics.HistogramMetricsListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Full WBO encrypt/decrypt through SyncCryptographer, including the
+ * JSON and BaseXX handling, for a typical history record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyncCryptographerBenchmark {
+    
+    static final String USERNAME =              "b6evr62dptbxz7fvebek7btljyu322wp";
+    static final String SYNC_KEY =              "basuxv2426eqj7frhvpcwkavdi";
+    static final String BASE64_ENCRYPTION_KEY = "K8fV6PHG8RgugfHexGesbzTeOs2o12crN/G3bz0Bx1M=";
+    static final String BASE64_HMAC_KEY =       "nbceuI6w1RJbBzh+iCJHEs8p4lElsOmayUhx+OztVgM=";
+    static final String HISTORY_RECORD =        "{\"id\":\"hkZYpC-BH4Xi\",\"histUri\":\"http://" +
+                                                "hathology.com/2008/06/how-to-edit-your-path-" +
+                                                "environment-variables-on-mac-os-x/\",\"title\"" +
+                                                ":\"How To Edit Your PATH Environment Variables " +
+                                                "On Mac OS X\",\"visits\":[{\"date\":13189820743" +
+                                                "10889,\"type\":1}]}";
+    
+    private SyncCryptographer cryptographer;
+    private SyncCryptographer instrumentedCryptographer;
+    private SyncCryptographer cachingCryptographer;
+    private String wbo;
+    private String staleWBO;
+    
+    @Setup
+    public void setup() {
+        cryptographer = newCryptographer();
+        wbo = newWBO(cryptographer, "hkZYpC-BH4Xi", HISTORY_RECORD);
+        
+        // Encrypted with keys that have since been rotated away
+        SyncCryptographer rotated = newCryptographer();
+        rotated.generateCryptoKeysWBOPayload();
+        staleWBO = newWBO(rotated, "hkZYpC-BH4Xi", HISTORY_RECORD);
+        
+        instrumentedCryptographer = newCryptographer();
+        instrumentedCryptographer.setMetricsListener(new HistogramMetricsListener());
+        
+        cachingCryptographer = newCryptographer();
+        cachingCryptographer.setRecordCache(new DecryptedRecordCache());
+    }
+    
+    @Benchmark
+    public CryptoStatusBundle encryptWBO() {
+        return cryptographer.encryptWBO(HISTORY_RECORD);
+    }
+    
+    @Benchmark
+    public CryptoStatusBundle decryptWBO() {
+        return cryptographer.decryptWBO(wbo);
+    }
+    
+    /*
+     * Same as decryptWBO with per-stage latency histograms turned on
+     */
+    @Benchmark
+    public CryptoStatusBundle decryptWBOWithMetrics() {
+        return instrumentedCryptographer.decryptWBO(wbo);
+    }
+    
+    /*
+     * Same record downloaded again, answered from the DecryptedRecordCache
+     */
+    @Benchmark
+    public CryptoStatusBundle decryptWBOCached() {
+        return cachingCryptographer.decryptWBO(wbo);
+    }
+    
+    /*
+     * Record that fails HMAC verification, e.g. after a key rotation
+     */
+    @Benchmark
+    public CryptoStatusBundle decryptStaleWBO() {
+        return cryptographer.decryptWBO(staleWBO);
+    }
+    
+    /*
+     * Helpers shared with the other WBO level benchmarks
+     */
+    static SyncCryptographer newCryptographer() {
+        return new SyncCryptographer(USERNAME, SYNC_KEY, BASE64_ENCRYPTION_KEY, BASE64_HMAC_KEY);
+    }
+    
+    static String newWBO(SyncCryptographer cryptographer, String id, String clearText) {
+        JSONObject json = new JSONObject();
+        Utils.asMap(json).put("id", id);
+        Utils.asMap(json).put("payload", cryptographer.encryptWBO(clearText).getJson());
+        return json.toString();
+    }
+}
@@ -0,0 +1,141 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.UploadBatchEncryptor;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.ClearTextWBO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Building POST bodies for an upload of history records: encryptWBO
+ * per record and json-simple to wrap and assemble the batch, against
+ * UploadBatchEncryptor streaming chunks (to a sink that discards them).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadBatchBenchmark {
+    
+    // Server limits for a single POST
+    private static final int MAX_BYTES =        1048576;
+    private static final int MAX_RECORDS =      100;
+    
+    @Param({ "1000" })
+    public int records;
+    
+    private SyncCryptographer cryptographer;
+    private List<ClearTextWBO> clearTexts;
+    
+    @Setup
+    public void setup() {
+        cryptographer = SyncCryptographerBenchmark.newCryptographer();
+        clearTexts = new ArrayList<ClearTextWBO>();
+        for (int i = 0; i < records; i++) {
+            clearTexts.add(new ClearTextWBO("hkZYpC-BH" + i, SyncCryptographerBenchmark.HISTORY_RECORD));
+        }
+    }
+    
+    @Benchmark
+    public void perRecord(Blackhole blackhole) {
+        JSONArray batch = new JSONArray();
+        for (ClearTextWBO record : clearTexts) {
+            JSONObject wbo = new JSONObject();
+            Utils.asMap(wbo).put("id", record.getId());
+            Utils.asMap(wbo).put("payload", cryptographer.encryptWBO(new String(record.getClearText(), StandardCharsets.UTF_8)).getJson());
+            Utils.asAList(batch).add(wbo);
+            if (batch.size() == MAX_RECORDS) {
+                blackhole.consume(batch.toString().getBytes(StandardCharsets.UTF_8));
+                batch = new JSONArray();
+            }
+        }
+        if (!batch.isEmpty()) {
+            blackhole.consume(batch.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    @Benchmark
+    public UploadBatchEncryptor.Result batched(final Blackhole blackhole) throws IOException {
+        UploadBatchEncryptor encryptor = new UploadBatchEncryptor(cryptographer, MAX_BYTES, MAX_RECORDS);
+        return encryptor.encryptWBOs(clearTexts.iterator(), null, new UploadBatchEncryptor.ChunkSink() {
+            @Override
+            public OutputStream openChunk(int index) {
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        blackhole.consume(b);
+                    }
+                    
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        blackhole.consume(b);
+                    }
+                };
+            }
+            
+            @Override
+            public void closeChunk(int index, OutputStream out, int records, long bytes) {
+            }
+        }, ForkJoinPool.commonPool());
+    }
+}
@@ -0,0 +1,147 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.android.sync.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Hex codecs on an HMAC-SHA256 sized value, as done for the hmac field
+ * of every record. The caller-supplied buffer variants should report a
+ * gc.alloc.rate.norm of (close to) 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+    
+    private byte[] hmac;
+    private String hexHmac;
+    private byte[] asciiHmac;
+    
+    // Caller owned output buffers
+    private char[] charOut;
+    private byte[] byteOut;
+    private byte[] hmacOut;
+    private ByteBuffer hmacBuffer;
+    private ByteBuffer asciiBuffer;
+    private ByteBuffer directOut;
+    
+    @Setup
+    public void setup() {
+        hmac = new byte[32];
+        new Random(42).nextBytes(hmac);
+        hexHmac = Utils.byte2hex(hmac);
+        asciiHmac = hexHmac.getBytes();
+        
+        charOut = new char[64];
+        byteOut = new byte[64];
+        hmacOut = new byte[32];
+        hmacBuffer = ByteBuffer.wrap(hmac);
+        asciiBuffer = ByteBuffer.wrap(asciiHmac);
+        directOut = ByteBuffer.allocateDirect(64);
+    }
+    
+    @Benchmark
+    public String byte2hex() {
+        return Utils.byte2hex(hmac);
+    }
+    
+    @Benchmark
+    public byte[] hex2Byte() {
+        return Utils.hex2Byte(hexHmac);
+    }
+    
+    @Benchmark
+    public char[] byte2hexIntoChars() {
+        Utils.byte2hex(hmac, 0, hmac.length, charOut, 0);
+        return charOut;
+    }
+    
+    @Benchmark
+    public byte[] byte2hexIntoBytes() {
+        Utils.byte2hex(hmac, 0, hmac.length, byteOut, 0);
+        return byteOut;
+    }
+    
+    @Benchmark
+    public ByteBuffer byte2hexIntoDirectBuffer() {
+        hmacBuffer.clear();
+        directOut.clear();
+        Utils.byte2hex(hmacBuffer, directOut);
+        return directOut;
+    }
+    
+    @Benchmark
+    public boolean hex2ByteFromChars() {
+        return Utils.hex2Byte(hexHmac, 0, hexHmac.length(), byteOut, 0);
+    }
+    
+    @Benchmark
+    public boolean hex2ByteFromBytes() {
+        return Utils.hex2Byte(asciiHmac, 0, asciiHmac.length, byteOut, 0);
+    }
+    
+    @Benchmark
+    public boolean hex2ByteIntoDirectBuffer() {
+        asciiBuffer.clear();
+        directOut.clear();
+        return Utils.hex2Byte(asciiBuffer, directOut);
+    }
+    
+    @Benchmark
+    public boolean hex2ByteConstantTime() {
+        return Utils.hex2ByteConstantTime(hexHmac, hmacOut);
+    }
+}
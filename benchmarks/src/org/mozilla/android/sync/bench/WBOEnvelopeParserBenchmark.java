@@ -0,0 +1,94 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.bench;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.mozilla.android.sync.WBOEnvelopeParser;
+import org.mozilla.android.sync.domain.WBOEnvelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Extracting id, ciphertext, IV and hmac from a WBO: the single pass
+ * WBOEnvelopeParser against parsing the WBO and then its payload with
+ * JSONParser.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WBOEnvelopeParserBenchmark {
+    
+    private String wbo;
+    
+    @Setup
+    public void setup() {
+        wbo = SyncCryptographerBenchmark.newWBO(SyncCryptographerBenchmark.newCryptographer(),
+                "hkZYpC-BH4Xi", SyncCryptographerBenchmark.HISTORY_RECORD);
+    }
+    
+    @Benchmark
+    public WBOEnvelope streaming() {
+        return WBOEnvelopeParser.parse(wbo);
+    }
+    
+    @Benchmark
+    public WBOEnvelope jsonSimple() throws Exception {
+        JSONObject json = (JSONObject) new JSONParser().parse(new StringReader(wbo));
+        JSONObject payload = (JSONObject) new JSONParser().parse(new StringReader((String) json.get("payload")));
+        return new WBOEnvelope(
+                (String) json.get("id"),
+                (String) payload.get("ciphertext"),
+                (String) payload.get("IV"),
+                (String) payload.get("hmac"));
+    }
+}
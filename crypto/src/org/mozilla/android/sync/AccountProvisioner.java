@@ -0,0 +1,199 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.mozilla.android.sync.domain.SyncAccount;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener;
+
+/*
+ * Creates the crypto/keys record for many new accounts at once.
+ * 
+ * For each account fresh bulk keys are generated, the keys that
+ * protect them are derived from the username and sync key, and the
+ * encrypted record is serialized as {"id":"keys","payload":"..."},
+ * ready to PUT to storage/crypto/keys.
+ * 
+ * Accounts are taken from the input a window at a time, like
+ * UploadBatchEncryptor. A window is provisioned in parallel, where
+ * every thread uses its own key generator and the HkdfEngine HKDF keeps
+ * for it, then handed to the sink in input order on the calling thread.
+ * The derived keys are only used once, so they bypass DerivedKeyCache
+ * and are wiped once the record has been encrypted, as is the record's
+ * cleartext. The bulk keys themselves are handed to the sink.
+ */
+public class AccountProvisioner {
+    
+    private static final String ID_CRYPTO_KEYS =    "keys";
+    
+    /*
+     * Destination of the provisioned accounts
+     */
+    public interface ProvisionSink {
+        
+        /*
+         * Called once per account that was provisioned, in input order.
+         * 
+         * Input:   the account, its new bulk keys, UTF-8 encoded WBO json
+         *          of its crypto/keys record
+         */
+        public void provisioned(SyncAccount account, KeyBundle keys, byte[] keysWBO) throws IOException;
+    }
+    
+    // No credentials of its own, only used for encrypt() and its counters
+    private final SyncCryptographer cryptographer = new SyncCryptographer("");
+    
+    public Result provision(List<SyncAccount> accounts, ProvisionSink sink) throws IOException {
+        return provision(accounts.iterator(), sink, ForkJoinPool.commonPool());
+    }
+    
+    /*
+     * Input:   accounts to provision, where to send them, pool to
+     *          provision on
+     * Output:  Result with the number of accounts provisioned and the
+     *          usernames of those that were not
+     * Throws:  IOException from the sink, accounts after the one being
+     *          handed over are not provisioned
+     */
+    public Result provision(Iterator<SyncAccount> accounts, final ProvisionSink sink, 
+                            ForkJoinPool pool) throws IOException {
+        final Result result = new Result();
+        new WindowedBatch<SyncAccount, Provisioned>() {
+            @Override
+            void process(SyncAccount account, long position, Slot<Provisioned> slot) {
+                provision(account, slot);
+            }
+            
+            @Override
+            void accept(SyncAccount account, long position, Slot<Provisioned> slot) throws IOException {
+                if (slot.isOk()) {
+                    sink.provisioned(account, slot.getValue().keys, slot.getValue().keysWBO);
+                    result.provisioned++;
+                } else {
+                    result.addFailure(account.getUsername(), position, slot.getStatus());
+                }
+            }
+        }.run(accounts, 0, pool);
+        return result;
+    }
+    
+    /*
+     * Output: Number of crypto/keys records encrypted per resulting status
+     */
+    public CryptoStatusCounters getEncryptCounters() {
+        return cryptographer.getEncryptCounters();
+    }
+    
+    /*
+     * Input: Listener for per-stage timings, null or
+     *        CryptoMetricsListener.NOOP to turn metrics off
+     */
+    public void setMetricsListener(CryptoMetricsListener metricsListener) {
+        cryptographer.setMetricsListener(metricsListener);
+    }
+    
+    /*
+     * Helper to provision one account on the calling thread into slot
+     */
+    private void provision(SyncAccount account, WindowedBatch.Slot<Provisioned> slot) {
+        byte[] syncKey = account.getSyncKey();
+        String username = account.getUsername();
+        if (syncKey == null || syncKey.length == 0 || username == null || username.isEmpty()) {
+            slot.fail(username, CryptoStatus.MISSING_SYNCKEY_OR_USER);
+            return;
+        }
+        
+        KeyBundle keys = Cryptographer.generateKeys();
+        byte[] encryptionKey = new byte[HkdfEngine.HASH_LENGTH];
+        byte[] hmacKey = new byte[HkdfEngine.HASH_LENGTH];
+        HkdfEngine engine = HKDF.getEngine();
+        engine.deriveCryptoKeysBundleKeys(syncKey, username.getBytes(StandardCharsets.UTF_8), encryptionKey, hmacKey);
+        engine.clear();
+        
+        // Used for this one record, don't leave it in the thread's Cipher cache
+        KeyBundle bundleKeys = new KeyBundle(encryptionKey, hmacKey);
+        byte[] clearText = SyncCryptographer.createCryptoKeysJson(keys);
+        CryptoStatusBundle bundle = cryptographer.encrypt(clearText, bundleKeys);
+        CipherCache.release(bundleKeys);
+        Arrays.fill(encryptionKey, (byte) 0);
+        Arrays.fill(hmacKey, (byte) 0);
+        Arrays.fill(clearText, (byte) 0);
+        
+        if (bundle.getStatus() != CryptoStatus.OK) {
+            slot.fail(username, bundle.getStatus());
+            return;
+        }
+        slot.succeed(username, new Provisioned(keys, UploadBatchEncryptor.serialize(ID_CRYPTO_KEYS, bundle.getPayload())));
+    }
+    
+    private static final class Provisioned {
+        
+        private final KeyBundle keys;
+        private final byte[] keysWBO;
+        
+        Provisioned(KeyBundle keys, byte[] keysWBO) {
+            this.keys = keys;
+            this.keysWBO = keysWBO;
+        }
+    }
+    
+    /*
+     * Outcome of a provisioning run, failure ids are usernames
+     */
+    public static final class Result extends BatchResult {
+        
+        private int provisioned;
+        
+        /*
+         * Output: number of accounts handed to the sink
+         */
+        public int getProvisioned() {
+            return provisioned;
+        }
+    }
+    
+}
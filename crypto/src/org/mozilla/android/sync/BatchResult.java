@@ -0,0 +1,83 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.RecordFailure;
+
+/*
+ * Failures of a batch run, shared by the Result of each batch class.
+ * Every failure is counted, but only the first MAX_FAILURES are kept
+ * so a badly broken input can't use up memory.
+ */
+public abstract class BatchResult {
+    
+    public static final int MAX_FAILURES = 10000;
+    
+    private final List<RecordFailure> failures = new ArrayList<RecordFailure>();
+    private long failureCount;
+    
+    /*
+     * Output: the first MAX_FAILURES records that failed, in input order
+     */
+    public List<RecordFailure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+    
+    /*
+     * Output: number of records that failed, including those not kept
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+    
+    void addFailure(RecordFailure failure) {
+        failureCount++;
+        if (failures.size() < MAX_FAILURES) {
+            failures.add(failure);
+        }
+    }
+    
+    void addFailure(String id, long position, CryptoStatus status) {
+        addFailure(new RecordFailure(id, position, status));
+    }
+}
@@ -0,0 +1,270 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * Variant of Cryptographer that reads and writes caller-owned
+ * ByteBuffers, heap or direct (see ByteBufferPool), instead of
+ * returning new arrays.
+ * 
+ * Intermediate results (decoded ciphertext, IV, HMAC) go to per-thread
+ * scratch arrays that grow with the records seen, up to
+ * MAX_RETAINED_SCRATCH, and are then reused, and Cipher/Mac work through
+ * their offset/length overloads. Larger records get arrays of their own
+ * that are dropped after the call. Direct buffers are staged through the
+ * same scratch arrays, because the JCE ByteBuffer overloads allocate a
+ * temporary array per call for them, and decrypted cleartext always is,
+ * so that nothing reaches the caller's buffer from a failed decrypt.
+ * Cleartext staged this way is wiped before returning. Once warmed up, a record costs only the few small
+ * objects the JCE itself allocates per init/doFinal.
+ * 
+ * Buffers are read from their position to their limit; positions of
+ * input buffers are advanced to the limit and output buffers are
+ * written from their position on. Formats match Cryptographer: the
+ * ciphertext and IV are padded Base64 ASCII, the HMAC is raw bytes
+ * computed over the Base64 ciphertext.
+ */
+public class BufferCryptographer {
+    
+    private static final int HMAC_SIZE = 32;
+    
+    // Largest scratch array kept per thread
+    static final int MAX_RETAINED_SCRATCH = 64 * 1024;
+    
+    private static final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    
+    private BufferCryptographer() {
+    }
+    
+    /*
+     * Verify and decrypt a record. The HMAC is checked before anything
+     * is decoded. Nothing is written to clearText unless the result is OK.
+     * 
+     * Input:   Base64 ciphertext, Base64 IV, raw HMAC, keys for decryption/
+     *          hmac, buffer for the cleartext with at least
+     *          maxClearTextLength(base64CipherText.remaining()) bytes remaining
+     * Output:  OK, HMAC_VERIFY_FAIL or DECRYPTION_FAIL
+     * Throws:  BufferOverflowException if clearText is too small
+     */
+    public static CryptoStatus decrypt(ByteBuffer base64CipherText, ByteBuffer base64Iv, ByteBuffer hmac, 
+                                       KeyBundle keys, ByteBuffer clearText) {
+        int base64Length = base64CipherText.remaining();
+        if (clearText.remaining() < maxClearTextLength(base64Length)) {
+            throw new BufferOverflowException();
+        }
+        Scratch scratch = scratches.get();
+        
+        // HMAC over the Base64 ciphertext as received, compared in constant time
+        byte[] base64 = scratch.base64(base64Length);
+        base64CipherText.get(base64, 0, base64Length);
+        Mac hmacHasher = CipherCache.getHmacHasher(keys);
+        hmacHasher.update(base64, 0, base64Length);
+        try {
+            hmacHasher.doFinal(scratch.hmac, 0);
+        } catch (GeneralSecurityException e) {
+            return CryptoStatus.HMAC_VERIFY_FAIL;
+        }
+        int hmacLength = hmac.remaining();
+        int diff = hmacLength ^ HMAC_SIZE;
+        for (int i = 0; i < HMAC_SIZE; i++) {
+            diff |= scratch.hmac[i] ^ (i < hmacLength ? hmac.get(hmac.position() + i) : 0);
+        }
+        hmac.position(hmac.limit());
+        if (diff != 0) {
+            base64Iv.position(base64Iv.limit());
+            return CryptoStatus.HMAC_VERIFY_FAIL;
+        }
+        
+        // Decode
+        byte[] cipherText = scratch.data(base64Length / 4 * 3);
+        int cipherTextLength = Utils.decodeBase64(base64, 0, base64Length, cipherText, 0);
+        int ivLength = base64Iv.remaining();
+        base64Iv.get(scratch.base64Iv, 0, Math.min(ivLength, scratch.base64Iv.length));
+        base64Iv.position(base64Iv.limit());
+        if (cipherTextLength <= 0 || cipherTextLength % Cryptographer.BLOCK_SIZE != 0 || 
+                ivLength != scratch.base64Iv.length ||
+                Utils.decodeBase64(scratch.base64Iv, 0, ivLength, scratch.iv, 0) != Cryptographer.BLOCK_SIZE) {
+            return CryptoStatus.DECRYPTION_FAIL;
+        }
+        
+        // Decrypt into the Base64 scratch array, which is free by now, and
+        // only copy out once the padding checked out: a failed doFinal may
+        // already have written part of the output
+        Cipher cipher = CipherCache.getCipher();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, CipherCache.getEncryptionKey(keys, Cryptographer.KEY_ALGORITHM_SPEC), 
+                        new IvParameterSpec(scratch.iv));
+            int length = cipher.doFinal(cipherText, 0, cipherTextLength, base64, 0);
+            clearText.put(base64, 0, length);
+        } catch (GeneralSecurityException e) {
+            return CryptoStatus.DECRYPTION_FAIL;
+        } finally {
+            Arrays.fill(base64, 0, cipherTextLength, (byte) 0);
+        }
+        return CryptoStatus.OK;
+    }
+    
+    /*
+     * Encrypt a record with a fresh IV from Cryptographer.getIvSource()
+     * 
+     * Input:   cleartext, keys for encryption/hmac, buffers for the Base64
+     *          ciphertext (at least maxBase64CipherTextLength(
+     *          clearText.remaining()) bytes remaining), the Base64 IV
+     *          (24 bytes) and the raw HMAC (32 bytes)
+     * Output:  OK, or INVALID_KEYS_BUNDLE if the keys can't be used
+     * Throws:  BufferOverflowException if an output buffer is too small
+     */
+    public static CryptoStatus encrypt(ByteBuffer clearText, KeyBundle keys, ByteBuffer base64CipherText, 
+                                       ByteBuffer base64Iv, ByteBuffer hmac) {
+        int clearTextLength = clearText.remaining();
+        int base64Length = maxBase64CipherTextLength(clearTextLength);
+        Scratch scratch = scratches.get();
+        if (base64CipherText.remaining() < base64Length || base64Iv.remaining() < scratch.base64Iv.length || 
+                hmac.remaining() < HMAC_SIZE) {
+            throw new BufferOverflowException();
+        }
+        
+        Cryptographer.getIvSource().nextIv(scratch.iv);
+        
+        // Encrypt, staging input through scratch if it isn't on the heap
+        byte[] cipherText = scratch.data(base64Length / 4 * 3);
+        Cipher cipher = CipherCache.getCipher();
+        int cipherTextLength;
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, CipherCache.getEncryptionKey(keys, Cryptographer.KEY_ALGORITHM_SPEC), 
+                        new IvParameterSpec(scratch.iv));
+            if (clearText.hasArray()) {
+                cipherTextLength = cipher.doFinal(clearText.array(), clearText.arrayOffset() + clearText.position(), 
+                                                  clearTextLength, cipherText, 0);
+            } else {
+                byte[] staged = scratch.base64(clearTextLength);
+                clearText.duplicate().get(staged, 0, clearTextLength);
+                try {
+                    cipherTextLength = cipher.doFinal(staged, 0, clearTextLength, cipherText, 0);
+                } finally {
+                    Arrays.fill(staged, 0, clearTextLength, (byte) 0);
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            return CryptoStatus.INVALID_KEYS_BUNDLE;
+        }
+        clearText.position(clearText.limit());
+        
+        // Encode, HMAC the Base64 exactly as it is sent
+        byte[] base64 = scratch.base64(base64Length);
+        int length = Utils.encodeBase64(cipherText, 0, cipherTextLength, base64, 0);
+        Mac hmacHasher = CipherCache.getHmacHasher(keys);
+        hmacHasher.update(base64, 0, length);
+        try {
+            hmacHasher.doFinal(scratch.hmac, 0);
+        } catch (GeneralSecurityException e) {
+            return CryptoStatus.INVALID_KEYS_BUNDLE;
+        }
+        
+        base64CipherText.put(base64, 0, length);
+        Utils.encodeBase64(scratch.iv, 0, Cryptographer.BLOCK_SIZE, scratch.base64Iv, 0);
+        base64Iv.put(scratch.base64Iv);
+        hmac.put(scratch.hmac);
+        return CryptoStatus.OK;
+    }
+    
+    /*
+     * Output: the most cleartext Base64 ciphertext of this length can hold
+     */
+    public static int maxClearTextLength(int base64CipherTextLength) {
+        return base64CipherTextLength / 4 * 3;
+    }
+    
+    /*
+     * Output: length of the Base64 ciphertext for this much cleartext
+     */
+    public static int maxBase64CipherTextLength(int clearTextLength) {
+        int padded = (clearTextLength / Cryptographer.BLOCK_SIZE + 1) * Cryptographer.BLOCK_SIZE;
+        return Utils.base64Length(padded);
+    }
+    
+    /*
+     * Per-thread working arrays
+     */
+    private static final class Scratch {
+        
+        private final byte[] iv = new byte[Cryptographer.BLOCK_SIZE];
+        private final byte[] base64Iv = new byte[Utils.base64Length(Cryptographer.BLOCK_SIZE)];
+        private final byte[] hmac = new byte[HMAC_SIZE];
+        private byte[] base64 = new byte[1024];
+        private byte[] data = new byte[1024];
+        
+        byte[] base64(int length) {
+            if (base64.length < length) {
+                if (length > MAX_RETAINED_SCRATCH) {
+                    return new byte[length];
+                }
+                base64 = new byte[Math.min(Math.max(length, base64.length * 2), MAX_RETAINED_SCRATCH)];
+            }
+            return base64;
+        }
+        
+        byte[] data(int length) {
+            if (data.length < length) {
+                if (length > MAX_RETAINED_SCRATCH) {
+                    return new byte[length];
+                }
+                data = new byte[Math.min(Math.max(length, data.length * 2), MAX_RETAINED_SCRATCH)];
+            }
+            return data;
+        }
+    }
+    
+}
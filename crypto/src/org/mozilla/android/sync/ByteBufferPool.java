@@ -0,0 +1,135 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * Pool of heap or direct ByteBuffers.
+ * 
+ * Buffers come in power of two sizes and are kept on a free list per
+ * thread, so acquiring and releasing needs no locks and, once a thread
+ * has warmed up, allocates nothing. A buffer released on a different
+ * thread than the one it came from simply joins that thread's list.
+ */
+public class ByteBufferPool {
+    
+    // Smallest buffer handed out is 1 << MIN_SHIFT bytes
+    private static final int MIN_SHIFT =            8;
+    private static final int SIZE_CLASSES =         31 - MIN_SHIFT;
+    
+    public static final int DEFAULT_MAX_PER_SIZE =  16;
+    
+    private final boolean direct;
+    private final int maxPerSize;
+    
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> freeLists = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected ArrayDeque<ByteBuffer>[] initialValue() {
+            ArrayDeque<ByteBuffer>[] lists = new ArrayDeque[SIZE_CLASSES];
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                lists[i] = new ArrayDeque<ByteBuffer>();
+            }
+            return lists;
+        }
+    };
+    
+    /*
+     * Input:   true for off-heap (direct) buffers, maximum number of idle
+     *          buffers of each size kept per thread
+     */
+    public ByteBufferPool(boolean direct, int maxPerSize) {
+        this.direct = direct;
+        this.maxPerSize = maxPerSize;
+    }
+    
+    public ByteBufferPool(boolean direct) {
+        this(direct, DEFAULT_MAX_PER_SIZE);
+    }
+    
+    public boolean isDirect() {
+        return direct;
+    }
+    
+    /*
+     * Input:   minimum capacity needed
+     * Output:  cleared buffer of at least that capacity, owned by the
+     *          caller until it is released
+     */
+    public ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = freeLists.get()[sizeClass].pollLast();
+        if (buffer == null) {
+            int size = 1 << (sizeClass + MIN_SHIFT);
+            buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+    
+    /*
+     * Input: buffer from acquire(), which must not be used afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < 1 << MIN_SHIFT || buffer.isDirect() != direct) {
+            // Not one of ours
+            return;
+        }
+        ArrayDeque<ByteBuffer> freeList = freeLists.get()[sizeClass(capacity)];
+        if (freeList.size() < maxPerSize) {
+            freeList.addLast(buffer);
+        }
+    }
+    
+    /*
+     * Output: index of the smallest power of two size that holds capacity
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        if (capacity > 1 << 30) {
+            throw new IllegalArgumentException("Buffer too large: " + capacity);
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+    
+}
@@ -0,0 +1,224 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * Per-thread cache of the JCE objects used by Cryptographer.
+ * 
+ * Looking up a provider for a Cipher or Mac and running the key
+ * schedule costs more than the actual crypto for small records.
+ * Each thread keeps one Cipher plus an initialized Mac and AES key
+ * for every KeyBundle it has used. Entries are keyed by KeyBundle
+ * identity and rebuilt when the bundle's generation changes, which its
+ * setters (or KeyBundle.keysChanged() after editing the key bytes in
+ * place) take care of. Changing the provider drops everything with
+ * invalidate().
+ * 
+ * Bundles used only once should be handed to release() afterwards, so
+ * they don't pile up in the thread's map until the next GC and their
+ * Mac goes to the next bundle instead of a new one being created.
+ */
+class CipherCache {
+    
+    private static final AtomicInteger generation = new AtomicInteger();
+    
+    private static final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+    
+    /*
+     * Output:  AES/CBC Cipher object owned by the calling thread, from
+     *          the provider chosen by CryptoProviderSelector
+     */
+    static Cipher getCipher() {
+        ThreadCache cache = getThreadCache();
+        if (cache.cipher == null) {
+            try {
+                cache.cipher = CryptoProviderSelector.getDefault().newCipher();
+            } catch (GeneralSecurityException e) {
+                // The selector only picks providers that have it
+                throw new IllegalStateException(e);
+            }
+        }
+        return cache.cipher;
+    }
+    
+    /*
+     * Output:  AES/CBC/NoPadding Cipher owned by the calling thread, see
+     *          ParallelDecryptor
+     */
+    static Cipher getNoPaddingCipher() {
+        ThreadCache cache = getThreadCache();
+        if (cache.noPaddingCipher == null) {
+            try {
+                cache.noPaddingCipher = CryptoProviderSelector.getDefault().newNoPaddingCipher();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return cache.noPaddingCipher;
+    }
+    
+    /*
+     * Input:   KeyBundle, key algorithm
+     * Output:  Encryption key of the bundle as a SecretKeySpec
+     */
+    static SecretKeySpec getEncryptionKey(KeyBundle keys, String algorithm) {
+        KeyEntry entry = getEntry(keys);
+        if (entry.encryptionKey == null) {
+            entry.encryptionKey = new SecretKeySpec(keys.getEncryptionKey(), algorithm);
+        }
+        return entry.encryptionKey;
+    }
+    
+    /*
+     * Input:   KeyBundle
+     * Output:  HMAC hasher initialized with the bundle's hmac key
+     */
+    static Mac getHmacHasher(KeyBundle keys) {
+        ThreadCache cache = getThreadCache();
+        KeyEntry entry = getEntry(cache, keys);
+        if (entry.hmacHasher == null) {
+            Mac spare = cache.spareMac;
+            if (spare != null) {
+                cache.spareMac = null;
+                try {
+                    spare.init(HKDF.makeHmacKey(keys.getHmacKey()));
+                } catch (InvalidKeyException e) {
+                    throw new IllegalStateException(e);
+                }
+                entry.hmacHasher = spare;
+            } else {
+                entry.hmacHasher = HKDF.makeHmacHasher(HKDF.makeHmacKey(keys.getHmacKey()));
+            }
+        }
+        return entry.hmacHasher;
+    }
+    
+    /*
+     * Forget the calling thread's entry for a bundle that won't be used
+     * again, keeping its Mac for the next bundle
+     */
+    static void release(KeyBundle keys) {
+        ThreadCache cache = getThreadCache();
+        KeyEntry entry = cache.entries.remove(keys);
+        if (entry != null && entry.hmacHasher != null) {
+            entry.hmacHasher.reset();
+            cache.spareMac = entry.hmacHasher;
+        }
+    }
+    
+    /*
+     * Drop every cached key and Cipher on every thread, after the provider
+     * changed. Threads notice on their next lookup and rebuild their entries.
+     */
+    static void invalidate() {
+        generation.incrementAndGet();
+    }
+    
+    /*
+     * Helper to get the calling thread's entry for a KeyBundle, emptied if
+     * the bundle changed since it was filled
+     */
+    private static KeyEntry getEntry(KeyBundle keys) {
+        return getEntry(getThreadCache(), keys);
+    }
+    
+    private static KeyEntry getEntry(ThreadCache cache, KeyBundle keys) {
+        KeyEntry entry = cache.entries.get(keys);
+        int bundleGeneration = keys.getGeneration();
+        if (entry == null) {
+            entry = new KeyEntry();
+            cache.entries.put(keys, entry);
+        } else if (entry.generation != bundleGeneration) {
+            entry.encryptionKey = null;
+            entry.hmacHasher = null;
+        }
+        entry.generation = bundleGeneration;
+        return entry;
+    }
+    
+    /*
+     * Helper to get the calling thread's cache, cleared if it is from
+     * before the last invalidate()
+     */
+    private static ThreadCache getThreadCache() {
+        ThreadCache cache = threadCaches.get();
+        int current = generation.get();
+        if (cache.generation != current) {
+            cache.cipher = null;
+            cache.noPaddingCipher = null;
+            cache.spareMac = null;
+            cache.entries.clear();
+            cache.generation = current;
+        }
+        return cache;
+    }
+    
+    private static class ThreadCache {
+        private Cipher cipher;
+        private Cipher noPaddingCipher;
+        private Mac spareMac;
+        private int generation = CipherCache.generation.get();
+        
+        // KeyBundle does not override equals/hashCode so this is an identity
+        // map, and entries go away with the bundle once it is unreachable
+        private final Map<KeyBundle, KeyEntry> entries = new WeakHashMap<KeyBundle, KeyEntry>();
+    }
+    
+    private static class KeyEntry {
+        private int generation;
+        private SecretKeySpec encryptionKey;
+        private Mac hmacHasher;
+    }
+}
@@ -0,0 +1,150 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Executors for the asynchronous SyncCryptographer API.
+ * 
+ * The default is a pool of platform daemon threads, one per core, with
+ * a bounded queue. Records are CPU bound, and Cipher/Mac objects, IV
+ * generators and scratch buffers are cached per thread, so a few
+ * long-lived threads that stay warm beat a thread per record. When the
+ * queue is full the submitting thread runs the record itself, which
+ * slows submission down instead of queueing without limit.
+ * 
+ * Virtual threads (JDK 21+) are available with newVirtualThreadExecutor()
+ * for callers that want them, but each one starts with cold per-thread
+ * caches, so they are not the default. They are found by reflection so
+ * this still builds for older targets.
+ */
+public class CryptoExecutors {
+    
+    // Records queued per pool thread before submitters run them themselves
+    public static final int DEFAULT_QUEUE_PER_THREAD = 1024;
+    
+    private static volatile ExecutorService defaultExecutor;
+    
+    private CryptoExecutors() {
+    }
+    
+    /*
+     * Output: The shared default executor, created on first use
+     */
+    public static ExecutorService getDefault() {
+        ExecutorService executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (CryptoExecutors.class) {
+                executor = defaultExecutor;
+                if (executor == null) {
+                    executor = newBoundedExecutor(Runtime.getRuntime().availableProcessors());
+                    defaultExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+    
+    /*
+     * Output: true if virtual threads are available on this JVM
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return virtualThreadFactory() != null;
+    }
+    
+    /*
+     * Output: An executor starting a virtual thread per task,
+     *         null before JDK 21
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        Method factory = virtualThreadFactory();
+        if (factory == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    /*
+     * Input:   number of threads
+     * Output:  A pool of daemon threads queueing DEFAULT_QUEUE_PER_THREAD
+     *          tasks per thread, see below
+     */
+    public static ExecutorService newBoundedExecutor(int threads) {
+        return newBoundedExecutor(threads, threads * DEFAULT_QUEUE_PER_THREAD);
+    }
+    
+    /*
+     * Input:   number of threads, most tasks waiting in the queue
+     * Output:  A fixed pool of daemon threads. A task submitted while the
+     *          queue is full runs on the submitting thread.
+     */
+    public static ExecutorService newBoundedExecutor(int threads, int queueCapacity) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+                                      new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sync-crypto-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+    
+    private static Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+    
+}
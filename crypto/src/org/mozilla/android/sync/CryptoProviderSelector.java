@@ -0,0 +1,429 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Picks the JCE provider for the Cipher and Mac used by Cryptographer
+ * and HKDF.
+ * 
+ * Left alone, getInstance() takes the first installed provider that
+ * has the algorithm, which is not necessarily the fastest one on a
+ * given JDK/device. The default selector runs each
+ * installed provider through a short calibration of the operations the
+ * library performs: an init plus a 1 KB AES/CBC encrypt and decrypt,
+ * and an init plus HMAC-SHA256 over a 1 KB message and a 32 byte one.
+ * The fastest provider is pinned, unless it is within 5% of the first
+ * one, in which case the usual order is kept rather than follow noise.
+ * Calibration runs before the JIT has warmed up, so the numbers only
+ * mean something relative to each other.
+ * 
+ * Apps should call init() during startup, off the UI thread, to pay for
+ * calibration there. Otherwise the first getDefault() calibrates, and
+ * threads arriving meanwhile get an uncalibrated selector rather than
+ * wait for it; their Cipher/Mac objects are dropped once it is done.
+ * 
+ * System properties:
+ *   org.mozilla.android.sync.cipherProvider     force the AES/CBC provider
+ *   org.mozilla.android.sync.macProvider        force the HMAC-SHA256 provider
+ *   org.mozilla.android.sync.calibrationMillis  time spent measuring each
+ *                                               provider (default 50, 0 to
+ *                                               skip calibration)
+ */
+public class CryptoProviderSelector {
+    
+    public static final String CIPHER_PROVIDER_PROPERTY =       "org.mozilla.android.sync.cipherProvider";
+    public static final String MAC_PROVIDER_PROPERTY =          "org.mozilla.android.sync.macProvider";
+    public static final String CALIBRATION_MILLIS_PROPERTY =    "org.mozilla.android.sync.calibrationMillis";
+    
+    public static final long DEFAULT_CALIBRATION_MILLIS =       50;
+    
+    // A provider must beat the first one by this much to be pinned
+    private static final double MIN_SPEEDUP =                   1.05;
+    
+    private static final int CALIBRATION_MESSAGE_SIZE =         1024;
+    
+    public enum Algorithm {
+        AES_CBC(Cryptographer.TRANSFORMATION),
+        HMAC_SHA256("HmacSHA256");
+        
+        private final String name;
+        
+        private Algorithm(String name) {
+            this.name = name;
+        }
+        
+        public String getName() {
+            return name;
+        }
+    }
+    
+    /*
+     * Calibration result for one provider
+     */
+    public static final class Measurement {
+        
+        private final String provider;
+        private final double opsPerSecond;
+        
+        Measurement(String provider, double opsPerSecond) {
+            this.provider = provider;
+            this.opsPerSecond = opsPerSecond;
+        }
+        
+        public String getProvider() {
+            return provider;
+        }
+        
+        public double getOpsPerSecond() {
+            return opsPerSecond;
+        }
+        
+        @Override
+        public String toString() {
+            return provider + "=" + Math.round(opsPerSecond) + " ops/s";
+        }
+    }
+    
+    private static volatile CryptoProviderSelector defaultSelector;
+    private static volatile CryptoProviderSelector uncalibratedSelector;
+    private static final ReentrantLock defaultLock = new ReentrantLock();
+    
+    private final Map<Algorithm, Provider> selected = new EnumMap<Algorithm, Provider>(Algorithm.class);
+    private final Map<Algorithm, Boolean> forced = new EnumMap<Algorithm, Boolean>(Algorithm.class);
+    private final Map<Algorithm, List<Measurement>> measurements = 
+            new EnumMap<Algorithm, List<Measurement>>(Algorithm.class);
+    
+    /*
+     * Input:   name of the provider to force for AES/CBC and HMAC-SHA256
+     *          (null to calibrate), calibration time per provider (0 or
+     *          less to use the first provider that has the algorithm)
+     */
+    public CryptoProviderSelector(String cipherProvider, String macProvider, long calibrationMillis) {
+        select(Algorithm.AES_CBC, cipherProvider, calibrationMillis);
+        select(Algorithm.HMAC_SHA256, macProvider, calibrationMillis);
+    }
+    
+    /*
+     * Calibrate the default selector now, on the calling thread, if that
+     * hasn't happened yet. Meant for app startup.
+     * 
+     * Output: the default selector
+     */
+    public static CryptoProviderSelector init() {
+        CryptoProviderSelector selector = defaultSelector;
+        if (selector != null) {
+            return selector;
+        }
+        defaultLock.lock();
+        try {
+            return initLocked();
+        } finally {
+            defaultLock.unlock();
+        }
+    }
+    
+    /*
+     * Output: selector configured from the system properties, calibrated
+     *         by init() or else by the first call to this. Callers that
+     *         arrive while another thread calibrates get an uncalibrated
+     *         selector instead of waiting.
+     */
+    public static CryptoProviderSelector getDefault() {
+        CryptoProviderSelector selector = defaultSelector;
+        if (selector != null) {
+            return selector;
+        }
+        if (defaultLock.tryLock()) {
+            try {
+                return initLocked();
+            } finally {
+                defaultLock.unlock();
+            }
+        }
+        
+        // Cheap, a race only builds it twice
+        selector = uncalibratedSelector;
+        if (selector == null) {
+            selector = new CryptoProviderSelector(System.getProperty(CIPHER_PROVIDER_PROPERTY),
+                                                  System.getProperty(MAC_PROVIDER_PROPERTY), 0);
+            uncalibratedSelector = selector;
+        }
+        
+        // initLocked() publishes before checking uncalibratedSelector, so
+        // either it saw ours and invalidates, or we see its result here
+        CryptoProviderSelector calibrated = defaultSelector;
+        return calibrated != null ? calibrated : selector;
+    }
+    
+    /*
+     * Helper for init()/getDefault(), with defaultLock held
+     */
+    private static CryptoProviderSelector initLocked() {
+        CryptoProviderSelector selector = defaultSelector;
+        if (selector == null) {
+            selector = new CryptoProviderSelector(
+                    System.getProperty(CIPHER_PROVIDER_PROPERTY),
+                    System.getProperty(MAC_PROVIDER_PROPERTY),
+                    Long.getLong(CALIBRATION_MILLIS_PROPERTY, DEFAULT_CALIBRATION_MILLIS));
+            defaultSelector = selector;
+            
+            // Threads that didn't wait switch over to the calibrated choice
+            if (uncalibratedSelector != null) {
+                uncalibratedSelector = null;
+                CipherCache.invalidate();
+            }
+        }
+        return selector;
+    }
+    
+    /*
+     * Replace the default selector. Cached Cipher and Mac objects are
+     * dropped so the new choice takes effect on every thread.
+     * 
+     * Input: new selector, null to recalibrate on next use
+     */
+    public static void setDefault(CryptoProviderSelector selector) {
+        defaultLock.lock();
+        try {
+            defaultSelector = selector;
+        } finally {
+            defaultLock.unlock();
+        }
+        CipherCache.invalidate();
+    }
+    
+    /*
+     * Output: AES/CBC/PKCS5Padding Cipher from the selected provider
+     */
+    public Cipher newCipher() throws GeneralSecurityException {
+        Provider provider = selected.get(Algorithm.AES_CBC);
+        return provider == null ? Cipher.getInstance(Algorithm.AES_CBC.getName()) : 
+                                  Cipher.getInstance(Algorithm.AES_CBC.getName(), provider);
+    }
+    
+    /*
+     * Output: AES/CBC/NoPadding Cipher from the provider selected for
+     *         AES/CBC, for decrypting block-aligned segments
+     */
+    public Cipher newNoPaddingCipher() throws GeneralSecurityException {
+        Provider provider = selected.get(Algorithm.AES_CBC);
+        return provider == null ? Cipher.getInstance(Cryptographer.NO_PADDING_TRANSFORMATION) : 
+                                  Cipher.getInstance(Cryptographer.NO_PADDING_TRANSFORMATION, provider);
+    }
+    
+    /*
+     * Output: HmacSHA256 Mac from the selected provider
+     */
+    public Mac newMac() throws GeneralSecurityException {
+        Provider provider = selected.get(Algorithm.HMAC_SHA256);
+        return provider == null ? Mac.getInstance(Algorithm.HMAC_SHA256.getName()) : 
+                                  Mac.getInstance(Algorithm.HMAC_SHA256.getName(), provider);
+    }
+    
+    /*
+     * Output: provider pinned for algorithm, null if getInstance() picks
+     */
+    public Provider getProvider(Algorithm algorithm) {
+        return selected.get(algorithm);
+    }
+    
+    /*
+     * Output: true if the provider was forced rather than calibrated
+     */
+    public boolean isForced(Algorithm algorithm) {
+        return forced.get(algorithm);
+    }
+    
+    /*
+     * Output: calibration results, fastest first, empty if there was
+     *         no calibration
+     */
+    public List<Measurement> getMeasurements(Algorithm algorithm) {
+        return measurements.get(algorithm);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for (Algorithm algorithm : Algorithm.values()) {
+            Provider provider = selected.get(algorithm);
+            report.append(algorithm.getName()).append(": ")
+                  .append(provider == null ? "default" : provider.getName())
+                  .append(forced.get(algorithm) ? " (forced) " : " ")
+                  .append(measurements.get(algorithm)).append('\n');
+        }
+        return report.toString();
+    }
+    
+    private void select(Algorithm algorithm, String forcedProvider, long calibrationMillis) {
+        forced.put(algorithm, false);
+        measurements.put(algorithm, Collections.<Measurement>emptyList());
+        
+        if (forcedProvider != null && !forcedProvider.isEmpty()) {
+            Provider provider = Security.getProvider(forcedProvider);
+            if (provider == null || !supports(provider, algorithm)) {
+                throw new IllegalArgumentException("Provider " + forcedProvider + 
+                                                   " does not provide " + algorithm.getName());
+            }
+            selected.put(algorithm, provider);
+            forced.put(algorithm, true);
+            return;
+        }
+        
+        if (calibrationMillis <= 0) {
+            return;
+        }
+        
+        List<Measurement> results = new ArrayList<Measurement>();
+        Provider first = null;
+        double firstOps = 0;
+        Provider best = null;
+        double bestOps = 0;
+        for (Provider provider : Security.getProviders()) {
+            double ops;
+            try {
+                ops = calibrate(provider, algorithm, calibrationMillis);
+            } catch (GeneralSecurityException e) {
+                // Provider doesn't have the algorithm
+                continue;
+            }
+            results.add(new Measurement(provider.getName(), ops));
+            if (first == null) {
+                first = provider;
+                firstOps = ops;
+            }
+            if (ops > bestOps) {
+                best = provider;
+                bestOps = ops;
+            }
+        }
+        
+        Collections.sort(results, (a, b) -> Double.compare(b.getOpsPerSecond(), a.getOpsPerSecond()));
+        measurements.put(algorithm, Collections.unmodifiableList(results));
+        selected.put(algorithm, bestOps >= firstOps * MIN_SPEEDUP ? best : first);
+    }
+    
+    private static boolean supports(Provider provider, Algorithm algorithm) {
+        try {
+            if (algorithm == Algorithm.AES_CBC) {
+                Cipher.getInstance(algorithm.getName(), provider);
+            } else {
+                Mac.getInstance(algorithm.getName(), provider);
+            }
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+    
+    /*
+     * Runs the operations for algorithm on provider, first as a warmup
+     * and then timed, for calibrationMillis each
+     * 
+     * Output:  operations per second
+     * Throws:  GeneralSecurityException if provider can't do algorithm
+     */
+    private static double calibrate(Provider provider, Algorithm algorithm, long calibrationMillis) 
+            throws GeneralSecurityException {
+        byte[] key = new byte[32];
+        byte[] iv = new byte[Cryptographer.BLOCK_SIZE];
+        byte[] message = new byte[CALIBRATION_MESSAGE_SIZE];
+        byte[] shortMessage = new byte[32];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        
+        Cipher cipher = null;
+        Mac mac = null;
+        SecretKeySpec cipherKey = new SecretKeySpec(key, Cryptographer.KEY_ALGORITHM_SPEC);
+        SecretKeySpec macKey = new SecretKeySpec(key, Algorithm.HMAC_SHA256.getName());
+        IvParameterSpec ivSpec = new IvParameterSpec(iv);
+        if (algorithm == Algorithm.AES_CBC) {
+            cipher = Cipher.getInstance(algorithm.getName(), provider);
+        } else {
+            mac = Mac.getInstance(algorithm.getName(), provider);
+        }
+        
+        long sink = 0;
+        double opsPerSecond = 0;
+        for (int round = 0; round < 2; round++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long deadline = start + calibrationMillis * 1000000;
+            long now;
+            do {
+                if (cipher != null) {
+                    cipher.init(Cipher.ENCRYPT_MODE, cipherKey, ivSpec);
+                    byte[] encrypted = cipher.doFinal(message);
+                    cipher.init(Cipher.DECRYPT_MODE, cipherKey, ivSpec);
+                    sink += cipher.doFinal(encrypted)[0];
+                } else {
+                    mac.init(macKey);
+                    sink += mac.doFinal(message)[0];
+                    mac.init(macKey);
+                    sink += mac.doFinal(shortMessage)[0];
+                }
+                ops++;
+                now = System.nanoTime();
+            } while (now < deadline);
+            opsPerSecond = ops * 1e9 / (now - start);
+        }
+        
+        // Keep the work from being optimized away
+        if (sink == Long.MIN_VALUE) {
+            opsPerSecond++;
+        }
+        return opsPerSecond;
+    }
+    
+}
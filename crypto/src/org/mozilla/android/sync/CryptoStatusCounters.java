@@ -0,0 +1,113 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+
+/*
+ * Thread-safe count of operations per CryptoStatus.
+ * 
+ * Counting is a single LongAdder increment, cheap enough for every
+ * record even when many threads share one SyncCryptographer. Reads
+ * are not atomic across statuses; a snapshot taken while operations
+ * are running may be slightly behind for some of them.
+ */
+public class CryptoStatusCounters {
+    
+    private final EnumMap<CryptoStatus, LongAdder> counts;
+    
+    public CryptoStatusCounters() {
+        counts = new EnumMap<CryptoStatus, LongAdder>(CryptoStatus.class);
+        for (CryptoStatus status : CryptoStatus.values()) {
+            counts.put(status, new LongAdder());
+        }
+    }
+    
+    /*
+     * Input: status of a finished operation
+     */
+    public void increment(CryptoStatus status) {
+        counts.get(status).increment();
+    }
+    
+    /*
+     * Output: number of operations that ended with status
+     */
+    public long get(CryptoStatus status) {
+        return counts.get(status).sum();
+    }
+    
+    /*
+     * Output: number of operations per status, statuses that never
+     *         occurred map to 0
+     */
+    public Map<CryptoStatus, Long> snapshot() {
+        EnumMap<CryptoStatus, Long> snapshot = new EnumMap<CryptoStatus, Long>(CryptoStatus.class);
+        for (Map.Entry<CryptoStatus, LongAdder> entry : counts.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().sum());
+        }
+        return snapshot;
+    }
+    
+    /*
+     * Output: total number of operations counted
+     */
+    public long total() {
+        long total = 0;
+        for (LongAdder count : counts.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+    
+    public void reset() {
+        for (LongAdder count : counts.values()) {
+            count.reset();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+    
+}
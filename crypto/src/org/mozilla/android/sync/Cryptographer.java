@@ -37,21 +37,23 @@
 
 package org.mozilla.android.sync;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyGenerator;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64OutputStream;
 import org.mozilla.android.sync.domain.CryptoInfo;
 import org.mozilla.android.sync.domain.KeyBundle;
 
@@ -60,18 +62,61 @@ import org.mozilla.android.sync.domain.KeyBundle;
  */
 public class Cryptographer {
 
-    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
-    private static final String KEY_ALGORITHM_SPEC = "AES";
-    private static final int KEY_SIZE = 256;
+    static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final String NO_PADDING_TRANSFORMATION = "AES/CBC/NoPadding";
+    static final String KEY_ALGORITHM_SPEC = "AES";
+    static final int BLOCK_SIZE = 16;
+    static final int KEY_SIZE = 256;
+    
+    // Chunk size for the streaming encrypt/decrypt
+    static final int STREAM_BUFFER_SIZE = 8192;
+    
+    // Ciphertexts at least this long are decrypted in parallel segments
+    public static final int DEFAULT_PARALLEL_DECRYPT_THRESHOLD = 1024 * 1024;
+    
+    private static volatile IvSource ivSource = DrbgIvSource.getDefault();
+    private static volatile int parallelDecryptThreshold = DEFAULT_PARALLEL_DECRYPT_THRESHOLD;
+    private static volatile ForkJoinPool parallelDecryptPool = ForkJoinPool.commonPool();
+    
+    // Per-thread array verifyHmac(CharSequence...) feeds the Mac through
+    private static final ThreadLocal<byte[]> asciiChunks = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024];
+        }
+    };
     
     public static CryptoInfo encrypt(CryptoInfo info) {
         
+        if (encryptWithoutHmac(info) == null) {
+            return null;
+        }
+        
+        // Generate HMAC
+        info.setHmac(generateHmac(info));
+        
+        return info;
+    
+    }
+    
+    /*
+     * First half of encrypt(): encrypts the message and saves the IV,
+     * leaving the HMAC to the caller (see generateHmac(byte[], KeyBundle)).
+     * Lets callers that need the Base64 ciphertext anyway encode it once.
+     * 
+     * Input: info bundle for encryption
+     * Output: the same bundle with message and IV set, null on failure
+     */
+    static CryptoInfo encryptWithoutHmac(CryptoInfo info) {
+        
+        byte[] iv = new byte[BLOCK_SIZE];
+        ivSource.nextIv(iv);
+        
         Cipher cipher = getCipher();
         try {
-            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(info.getKeys().getEncryptionKey(), 
-                        KEY_ALGORITHM_SPEC));
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+            cipher.init(Cipher.ENCRYPT_MODE, CipherCache.getEncryptionKey(info.getKeys(), 
+                        KEY_ALGORITHM_SPEC), new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
             return null;
         }
         
@@ -80,13 +125,9 @@ public class Cryptographer {
         info.setMessage(encryptedBytes);
         
         // Save IV
-        info.setIv(cipher.getIV());
-        
-        // Generate HMAC
-        info.setHmac(generateHmac(info));
+        info.setIv(iv);
         
         return info;
-    
     }
     
     /*
@@ -102,36 +143,142 @@ public class Cryptographer {
             return null;
         }
         
-        Cipher cipher = getCipher();
-        try {
-            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(info.getKeys().getEncryptionKey(), 
-                        KEY_ALGORITHM_SPEC), new IvParameterSpec(info.getIv()));
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-            return null;
-        } catch (InvalidAlgorithmParameterException e) {
-            e.printStackTrace();
+        return decryptVerified(info.getMessage(), info.getIv(), info.getKeys());
+    }
+    
+    /*
+     * Perform a decryption of the ciphertext exactly as it was received.
+     * The HMAC is checked over the Base64 bytes first, so a tampered or
+     * mis-keyed message is rejected before any decoding or AES work.
+     * 
+     * Input:   Base64 encoded ciphertext, Base64 encoded IV, raw HMAC,
+     *          keys for decryption/hmac
+     * Output:  decrypted byte[], null if the HMAC does not match
+     */
+    public static byte[] decrypt(byte[] base64CipherText, byte[] base64Iv, byte[] hmac, KeyBundle keys) {
+        if (!verifyHmac(base64CipherText, hmac, keys)) {
             return null;
         }
+        
+        return decryptVerified(Base64.decodeBase64(base64CipherText), 
+                               Base64.decodeBase64(base64Iv), keys);
+    }
     
-        return commonCrypto(cipher, info.getMessage());
+    /*
+     * Check an HMAC against the Base64 ciphertext as received
+     * 
+     * Input:   Base64 encoded ciphertext, raw HMAC, keys for hmac
+     * Output:  true if the HMAC is correct (compared in constant time)
+     */
+    public static boolean verifyHmac(byte[] base64CipherText, byte[] hmac, KeyBundle keys) {
+        Mac hmacHasher = CipherCache.getHmacHasher(keys);
+        return MessageDigest.isEqual(hmacHasher.doFinal(base64CipherText), hmac);
     }
     
     /*
-     * Make 2 random 256 bit keys (encryption and hmac)
+     * Same as above for Base64 ciphertext still in a String, fed to the
+     * Mac in chunks through a per-thread array instead of being copied
+     * whole. Non-ASCII characters are hashed as '?', as getBytes(US_ASCII)
+     * would.
      */
-    public static KeyBundle generateKeys() {
-        KeyGenerator keygen;
+    static boolean verifyHmac(CharSequence base64CipherText, byte[] hmac, KeyBundle keys) {
+        Mac hmacHasher = CipherCache.getHmacHasher(keys);
+        byte[] chunk = asciiChunks.get();
+        int length = base64CipherText.length();
+        for (int start = 0; start < length; start += chunk.length) {
+            int count = Math.min(chunk.length, length - start);
+            for (int i = 0; i < count; i++) {
+                char c = base64CipherText.charAt(start + i);
+                chunk[i] = c < 0x80 ? (byte) c : (byte) '?';
+            }
+            hmacHasher.update(chunk, 0, count);
+        }
+        return MessageDigest.isEqual(hmacHasher.doFinal(), hmac);
+    }
+    
+    /*
+     * Perform a streaming encryption. Memory use is bounded by a
+     * fixed buffer size rather than by the length of the message.
+     * 
+     * Input:   stream of cleartext, stream the Base64 encoded ciphertext
+     *          is written to, keys for encryption/hmac
+     * Output:  info bundle holding the IV, HMAC and keys (no message)
+     */
+    public static CryptoInfo encrypt(InputStream clearText, OutputStream base64CipherText, KeyBundle keys) throws IOException {
+        
+        // Use a dedicated Cipher/Mac, the thread's cached ones may be
+        // needed by someone else while this is blocked on I/O
+        Cipher cipher;
         try {
-            keygen = KeyGenerator.getInstance(KEY_ALGORITHM_SPEC);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
+            byte[] iv = new byte[BLOCK_SIZE];
+            ivSource.nextIv(iv);
+            cipher = CryptoProviderSelector.getDefault().newCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keys.getEncryptionKey(), KEY_ALGORITHM_SPEC), 
+                        new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
         }
+        Mac hmacHasher = HKDF.makeHmacHasher(HKDF.makeHmacKey(keys.getHmacKey()));
         
-        keygen.init(KEY_SIZE);
-        byte[] encryptionKey = keygen.generateKey().getEncoded();
-        byte[] hmacKey = keygen.generateKey().getEncoded();
+        // Ciphertext -> Base64 -> (HMAC, output)
+        OutputStream encoder = new Base64OutputStream(new MacOutputStream(base64CipherText, hmacHasher), true, 0, null);
+        
+        byte[] inBuffer = new byte[STREAM_BUFFER_SIZE];
+        byte[] outBuffer = new byte[STREAM_BUFFER_SIZE + BLOCK_SIZE];
+        try {
+            int n;
+            while ((n = clearText.read(inBuffer)) != -1) {
+                encoder.write(outBuffer, 0, cipher.update(inBuffer, 0, n, outBuffer, 0));
+            }
+            encoder.write(outBuffer, 0, cipher.doFinal(outBuffer, 0));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        
+        // Flushes the last Base64 quantum, leaves base64CipherText open
+        encoder.close();
+        
+        return new CryptoInfo(null, cipher.getIV(), hmacHasher.doFinal(), keys);
+    }
+    
+    /*
+     * Perform a streaming decryption, see DecryptingInputStream.
+     * 
+     * Cleartext is written to the output as it is decrypted, before the
+     * HMAC over the whole message can be checked. If this returns false
+     * everything written to clearText must be discarded.
+     * 
+     * Input:   stream of Base64 encoded ciphertext, stream the cleartext
+     *          is written to, info bundle with IV, HMAC and keys
+     * Output:  true if the HMAC verified
+     */
+    public static boolean decrypt(InputStream base64CipherText, OutputStream clearText, CryptoInfo info) throws IOException {
+        InputStream in = new DecryptingInputStream(base64CipherText, info.getIv(), info.getHmac(), info.getKeys());
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                clearText.write(buffer, 0, n);
+            }
+        } catch (DecryptingInputStream.HmacMismatchException e) {
+            return false;
+        }
+        return true;
+    }
+    
+    /*
+     * Make 2 random 256 bit keys (encryption and hmac)
+     */
+    public static KeyBundle generateKeys() {
+        
+        // AES and HMAC keys are plain random bytes, take them from the
+        // calling thread's generator rather than a new KeyGenerator's
+        // SecureRandom. Always the default source, never one set with
+        // setIvSource(), so keys can't be weakened by a test IvSource.
+        byte[] encryptionKey = new byte[KEY_SIZE / 8];
+        byte[] hmacKey = new byte[KEY_SIZE / 8];
+        DrbgIvSource.getDefault().nextBytes(encryptionKey);
+        DrbgIvSource.getDefault().nextBytes(hmacKey);
         return new KeyBundle(encryptionKey, hmacKey);
     }
     
@@ -140,44 +287,152 @@ public class Cryptographer {
      * encryption and decryption operations
      * 
      * Input: Cipher object, non-BaseXX-encoded byte[] input
-     * Output: encrypted/decrypted byte[]
+     * Output: encrypted/decrypted byte[], null if the input is not a
+     *         whole number of blocks or the padding is bad
      */
     private static byte[] commonCrypto(Cipher cipher, byte[] inputMessage) {
-        byte[] outputMessage = null;
         try {
-            outputMessage = cipher.doFinal(inputMessage);
+            return cipher.doFinal(inputMessage);
         } catch (IllegalBlockSizeException e) {
-            e.printStackTrace();
+            return null;
         } catch (BadPaddingException e) {
-            e.printStackTrace();
+            return null;
         }
-        return outputMessage;
+    }
+    
+    /*
+     * Decrypts a message whose HMAC has already been checked. Malformed
+     * input is rejected up front where possible so that failures don't
+     * cost an exception, and nothing is ever printed.
+     * 
+     * Input: raw ciphertext, raw IV, keys for decryption
+     * Output: decrypted byte[], null if decryption failed
+     */
+    static byte[] decryptVerified(byte[] cipherText, byte[] iv, KeyBundle keys) {
+        if (iv == null || iv.length != BLOCK_SIZE || 
+                cipherText.length == 0 || cipherText.length % BLOCK_SIZE != 0) {
+            return null;
+        }
+        
+        // Very large records are split across cores
+        ForkJoinPool pool = parallelDecryptPool;
+        if (cipherText.length >= parallelDecryptThreshold && pool.getParallelism() > 1) {
+            return ParallelDecryptor.decrypt(cipherText, iv, keys, pool);
+        }
+        
+        Cipher cipher = getCipher();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, CipherCache.getEncryptionKey(keys, 
+                        KEY_ALGORITHM_SPEC), new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    
+        return commonCrypto(cipher, cipherText);
+    }
+    
+    public static IvSource getIvSource() {
+        return ivSource;
+    }
+    
+    /*
+     * Input: Source of the IVs for every encryption, null for the
+     *        default per-thread DRBG (DrbgIvSource.getDefault())
+     */
+    public static void setIvSource(IvSource source) {
+        ivSource = source == null ? DrbgIvSource.getDefault() : source;
+    }
+    
+    public static int getParallelDecryptThreshold() {
+        return parallelDecryptThreshold;
+    }
+    
+    /*
+     * Input: Ciphertext size in bytes from which decryption is split into
+     *        segments decrypted in parallel, Integer.MAX_VALUE to never
+     *        split. The output is the same either way.
+     */
+    public static void setParallelDecryptThreshold(int threshold) {
+        parallelDecryptThreshold = Math.max(threshold, 2 * BLOCK_SIZE);
+    }
+    
+    public static ForkJoinPool getParallelDecryptPool() {
+        return parallelDecryptPool;
+    }
+    
+    /*
+     * Input: Pool the segments of large ciphertexts are decrypted on,
+     *        null for the common pool
+     */
+    public static void setParallelDecryptPool(ForkJoinPool pool) {
+        parallelDecryptPool = pool == null ? ForkJoinPool.commonPool() : pool;
+    }
+    
+    /*
+     * Drop the Cipher keys and HMAC hashers cached for a KeyBundle whose
+     * key bytes were changed in place. Not needed after its setters, or
+     * for bundles that are replaced rather than changed.
+     */
+    public static void invalidateKeyCache(KeyBundle keys) {
+        keys.keysChanged();
     }
     
     /*
      * Helper to get a Cipher object
      * Input: None
-     * Output: Cipher object
+     * Output: Cipher object owned by the calling thread
      */
     private static Cipher getCipher() {
-        Cipher cipher = null;
-        try {
-            cipher = Cipher.getInstance(TRANSFORMATION);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (NoSuchPaddingException e) {
-            e.printStackTrace();
+        return CipherCache.getCipher();
+    }
+    
+    /*
+     * Feeds everything written through it to an HMAC hasher.
+     * Closing it does not close the underlying stream.
+     */
+    private static class MacOutputStream extends FilterOutputStream {
+        
+        private final Mac hmacHasher;
+        
+        MacOutputStream(OutputStream out, Mac hmacHasher) {
+            super(out);
+            this.hmacHasher = hmacHasher;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            hmacHasher.update((byte) b);
+            out.write(b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            hmacHasher.update(b, off, len);
+            out.write(b, off, len);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            out.flush();
         }
-        return cipher;
     }
     
     /*
-     * Helper to verify HMAC
+     * Helper to verify HMAC in constant time
      * Input: CyrptoInfo
      * Output: true if HMAC is correct 
      */
     private static boolean verifyHmac(CryptoInfo bundle) {
-        return Arrays.equals(generateHmac(bundle), bundle.getHmac());
+        return MessageDigest.isEqual(generateHmac(bundle), bundle.getHmac());
+    }
+    
+    /*
+     * Helper to generate HMAC over Base64 encoded ciphertext
+     * Input: Base64 ciphertext, keys for hmac
+     * Output: HMAC
+     */
+    static byte[] generateHmac(byte[] base64CipherText, KeyBundle keys) {
+        return CipherCache.getHmacHasher(keys).doFinal(base64CipherText);
     }
     
     /*
@@ -186,7 +441,7 @@ public class Cryptographer {
      * Output: a generated HMAC for given cipher text
      */
     private static byte[] generateHmac(CryptoInfo bundle) {
-        Mac hmacHasher = HKDF.makeHmacHasher(HKDF.makeHmacKey(bundle.getKeys().getHmacKey()));
+        Mac hmacHasher = CipherCache.getHmacHasher(bundle.getKeys());
         return hmacHasher.doFinal(Base64.encodeBase64(bundle.getMessage()));
     }
     
@@ -0,0 +1,430 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.domain.WBOEnvelope;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener;
+
+/*
+ * Reactive decryption stage: subscribes to a publisher of WBOs (json
+ * Strings or UTF-8 bytes) and publishes their CryptoStatusBundles to
+ * one subscriber.
+ * 
+ * At most `parallelism` records are between the upstream and the
+ * subscriber at any time (requested, decrypting or waiting to be
+ * delivered), and more are only requested from upstream as results are
+ * delivered. A subscriber that stops requesting therefore stops the
+ * upstream too, instead of a whole collection piling up in between.
+ * 
+ * Records are decrypted on an executor, in parallel up to the same
+ * limit. Ordered processors deliver results in input order, unordered
+ * ones as soon as each is ready.
+ * 
+ * A crypto/keys record is a barrier: it is only decrypted once every
+ * record before it is done, and no record after it starts before it
+ * is done, so each record is decrypted with the keys that were current
+ * at its place in the stream. Records are parsed as they arrive to spot
+ * these, everything else happens on the executor.
+ * 
+ * An upstream error is passed on after the records already received
+ * have been delivered. A decrypt that throws, or a bad request from
+ * the subscriber, drops what has not been delivered and cancels the
+ * upstream.
+ */
+public abstract class DecryptProcessor<T> implements Flow.Processor<T, CryptoStatusBundle> {
+    
+    private final SyncCryptographer cryptographer;
+    private final String collection;
+    private final int parallelism;
+    private final boolean ordered;
+    private final Executor executor;
+    
+    // Serializes drain(), see there
+    private final AtomicInteger wip = new AtomicInteger();
+    
+    // Everything below is guarded by this
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super CryptoStatusBundle> downstream;
+    
+    // Set once downstream.onSubscribe() has returned, drain() doesn't
+    // signal the subscriber before
+    private boolean subscribed;
+    private long demand;
+    private int outstanding;
+    private int running;
+    private boolean barrier;
+    private final ArrayDeque<Slot<T>> waiting = new ArrayDeque<Slot<T>>();
+    private final ArrayDeque<Slot<T>> pending = new ArrayDeque<Slot<T>>();
+    private boolean upstreamDone;
+    private Throwable error;
+    private boolean failed;
+    private boolean finished;
+    
+    /*
+     * Input:   cryptographer holding the keys, collection the records belong
+     *          to (null for the default keys), maximum number of records
+     *          in flight (at least 1), true to keep input order, executor
+     *          to decrypt on
+     */
+    protected DecryptProcessor(SyncCryptographer cryptographer, String collection, int parallelism, 
+                               boolean ordered, Executor executor) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.cryptographer = cryptographer;
+        this.collection = collection;
+        this.parallelism = parallelism;
+        this.ordered = ordered;
+        this.executor = executor;
+    }
+    
+    /*
+     * Processor for json Strings, decrypting on the cryptographer's async
+     * executor with one record in flight per core, in order
+     */
+    public static DecryptProcessor<String> forStrings(SyncCryptographer cryptographer, String collection) {
+        return forStrings(cryptographer, collection, Runtime.getRuntime().availableProcessors(), true, 
+                          cryptographer.getAsyncExecutor());
+    }
+    
+    public static DecryptProcessor<String> forStrings(SyncCryptographer cryptographer, String collection, 
+                                                      int parallelism, boolean ordered, Executor executor) {
+        return new DecryptProcessor<String>(cryptographer, collection, parallelism, ordered, executor) {
+            @Override
+            protected WBOEnvelope parse(String wbo, CryptoMetricsListener metrics) {
+                return cryptographer.parseWBO(wbo, metrics);
+            }
+        };
+    }
+    
+    /*
+     * Same as above for UTF-8 encoded WBOs, no String is created
+     */
+    public static DecryptProcessor<byte[]> forBytes(SyncCryptographer cryptographer, String collection) {
+        return forBytes(cryptographer, collection, Runtime.getRuntime().availableProcessors(), true, 
+                        cryptographer.getAsyncExecutor());
+    }
+    
+    public static DecryptProcessor<byte[]> forBytes(SyncCryptographer cryptographer, String collection, 
+                                                    int parallelism, boolean ordered, Executor executor) {
+        return new DecryptProcessor<byte[]>(cryptographer, collection, parallelism, ordered, executor) {
+            @Override
+            protected WBOEnvelope parse(byte[] wbo, CryptoMetricsListener metrics) {
+                return cryptographer.parseWBO(wbo, 0, wbo.length, metrics);
+            }
+        };
+    }
+    
+    /*
+     * Input:   a record as received, listener for stage timings
+     * Output:  its envelope, null if it can't be parsed
+     */
+    protected abstract WBOEnvelope parse(T wbo, CryptoMetricsListener metrics);
+    
+    @Override
+    public void subscribe(Flow.Subscriber<? super CryptoStatusBundle> subscriber) {
+        synchronized (this) {
+            if (downstream == null) {
+                downstream = subscriber;
+                subscriber = null;
+            }
+        }
+        if (subscriber != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+                
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("DecryptProcessor allows only one subscriber"));
+            return;
+        }
+        
+        downstream.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {
+                Flow.Subscription cancelled = null;
+                synchronized (DecryptProcessor.this) {
+                    if (n <= 0) {
+                        cancelled = fail(new IllegalArgumentException("Non-positive request: " + n));
+                    } else {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                }
+                if (cancelled != null) {
+                    cancelled.cancel();
+                }
+                drain();
+            }
+            
+            public void cancel() {
+                Flow.Subscription cancelled;
+                synchronized (DecryptProcessor.this) {
+                    finished = true;
+                    waiting.clear();
+                    pending.clear();
+                    cancelled = upstream;
+                }
+                if (cancelled != null) {
+                    cancelled.cancel();
+                }
+            }
+        });
+        synchronized (this) {
+            subscribed = true;
+        }
+        drain();
+    }
+    
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        boolean duplicate;
+        synchronized (this) {
+            duplicate = upstream != null || finished || failed;
+            if (!duplicate) {
+                upstream = subscription;
+            }
+        }
+        if (duplicate) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+    
+    @Override
+    public void onNext(T wbo) {
+        WBOEnvelope envelope = parse(wbo, cryptographer.getMetricsListener());
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            waiting.add(new Slot<T>(wbo, envelope, SyncCryptographer.isCryptoKeys(envelope)));
+        }
+        drain();
+    }
+    
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            upstreamDone = true;
+            if (error == null) {
+                error = throwable;
+            }
+        }
+        drain();
+    }
+    
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+    
+    /*
+     * Drop everything not yet delivered and report the error once what
+     * is running is done. Called holding the lock, the caller cancels
+     * the returned upstream (if any) once it has let go of it, as a
+     * synchronous upstream may call back in.
+     */
+    private Flow.Subscription fail(Throwable throwable) {
+        if (error == null) {
+            error = throwable;
+        }
+        failed = true;
+        upstreamDone = true;
+        waiting.clear();
+        pending.clear();
+        return upstream;
+    }
+    
+    /*
+     * Called from the executor once a record is decrypted
+     */
+    private void complete(Slot<T> slot, CryptoStatusBundle result, Throwable failure) {
+        Flow.Subscription cancelled = null;
+        synchronized (this) {
+            slot.result = result;
+            slot.done = true;
+            running--;
+            if (slot.keys) {
+                barrier = false;
+            }
+            if (failure != null) {
+                cancelled = fail(failure);
+            } else if (!ordered && !failed) {
+                pending.add(slot);
+            }
+        }
+        if (cancelled != null) {
+            cancelled.cancel();
+        }
+        drain();
+    }
+    
+    /*
+     * Moves records along: starts waiting records, delivers finished
+     * ones, requests more from upstream and signals the end. Whoever
+     * calls it first runs the loop, other threads just make it go round
+     * again, so the subscriber is never called concurrently.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            startWaiting();
+            
+            // Deliver one at a time, the subscriber is called without the lock
+            for (;;) {
+                CryptoStatusBundle result;
+                Flow.Subscriber<? super CryptoStatusBundle> subscriber;
+                synchronized (this) {
+                    Slot<T> head = pending.peek();
+                    if (finished || !subscribed || demand == 0 || head == null || !head.done) {
+                        break;
+                    }
+                    pending.poll();
+                    demand--;
+                    outstanding--;
+                    result = head.result;
+                    subscriber = downstream;
+                }
+                subscriber.onNext(result);
+            }
+            
+            // Refill the window, or finish once it has drained
+            Flow.Subscription subscription = null;
+            long request = 0;
+            Flow.Subscriber<? super CryptoStatusBundle> terminated = null;
+            Throwable terminalError = null;
+            synchronized (this) {
+                if (!finished && subscribed) {
+                    if (upstreamDone) {
+                        if (waiting.isEmpty() && pending.isEmpty() && running == 0) {
+                            finished = true;
+                            terminated = downstream;
+                            terminalError = error;
+                        }
+                    } else if (upstream != null && outstanding < parallelism) {
+                        subscription = upstream;
+                        request = parallelism - outstanding;
+                        outstanding = parallelism;
+                    }
+                }
+            }
+            if (subscription != null) {
+                subscription.request(request);
+            }
+            if (terminated != null) {
+                if (terminalError != null) {
+                    terminated.onError(terminalError);
+                } else {
+                    terminated.onComplete();
+                }
+            }
+            
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+    
+    /*
+     * Hand waiting records to the executor, respecting crypto/keys barriers
+     */
+    private void startWaiting() {
+        for (;;) {
+            final Slot<T> slot;
+            synchronized (this) {
+                slot = waiting.peek();
+                if (finished || slot == null || barrier || running >= parallelism || (slot.keys && running > 0)) {
+                    return;
+                }
+                waiting.poll();
+                running++;
+                barrier = slot.keys;
+                if (ordered) {
+                    pending.add(slot);
+                }
+            }
+            
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        CryptoStatusBundle result = null;
+                        Throwable failure = null;
+                        try {
+                            result = cryptographer.decryptWBO(slot.envelope, slot.wbo, collection);
+                        } catch (RuntimeException e) {
+                            failure = e;
+                        }
+                        complete(slot, result, failure);
+                    }
+                });
+            } catch (RuntimeException e) {
+                complete(slot, null, e);
+            }
+        }
+    }
+    
+    /*
+     * A record on its way through
+     */
+    private static final class Slot<W> {
+        
+        final W wbo;
+        final WBOEnvelope envelope;
+        final boolean keys;
+        CryptoStatusBundle result;
+        boolean done;
+        
+        Slot(W wbo, WBOEnvelope envelope, boolean keys) {
+            this.wbo = wbo;
+            this.envelope = envelope;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * Bounded, thread-safe cache of decrypted records, so a WBO downloaded
+ * again (full resync, retry, another device's upload seen twice) is not
+ * verified and decrypted again.
+ * 
+ * Entries are keyed by (key fingerprint, id, hmac) and evicted least
+ * recently used first once their total size passes maxBytes. A hit also
+ * requires the ciphertext and IV to be exactly the ones that were
+ * verified when the entry was stored, so a payload that reuses a cached
+ * id and hmac with anything else misses and goes through the full HMAC
+ * check. The fingerprint is a SHA-256 of both keys, recomputed when a
+ * bundle's keys change, so entries stored under other keys never match;
+ * SyncCryptographer also clears the cache whenever keys are installed.
+ * crypto/keys records are never cached, their cleartext is the bulk keys.
+ */
+public class DecryptedRecordCache {
+    
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    
+    // Rough per-entry cost of the map entry, key, value and Strings
+    private static final int ENTRY_OVERHEAD = 160;
+    
+    private static final String ID_CRYPTO_KEYS = "keys";
+    
+    private final long maxBytes;
+    private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true);
+    private final WeakHashMap<KeyBundle, Fingerprint> fingerprints = new WeakHashMap<KeyBundle, Fingerprint>();
+    private long bytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    
+    public DecryptedRecordCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+    
+    /*
+     * Input: Total size of the cached records, in bytes
+     */
+    public DecryptedRecordCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    /*
+     * Input:   keys the record would be decrypted with, and the id,
+     *          hex hmac, Base64 ciphertext and Base64 IV as received
+     * Output:  A copy of the cleartext, null on a miss
+     */
+    public byte[] get(KeyBundle keys, String id, String hmac, String cipherText, String iv) {
+        if (id.equalsIgnoreCase(ID_CRYPTO_KEYS)) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(new CacheKey(fingerprint(keys), id, hmac));
+            if (entry != null && entry.cipherText.equals(cipherText) && entry.iv.equals(iv)) {
+                hits.increment();
+                return entry.clearText.clone();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+    
+    /*
+     * Store a record. Only call this once the hmac has been verified
+     * against the ciphertext with these keys. crypto/keys is ignored.
+     * 
+     * Input:   Same as get(), and the cleartext (copied)
+     */
+    public void put(KeyBundle keys, String id, String hmac, String cipherText, String iv, byte[] clearText) {
+        if (id.equalsIgnoreCase(ID_CRYPTO_KEYS)) {
+            return;
+        }
+        long size = ENTRY_OVERHEAD + id.length() + hmac.length() + cipherText.length() + iv.length() + clearText.length;
+        if (size > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(cipherText, iv, clearText.clone(), size);
+        synchronized (entries) {
+            Entry previous = entries.put(new CacheKey(fingerprint(keys), id, hmac), entry);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += size;
+            
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+    }
+    
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            fingerprints.clear();
+            bytes = 0;
+        }
+    }
+    
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+    
+    /*
+     * Output: Estimated size of everything cached, in bytes
+     */
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    /*
+     * Helper to get the fingerprint of a KeyBundle, computed once per
+     * bundle and again whenever its keys change. Called holding the lock.
+     */
+    private Fingerprint fingerprint(KeyBundle keys) {
+        int generation = keys.getGeneration();
+        Fingerprint fingerprint = fingerprints.get(keys);
+        if (fingerprint == null || fingerprint.generation != generation) {
+            ByteBuffer hash = ByteBuffer.wrap(Utils.keyFingerprint(keys));
+            fingerprint = new Fingerprint(hash.getLong(), hash.getLong(), hash.getLong(), hash.getLong(), generation);
+            fingerprints.put(keys, fingerprint);
+        }
+        return fingerprint;
+    }
+    
+    private static final class Fingerprint {
+        
+        private final long a, b, c, d;
+        
+        // KeyBundle generation hashed, not part of the value
+        private final int generation;
+        
+        Fingerprint(long a, long b, long c, long d, int generation) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+            this.generation = generation;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (int) a;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) o;
+            return a == other.a && b == other.b && c == other.c && d == other.d;
+        }
+    }
+    
+    /*
+     * (fingerprint, id, hmac) compared by value
+     */
+    private static final class CacheKey {
+        
+        private final Fingerprint fingerprint;
+        private final String id;
+        private final String hmac;
+        private final int hash;
+        
+        CacheKey(Fingerprint fingerprint, String id, String hmac) {
+            this.fingerprint = fingerprint;
+            this.id = id;
+            this.hmac = hmac;
+            this.hash = 31 * (31 * fingerprint.hashCode() + id.hashCode()) + hmac.hashCode();
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && fingerprint.equals(other.fingerprint) && 
+                   id.equals(other.id) && hmac.equals(other.hmac);
+        }
+    }
+    
+    private static final class Entry {
+        
+        private final String cipherText;
+        private final String iv;
+        private final byte[] clearText;
+        private final long size;
+        
+        Entry(String cipherText, String iv, byte[] clearText, long size) {
+            this.cipherText = cipherText;
+            this.iv = iv;
+            this.clearText = clearText;
+            this.size = size;
+        }
+    }
+}
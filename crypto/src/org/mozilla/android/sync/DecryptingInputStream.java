@@ -0,0 +1,211 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * Reads Base64 encoded ciphertext from another stream and returns the
+ * decrypted cleartext, using fixed size buffers whatever the payload
+ * size. The HMAC is computed over the Base64 input as it is read.
+ * 
+ * The HMAC can only be checked once all the input has been read, so
+ * cleartext is returned before it has been verified. At the end of
+ * the input the HMAC is checked before the final block is released,
+ * and a mismatch throws HmacMismatchException. Callers must discard
+ * everything they read from the stream in that case.
+ */
+public class DecryptingInputStream extends InputStream {
+    
+    private final InputStream base64CipherText;
+    private final Cipher cipher;
+    private final Mac hmacHasher;
+    private final byte[] expectedHmac;
+    
+    private final byte[] single = new byte[1];
+    private final byte[] inBuffer = new byte[Cryptographer.STREAM_BUFFER_SIZE];
+    private final byte[] outBuffer = new byte[Cryptographer.STREAM_BUFFER_SIZE + Cryptographer.BLOCK_SIZE];
+    private int outPosition;
+    private int outLimit;
+    private boolean finished;
+    
+    /*
+     * Input:   Stream of Base64 encoded ciphertext, IV, expected HMAC and
+     *          keys, all non-BaseXX-encoded
+     */
+    public DecryptingInputStream(InputStream base64CipherText, byte[] iv, byte[] hmac, KeyBundle keys) throws IOException {
+        try {
+            cipher = CryptoProviderSelector.getDefault().newCipher();
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys.getEncryptionKey(), 
+                        Cryptographer.KEY_ALGORITHM_SPEC), new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        
+        this.hmacHasher = HKDF.makeHmacHasher(HKDF.makeHmacKey(keys.getHmacKey()));
+        this.expectedHmac = hmac;
+        this.base64CipherText = new Base64InputStream(new MacInputStream(base64CipherText, hmacHasher), false);
+    }
+    
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        
+        while (outPosition == outLimit) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        
+        int n = Math.min(len, outLimit - outPosition);
+        System.arraycopy(outBuffer, outPosition, b, off, n);
+        outPosition += n;
+        return n;
+    }
+    
+    @Override
+    public int available() {
+        return outLimit - outPosition;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        base64CipherText.close();
+    }
+    
+    /*
+     * Decrypt the next chunk of input into outBuffer
+     * Output: false once everything has been returned
+     */
+    private boolean fill() throws IOException {
+        if (finished) {
+            return false;
+        }
+        
+        outPosition = 0;
+        try {
+            int n = base64CipherText.read(inBuffer, 0, inBuffer.length);
+            if (n > 0) {
+                outLimit = cipher.update(inBuffer, 0, n, outBuffer, 0);
+            } else if (n == -1) {
+                finished = true;
+                
+                // Everything has been hashed now, check before releasing the last block
+                if (!MessageDigest.isEqual(hmacHasher.doFinal(), expectedHmac)) {
+                    outLimit = 0;
+                    throw new HmacMismatchException();
+                }
+                outLimit = cipher.doFinal(outBuffer, 0);
+            } else {
+                outLimit = 0;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        return true;
+    }
+    
+    /*
+     * Thrown at the end of the stream if the ciphertext
+     * does not match the expected HMAC
+     */
+    public static class HmacMismatchException extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        public HmacMismatchException() {
+            super("HMAC verification failed");
+        }
+    }
+    
+    /*
+     * Feeds everything read through it to an HMAC hasher
+     */
+    private static class MacInputStream extends InputStream {
+        
+        private final InputStream in;
+        private final Mac hmacHasher;
+        
+        MacInputStream(InputStream in, Mac hmacHasher) {
+            this.in = in;
+            this.hmacHasher = hmacHasher;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                hmacHasher.update((byte) b);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                hmacHasher.update(b, off, n);
+            }
+            return n;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
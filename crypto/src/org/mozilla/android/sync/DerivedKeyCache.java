@@ -0,0 +1,200 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * Bounded, thread-safe cache of the keys HKDF derives from a sync key
+ * and username to encrypt/decrypt the crypto/keys bundle.
+ * 
+ * Entries are evicted least recently used first. The cache keeps its
+ * own copies of the sync key and derived keys, and zeroes them when an
+ * entry is evicted or the cache is cleared. Callers get fresh copies so
+ * their KeyBundles are never zeroed under them.
+ */
+public class DerivedKeyCache {
+    
+    public static final int DEFAULT_CAPACITY = 1024;
+    
+    private static final DerivedKeyCache defaultCache = new DerivedKeyCache(DEFAULT_CAPACITY);
+    
+    private final int capacity;
+    private final LinkedHashMap<CacheKey, byte[][]> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    
+    public DerivedKeyCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<CacheKey, byte[][]>(16, 0.75f, true) {
+            
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, byte[][]> eldest) {
+                if (size() > DerivedKeyCache.this.capacity) {
+                    zero(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    /*
+     * Cache shared by every SyncCryptographer unless one is set explicitly
+     */
+    public static DerivedKeyCache getDefault() {
+        return defaultCache;
+    }
+    
+    /*
+     * Get the keys for the crypto/keys bundle, deriving them on a miss
+     * 
+     * Input:   sync key, username
+     * Output:  KeyBundle owned by the caller
+     */
+    public KeyBundle getCryptoKeysBundleKeys(byte[] syncKey, byte[] username) {
+        CacheKey key = new CacheKey(syncKey, username);
+        
+        byte[][] derived;
+        synchronized (entries) {
+            derived = entries.get(key);
+            if (derived != null) {
+                hits.increment();
+                return copyOf(derived);
+            }
+        }
+        misses.increment();
+        
+        // Derive outside the lock, losing a race only costs a second derivation
+        derived = HKDF.getCryptoKeysBundleKeys(syncKey, username);
+        CacheKey ownedKey = new CacheKey(syncKey.clone(), username.clone());
+        synchronized (entries) {
+            byte[][] existing = entries.get(ownedKey);
+            if (existing != null) {
+                zero(ownedKey, derived);
+                return copyOf(existing);
+            }
+            
+            // Copy first, the put may evict (and zero) the new entry itself
+            KeyBundle keys = copyOf(derived);
+            entries.put(ownedKey, derived);
+            return keys;
+        }
+    }
+    
+    /*
+     * Evict every entry, zeroing its key material
+     */
+    public void clear() {
+        synchronized (entries) {
+            Iterator<Map.Entry<CacheKey, byte[][]>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<CacheKey, byte[][]> entry = it.next();
+                zero(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+    }
+    
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    private static KeyBundle copyOf(byte[][] derived) {
+        return new KeyBundle(derived[0].clone(), derived[1].clone());
+    }
+    
+    private static void zero(CacheKey key, byte[][] derived) {
+        Arrays.fill(key.syncKey, (byte) 0);
+        Arrays.fill(derived[0], (byte) 0);
+        Arrays.fill(derived[1], (byte) 0);
+    }
+    
+    /*
+     * (syncKey, username) compared by value
+     */
+    private static class CacheKey {
+        
+        private final byte[] syncKey;
+        private final byte[] username;
+        private final int hash;
+        
+        CacheKey(byte[] syncKey, byte[] username) {
+            this.syncKey = syncKey;
+            this.username = username;
+            this.hash = 31 * Arrays.hashCode(syncKey) + Arrays.hashCode(username);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && Arrays.equals(syncKey, other.syncKey) &&
+                   Arrays.equals(username, other.username);
+        }
+    }
+}
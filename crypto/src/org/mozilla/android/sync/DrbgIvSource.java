@@ -0,0 +1,147 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/*
+ * Default IvSource: a DRBG per thread that generates random bytes in
+ * bulk and hands them out from a buffer.
+ * 
+ * A shared SecureRandom is synchronized, so many threads encrypting
+ * at once queue on it for every 16 byte IV. Here each thread has its
+ * own generator, asked for BUFFER_SIZE bytes at a time, and reseeded
+ * from the system entropy source every RESEED_INTERVAL bytes. Bytes
+ * are wiped from the buffer as they are handed out.
+ * 
+ * Also used by Cryptographer.generateKeys(), through nextBytes().
+ */
+public class DrbgIvSource implements IvSource {
+    
+    static final int BUFFER_SIZE =          4096;
+    static final long RESEED_INTERVAL =     1 << 20;
+    
+    private static final int SECURITY_STRENGTH = 256;
+    private static final DrbgIvSource DEFAULT = new DrbgIvSource();
+    
+    private final ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+        @Override
+        protected Generator initialValue() {
+            return new Generator();
+        }
+    };
+    
+    /*
+     * Output: instance shared by all users that don't need their own
+     */
+    public static DrbgIvSource getDefault() {
+        return DEFAULT;
+    }
+    
+    @Override
+    public void nextIv(byte[] iv) {
+        nextBytes(iv, 0, iv.length);
+    }
+    
+    public void nextBytes(byte[] bytes) {
+        nextBytes(bytes, 0, bytes.length);
+    }
+    
+    /*
+     * Input: array to fill with random bytes, offset and length to fill
+     */
+    public void nextBytes(byte[] bytes, int offset, int length) {
+        generators.get().nextBytes(bytes, offset, length);
+    }
+    
+    /*
+     * Per-thread generator and buffer
+     */
+    private static final class Generator {
+        
+        private final SecureRandom random = newSecureRandom();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = BUFFER_SIZE;
+        private long sinceReseed;
+        
+        void nextBytes(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                if (position == BUFFER_SIZE) {
+                    refill();
+                }
+                int n = Math.min(length, BUFFER_SIZE - position);
+                System.arraycopy(buffer, position, bytes, offset, n);
+                Arrays.fill(buffer, position, position + n, (byte) 0);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+        
+        private void refill() {
+            if (sinceReseed >= RESEED_INTERVAL) {
+                try {
+                    random.reseed();
+                } catch (UnsupportedOperationException e) {
+                    // Not a DRBG, keep relying on its own seeding
+                }
+                sinceReseed = 0;
+            }
+            random.nextBytes(buffer);
+            sinceReseed += BUFFER_SIZE;
+            position = 0;
+        }
+        
+        /*
+         * Output: a DRBG that supports reseeding, or the platform default
+         *         SecureRandom if there is none
+         */
+        private static SecureRandom newSecureRandom() {
+            try {
+                return SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(
+                        SECURITY_STRENGTH, DrbgParameters.Capability.RESEED_ONLY, null));
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    }
+    
+}
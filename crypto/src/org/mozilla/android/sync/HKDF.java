@@ -37,10 +37,9 @@
 
 package org.mozilla.android.sync;
 
-import java.security.InvalidKeyException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -49,11 +48,30 @@ import javax.crypto.spec.SecretKeySpec;
  * A standards-compliant implementation of RFC 5869
  * for HMAC-based Key Derivation Function.
  * HMAC uses HMAC SHA256 standard.
+ * 
+ * These return new arrays, see HkdfEngine to derive into existing ones.
  */
 public class HKDF {
     
     static final int BLOCKSIZE = 256/8;
-    static final byte[] HMAC_INPUT = "Sync-AES_256_CBC-HMAC256".getBytes();
+    static final byte[] HMAC_INPUT = "Sync-AES_256_CBC-HMAC256".getBytes(StandardCharsets.US_ASCII);
+    
+    private static final ThreadLocal<HkdfEngine> engines = new ThreadLocal<HkdfEngine>() {
+        @Override
+        protected HkdfEngine initialValue() {
+            return new HkdfEngine();
+        }
+    };
+    
+    /*
+     * Output: the calling thread's HkdfEngine, shared by everything that
+     *         derives keys on that thread. Callers must not hold on to it
+     *         and should clear() it when done. Package-private for
+     *         AccountProvisioner.
+     */
+    static HkdfEngine getEngine() {
+        return engines.get();
+    }
     
     /*
      * Step 1 of RFC 5869
@@ -62,9 +80,11 @@ public class HKDF {
      * Output: PRK (pseudorandom key)
      */
     public static byte[] hkdfExtract(byte[] salt, byte[] IKM) {
-        Key hmacKey = makeHmacKey(salt);
-        Mac hmacHasher = makeHmacHasher(hmacKey);
-        return digestBytes(IKM, hmacHasher);
+        HkdfEngine engine = getEngine();
+        byte[] prk = new byte[BLOCKSIZE];
+        engine.extract(salt, IKM, prk, 0);
+        engine.clear();
+        return prk;
     }
     
     /*
@@ -73,21 +93,12 @@ public class HKDF {
      * Output: OKM (output keyring material)
      */
     public static byte[] hkdfExpand(byte[] prk, byte[] info, int len) {
-        
-        Key hmacKey = makeHmacKey(prk);
-        Mac hmacHasher = makeHmacHasher(hmacKey);
-        
-        byte[] T = "".getBytes();
-        byte[] Tn = "".getBytes();
-        
-        int iterations = (int) Math.ceil(((double)len)/((double)BLOCKSIZE));
-        for (int i = 0; i < iterations; i++) {
-            Tn = digestBytes(Utils.concatAll
-                    (Tn, info, Utils.hex2Byte(Integer.toHexString(i + 1))), hmacHasher);
-            T = Utils.concatAll(T, Tn);
-        }
-        
-        return Arrays.copyOfRange(T, 0, len); 
+        HkdfEngine engine = getEngine();
+        byte[] okm = new byte[len];
+        engine.init(prk);
+        engine.expand(info, okm, 0, len);
+        engine.clear();
+        return okm;
     }
     
     /*
@@ -101,16 +112,10 @@ public class HKDF {
      * Output: 2 keys returned in encryptionKey (at index 0) and hmacKey (at index 1) 
      */
     public static byte[][] getCryptoKeysBundleKeys(byte[] syncKey, byte[] username) {
-        
-        Key key = makeHmacKey(syncKey);
-        Mac hmacHasher = makeHmacHasher(key);
-        
-        byte[][] ret = new byte[2][0];
-        ret[0] = digestBytes(Utils.concatAll
-                ("".getBytes(), HMAC_INPUT, username, Utils.hex2Byte(Integer.toHexString(1))), hmacHasher);
-        ret[1] = digestBytes(Utils.concatAll
-                (ret[0], HMAC_INPUT, username, Utils.hex2Byte(Integer.toHexString(2))), hmacHasher);
-        
+        HkdfEngine engine = getEngine();
+        byte[][] ret = new byte[2][BLOCKSIZE];
+        engine.deriveCryptoKeysBundleKeys(syncKey, username, ret[0], ret[1]);
+        engine.clear();
         return ret;
     }
     
@@ -130,35 +135,16 @@ public class HKDF {
      * Make an HMAC hasher
      * Input: Key hmacKey
      * Ouput: An HMAC Hasher
+     * Throws: IllegalStateException if HmacSHA256 is unavailable or
+     *         won't take the key
      */
     public static Mac makeHmacHasher(Key hmacKey) {
-        
-        // HMAC hasher
-        Mac hmacHasher = null;
-        try {
-            hmacHasher = Mac.getInstance("hmacSHA256");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        
         try {
+            Mac hmacHasher = CryptoProviderSelector.getDefault().newMac();
             hmacHasher.init(hmacKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+            return hmacHasher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can't make an HMAC hasher", e);
         }
-        
-        return hmacHasher;
-    }
-    
-    /*
-     * Hash bytes with given hasher
-     * Input: message to hash, HMAC hasher
-     * Output: hashed byte[].
-     */
-    private static byte[] digestBytes(byte[] message, Mac hasher) {
-        hasher.update(message);
-        byte[] ret = hasher.doFinal();
-        hasher.reset();
-        return ret;
     }
-}
\ No newline at end of file
+}
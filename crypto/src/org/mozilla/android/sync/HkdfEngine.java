@@ -0,0 +1,186 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Reusable RFC 5869 HKDF with HMAC-SHA256.
+ * 
+ * An engine is keyed once per PRK (init() or extract()) and can then
+ * expand any number of times. T(n-1) || info || n is fed to the Mac
+ * piece by piece rather than concatenated, and each block is finished
+ * into the engine's own buffer. What is left is the JCE's own: the Mac
+ * returns a fresh array per block inside doFinal(), and keying makes
+ * one SecretKeySpec.
+ * 
+ * The Mac comes from CryptoProviderSelector, so HKDF uses the same
+ * pinned provider as the rest of the crypto.
+ * 
+ * Engines are not thread-safe, use one per thread. They hold key
+ * material until clear() is called or they are keyed again.
+ */
+public class HkdfEngine {
+    
+    public static final int HASH_LENGTH =       32;
+    public static final int MAX_OUTPUT_LENGTH = 255 * HASH_LENGTH;
+    
+    private static final int BLOCK_LENGTH =     64;
+    
+    private final Mac mac;
+    private final byte[] block = new byte[HASH_LENGTH];
+    private final byte[] keys = new byte[2 * HASH_LENGTH];
+    
+    public HkdfEngine() {
+        try {
+            mac = CryptoProviderSelector.getDefault().newMac();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /*
+     * Key the engine for expand()
+     * Input: PRK (any length, an empty key is all zeros)
+     */
+    public void init(byte[] prk) {
+        init(prk, 0, prk.length);
+    }
+    
+    public void init(byte[] prk, int offset, int length) {
+        // SecretKeySpec won't take an empty key, HMAC pads keys with
+        // zeros so a block of zeros is the same key
+        SecretKeySpec key = length == 0 ? new SecretKeySpec(new byte[BLOCK_LENGTH], "HmacSHA256")
+                                        : new SecretKeySpec(prk, offset, length, "HmacSHA256");
+        try {
+            mac.init(key);
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /*
+     * Step 1 of RFC 5869, also keys the engine with the PRK for expand()
+     * Input: salt (empty for none), IKM, array for the PRK (HASH_LENGTH bytes)
+     */
+    public void extract(byte[] salt, byte[] ikm, byte[] prk, int offset) {
+        init(salt);
+        mac.update(ikm);
+        finish(prk, offset);
+        init(prk, offset, HASH_LENGTH);
+    }
+    
+    /*
+     * Step 2 of RFC 5869 with the PRK the engine was keyed with
+     * Input: info, array for the OKM, offset, length (at most MAX_OUTPUT_LENGTH)
+     */
+    public void expand(byte[] info, byte[] okm, int offset, int length) {
+        expand(info, null, okm, offset, length);
+    }
+    
+    /*
+     * Same as above with info given in two parts (info || moreInfo),
+     * so callers don't need to concatenate them
+     */
+    public void expand(byte[] info, byte[] moreInfo, byte[] okm, int offset, int length) {
+        if (length < 0 || length > MAX_OUTPUT_LENGTH) {
+            throw new IllegalArgumentException("HKDF output length out of range: " + length);
+        }
+        
+        // T(n) = HMAC(PRK, T(n-1) || info || n), T(0) is empty. The Mac
+        // is left keyed with the PRK after each doFinal.
+        for (int n = 1, done = 0; done < length; n++) {
+            if (n > 1) {
+                mac.update(block);
+            }
+            mac.update(info);
+            if (moreInfo != null) {
+                mac.update(moreInfo);
+            }
+            mac.update((byte) n);
+            finish(block, 0);
+            
+            int count = Math.min(HASH_LENGTH, length - done);
+            System.arraycopy(block, 0, okm, offset + done, count);
+            done += count;
+        }
+    }
+    
+    /*
+     * Mozilla's variant for the keys of the crypto/keys bundle: expand
+     * two blocks with the sync key as PRK and HKDF.HMAC_INPUT || username
+     * as info, the first block is the encryption key, the second the
+     * hmac key.
+     * 
+     * Input: sync key, username, arrays for both keys (HASH_LENGTH bytes)
+     */
+    public void deriveCryptoKeysBundleKeys(byte[] syncKey, byte[] username, byte[] encryptionKey, byte[] hmacKey) {
+        init(syncKey);
+        expand(HKDF.HMAC_INPUT, username, keys, 0, keys.length);
+        System.arraycopy(keys, 0, encryptionKey, 0, HASH_LENGTH);
+        System.arraycopy(keys, HASH_LENGTH, hmacKey, 0, HASH_LENGTH);
+        Arrays.fill(keys, (byte) 0);
+    }
+    
+    /*
+     * Wipe all key material held by the engine: the Mac is keyed with
+     * zeros, which overwrites the pads it kept for the PRK
+     */
+    public void clear() {
+        Arrays.fill(block, (byte) 0);
+        init(block, 0, 0);
+    }
+    
+    /*
+     * Helper to finish an HMAC into out, which resets the Mac to the
+     * start of a new HMAC with the same key
+     */
+    private void finish(byte[] out, int offset) {
+        try {
+            mac.doFinal(out, offset);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
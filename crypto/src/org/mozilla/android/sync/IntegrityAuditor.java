@@ -0,0 +1,270 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.mozilla.android.sync.domain.RecordFailure;
+import org.mozilla.android.sync.domain.WBOEnvelope;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener;
+
+/*
+ * Checks that stored records are intact and decryptable under the
+ * current keys, without decrypting them (see SyncCryptographer.verifyWBO).
+ * Only the envelope is parsed and the HMAC checked, so no AES work is
+ * done and no cleartext is ever produced.
+ * 
+ * Records are taken from the input a window at a time, like
+ * UploadBatchEncryptor, and checked in parallel. All records in a call
+ * are checked with the keys that were set when it started.
+ * 
+ * Also runs from the command line, reading one WBO per line:
+ * IntegrityAuditor <username> <crypto/keys WBO file> [collection] [WBO file or -]
+ * The sync key is never taken from the arguments, where other users can
+ * see it. It is read from the file named by SYNC_KEY_FILE, else from
+ * SYNC_KEY, else prompted for on the console.
+ * It prints the count per CryptoStatus, then a FAILED line per failing
+ * record, and exits with 0 if all records are OK, 1 if not and 2 if
+ * the audit could not be run.
+ */
+public class IntegrityAuditor {
+    
+    // Split threshold for WindowedBatch, higher than for decrypting as
+    // there is less work per record
+    private static final int SPLIT_THRESHOLD =      64;
+    
+    private static final String ENV_SYNC_KEY =      "SYNC_KEY";
+    private static final String ENV_SYNC_KEY_FILE = "SYNC_KEY_FILE";
+    
+    private final SyncCryptographer cryptographer;
+    
+    /*
+     * Input: cryptographer whose keys are checked against
+     */
+    public IntegrityAuditor(SyncCryptographer cryptographer) {
+        this.cryptographer = cryptographer;
+    }
+    
+    public Result audit(List<byte[]> wbos, String collection) {
+        return audit(wbos.iterator(), collection, ForkJoinPool.commonPool());
+    }
+    
+    /*
+     * Input:   records as UTF-8 encoded WBO json, the collection they
+     *          belong to (null for the default keys), pool to run on
+     * Output:  Result with the count per status and the failing records
+     */
+    public Result audit(Iterator<byte[]> wbos, String collection, ForkJoinPool pool) {
+        final Result result = new Result();
+        final KeyBundle keys = cryptographer.getKeyRegistry().getKeys(collection);
+        try {
+            new WindowedBatch<byte[], Void>(SPLIT_THRESHOLD) {
+                @Override
+                void process(byte[] wbo, long position, Slot<Void> slot) {
+                    WBOEnvelope envelope = cryptographer.parseWBO(wbo, 0, wbo.length, CryptoMetricsListener.NOOP);
+                    String id = envelope == null ? null : envelope.getId();
+                    CryptoStatus status = cryptographer.verifyWBO(envelope, keys);
+                    if (status == CryptoStatus.OK) {
+                        slot.succeed(id, null);
+                    } else {
+                        slot.fail(id, status);
+                    }
+                }
+                
+                @Override
+                void accept(byte[] wbo, long position, Slot<Void> slot) {
+                    result.counters.increment(slot.getStatus());
+                    if (!slot.isOk()) {
+                        result.addFailure(slot.getId(), position, slot.getStatus());
+                    }
+                }
+            }.run(wbos, 0, pool);
+        } catch (IOException e) {
+            // Nothing here does I/O
+            throw new IllegalStateException(e);
+        }
+        return result;
+    }
+    
+    /*
+     * Outcome of an audit
+     */
+    public static final class Result extends BatchResult {
+        
+        private final CryptoStatusCounters counters = new CryptoStatusCounters();
+        
+        /*
+         * Output: number of records checked per status
+         */
+        public CryptoStatusCounters getCounters() {
+            return counters;
+        }
+        
+        public boolean isClean() {
+            return getFailureCount() == 0;
+        }
+    }
+    
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage: IntegrityAuditor <username> <crypto/keys WBO file> " +
+                               "[collection] [WBO file or -]");
+            System.err.println("The sync key is read from the file named by " + ENV_SYNC_KEY_FILE + 
+                               ", else from " + ENV_SYNC_KEY + ", else from the console");
+            System.exit(2);
+        }
+        
+        try {
+            String syncKey = readSyncKey();
+            if (syncKey == null || syncKey.isEmpty()) {
+                System.err.println("No sync key, set " + ENV_SYNC_KEY_FILE + " or " + ENV_SYNC_KEY);
+                System.exit(2);
+            }
+            SyncCryptographer cryptographer = new SyncCryptographer(args[0], syncKey);
+            byte[] keysWBO = Files.readAllBytes(Paths.get(args[1]));
+            CryptoStatus keysStatus = cryptographer.decryptWBO(keysWBO).getStatus();
+            if (keysStatus != CryptoStatus.OK) {
+                System.err.println("Could not decrypt crypto/keys: " + keysStatus);
+                System.exit(2);
+            }
+            
+            String collection = args.length > 2 ? args[2] : null;
+            boolean stdin = args.length < 4 || args[3].equals("-");
+            InputStream in = stdin ? System.in : Files.newInputStream(Paths.get(args[3]));
+            Result result;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                result = new IntegrityAuditor(cryptographer).audit(new LineIterator(reader), collection, 
+                                                                   ForkJoinPool.commonPool());
+            }
+            
+            for (Map.Entry<CryptoStatus, Long> entry : result.getCounters().snapshot().entrySet()) {
+                System.out.println(entry.getKey() + " " + entry.getValue());
+            }
+            for (RecordFailure failure : result.getFailures()) {
+                System.out.println("FAILED " + failure);
+            }
+            if (result.getFailureCount() > result.getFailures().size()) {
+                System.out.println("FAILED ... " + (result.getFailureCount() - result.getFailures().size()) + " more");
+            }
+            System.exit(result.isClean() ? 0 : 1);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Audit failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+    
+    /*
+     * Output: the sync key from SYNC_KEY_FILE (first line), SYNC_KEY or
+     *         the console, null if none of them has one
+     */
+    private static String readSyncKey() throws IOException {
+        String file = System.getenv(ENV_SYNC_KEY_FILE);
+        if (file != null) {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                String line = reader.readLine();
+                return line == null ? null : line.trim();
+            }
+        }
+        String syncKey = System.getenv(ENV_SYNC_KEY);
+        if (syncKey != null) {
+            return syncKey.trim();
+        }
+        Console console = System.console();
+        if (console != null) {
+            char[] typed = console.readPassword("Sync key: ");
+            return typed == null ? null : new String(typed).trim();
+        }
+        return null;
+    }
+    
+    /*
+     * Iterates over the non-empty lines of a reader as UTF-8 bytes
+     */
+    private static class LineIterator implements Iterator<byte[]> {
+        
+        private final BufferedReader reader;
+        private String next;
+        
+        LineIterator(BufferedReader reader) {
+            this.reader = reader;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        return false;
+                    }
+                    if (!line.trim().isEmpty()) {
+                        next = line;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] line = next.getBytes(StandardCharsets.UTF_8);
+            next = null;
+            return line;
+        }
+    }
+}
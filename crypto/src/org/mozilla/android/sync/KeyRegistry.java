@@ -0,0 +1,165 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * Holds the bulk keys from crypto/keys: a default KeyBundle plus
+ * optional per-collection KeyBundles.
+ * 
+ * The keys live in an immutable Snapshot that is replaced as a whole,
+ * so lookups never lock and a reader either sees all of the old keys
+ * or all of the new ones, never a mix.
+ */
+public class KeyRegistry {
+    
+    private static final Snapshot EMPTY = new Snapshot(null, Collections.<String, KeyBundle>emptyMap());
+    
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(EMPTY);
+    private final Runnable onRotation;
+    
+    public KeyRegistry() {
+        this(null);
+    }
+    
+    /*
+     * Input: Called after every key install, may be null
+     */
+    KeyRegistry(Runnable onRotation) {
+        this.onRotation = onRotation;
+    }
+    
+    /*
+     * Input:   Collection name, or null for the default keys
+     * Output:  Keys for that collection, the default keys if it has
+     *          none of its own, or null if no keys are set
+     */
+    public KeyBundle getKeys(String collection) {
+        return snapshot.get().getKeys(collection);
+    }
+    
+    public KeyBundle getDefaultKeys() {
+        return snapshot.get().getDefaultKeys();
+    }
+    
+    /*
+     * Output: The current keys, unaffected by later changes
+     */
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+    
+    /*
+     * Atomically replace all keys
+     * Input: Default keys, per-collection keys (copied)
+     */
+    public void setKeys(KeyBundle defaultKeys, Map<String, KeyBundle> collectionKeys) {
+        swap(new Snapshot(defaultKeys, collectionKeys));
+    }
+    
+    /*
+     * Atomically replace the default keys, keeping the per-collection keys
+     */
+    public void setDefaultKeys(KeyBundle defaultKeys) {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = snapshot.get();
+            next = new Snapshot(defaultKeys, previous.collectionKeys);
+        } while (!snapshot.compareAndSet(previous, next));
+        
+        keysInstalled();
+    }
+    
+    private void swap(Snapshot next) {
+        snapshot.set(next);
+        keysInstalled();
+    }
+    
+    /*
+     * Let the owner drop whatever it caches for the keys it had, on every
+     * install including the first. Cipher/Mac state cached for the old
+     * bundles goes away with them.
+     */
+    private void keysInstalled() {
+        if (onRotation != null) {
+            onRotation.run();
+        }
+    }
+    
+    /*
+     * Immutable set of keys
+     */
+    public static final class Snapshot {
+        
+        private final KeyBundle defaultKeys;
+        private final Map<String, KeyBundle> collectionKeys;
+        
+        Snapshot(KeyBundle defaultKeys, Map<String, KeyBundle> collectionKeys) {
+            this.defaultKeys = defaultKeys;
+            this.collectionKeys = Collections.unmodifiableMap(new HashMap<String, KeyBundle>(collectionKeys));
+        }
+        
+        public KeyBundle getKeys(String collection) {
+            if (collection != null) {
+                KeyBundle keys = collectionKeys.get(collection);
+                if (keys != null) {
+                    return keys;
+                }
+            }
+            return defaultKeys;
+        }
+        
+        public KeyBundle getDefaultKeys() {
+            return defaultKeys;
+        }
+        
+        /*
+         * Output: Unmodifiable map of collection name to keys
+         */
+        public Map<String, KeyBundle> getCollectionKeys() {
+            return collectionKeys;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.mozilla.android.sync.domain.RecordFailure;
+import org.mozilla.android.sync.domain.WBOEnvelope;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener;
+
+/*
+ * Re-encrypts the records of a collection from old bulk keys to new
+ * ones, e.g. after a key rotation.
+ * 
+ * Each record is verified and decrypted with the old keys and encrypted
+ * with the new keys. Only the payload changes, the rest of the WBO (id,
+ * sortindex, ttl, ...) is copied through as it was.
+ * Cleartext only ever exists as bytes and is wiped once re-encrypted.
+ * 
+ * Records are taken from the input a window at a time, like
+ * UploadBatchEncryptor. A window is re-encrypted in parallel, then
+ * handed to the sink in input order on the calling thread. With a
+ * ReencryptionCheckpoint, the sink is flushed and progress saved at
+ * least every checkpointInterval records and at the end. Running again
+ * with the same checkpoint and the records in the same order skips the
+ * records that were done; work after the last checkpoint is redone.
+ * Failed records are handed to the sink before the flush that covers
+ * them, so they are never skipped without having been reported, and
+ * the checkpoint keeps their count.
+ * 
+ * crypto/keys records are not bulk encrypted and fail with
+ * INVALID_KEYS_BUNDLE, upload a new one instead.
+ */
+public class KeyRotationReencryptor {
+    
+    public static final int DEFAULT_CHECKPOINT_INTERVAL =   4096;
+    
+    private static final String KEY_PAYLOAD =               "payload";
+    
+    /*
+     * Destination of the re-encrypted records
+     */
+    public interface RecordSink {
+        
+        /*
+         * Input:   collection, record id, UTF-8 encoded WBO json
+         */
+        public void reencrypted(String collection, String id, byte[] wbo) throws IOException;
+        
+        /*
+         * Called in input order for each record that could not be
+         * re-encrypted and is left on the old keys.
+         * 
+         * Input:   collection, the failure
+         */
+        public void failed(String collection, RecordFailure failure) throws IOException;
+        
+        /*
+         * Called before progress is saved. Every record and failure
+         * handed over so far must be stored for good when this returns.
+         */
+        public void flush() throws IOException;
+    }
+    
+    // No credentials of its own, only used for the crypto and its counters
+    private final SyncCryptographer cryptographer = new SyncCryptographer("");
+    private final ReencryptionCheckpoint checkpoint;
+    private volatile int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    
+    /*
+     * Input:   where to save progress, null to not save it
+     */
+    public KeyRotationReencryptor(ReencryptionCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+    
+    public Result reencrypt(String collection, KeyBundle oldKeys, KeyBundle newKeys, 
+                            Iterator<byte[]> wbos, RecordSink sink) throws IOException {
+        return reencrypt(collection, oldKeys, newKeys, wbos, sink, ForkJoinPool.commonPool());
+    }
+    
+    /*
+     * Input:   collection name, the keys its records are encrypted with
+     *          and those to encrypt them with, the records as UTF-8
+     *          encoded WBO json, where to send them, pool to run on
+     * Output:  Result of this run
+     * Throws:  IOException from the sink or checkpoint, progress up to
+     *          the last checkpoint is kept
+     *          IllegalArgumentException if the checkpoint was started
+     *          for this collection with other new keys
+     */
+    public Result reencrypt(final String collection, final KeyBundle oldKeys, final KeyBundle newKeys, 
+                            Iterator<byte[]> wbos, final RecordSink sink, ForkJoinPool pool) throws IOException {
+        final Result result = new Result();
+        long position = 0;
+        final long failedBefore = checkpoint == null ? 0 : checkpoint.getFailed(collection);
+        if (checkpoint != null) {
+            checkpoint.checkKeys(collection, newKeys);
+            long done = checkpoint.getDone(collection);
+            while (position < done && wbos.hasNext()) {
+                wbos.next();
+                position++;
+            }
+            result.skipped = position;
+        }
+        
+        final long start = position;
+        final int interval = checkpointInterval;
+        long end = new WindowedBatch<byte[], byte[]>() {
+            private long saved = start;
+            
+            @Override
+            void process(byte[] wbo, long position, Slot<byte[]> slot) {
+                reencrypt(wbo, oldKeys, newKeys, slot);
+            }
+            
+            @Override
+            void accept(byte[] wbo, long position, Slot<byte[]> slot) throws IOException {
+                if (slot.isOk()) {
+                    sink.reencrypted(collection, slot.getId(), slot.getValue());
+                    result.reencrypted++;
+                } else {
+                    RecordFailure failure = new RecordFailure(slot.getId(), position, slot.getStatus());
+                    sink.failed(collection, failure);
+                    result.addFailure(failure);
+                }
+            }
+            
+            @Override
+            void windowDone(long position) throws IOException {
+                if (checkpoint != null && position - saved >= interval) {
+                    save(collection, newKeys, position, failedBefore + result.getFailureCount(), sink);
+                    saved = position;
+                }
+            }
+        }.run(wbos, position, pool);
+        
+        if (checkpoint == null || checkpoint.getDone(collection) < end) {
+            save(collection, newKeys, end, failedBefore + result.getFailureCount(), sink);
+        }
+        return result;
+    }
+    
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+    
+    /*
+     * Input: Number of records between checkpoints, rounded up to whole
+     *        windows. Smaller means less redone work after an interruption
+     *        but more flushes.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+    }
+    
+    /*
+     * Output: Number of records decrypted per resulting status
+     */
+    public CryptoStatusCounters getDecryptCounters() {
+        return cryptographer.getDecryptCounters();
+    }
+    
+    /*
+     * Output: Number of records encrypted per resulting status
+     */
+    public CryptoStatusCounters getEncryptCounters() {
+        return cryptographer.getEncryptCounters();
+    }
+    
+    /*
+     * Input: Listener for per-stage timings, null or
+     *        CryptoMetricsListener.NOOP to turn metrics off
+     */
+    public void setMetricsListener(CryptoMetricsListener metricsListener) {
+        cryptographer.setMetricsListener(metricsListener);
+    }
+    
+    /*
+     * Helper to flush the sink and then record progress, so no record
+     * or failure is counted as done before the sink has stored it
+     */
+    private void save(String collection, KeyBundle newKeys, long position, long failed, 
+                      RecordSink sink) throws IOException {
+        sink.flush();
+        if (checkpoint != null) {
+            checkpoint.update(collection, newKeys, position, failed);
+        }
+    }
+    
+    /*
+     * Helper to re-encrypt one record on the calling thread into slot
+     */
+    private void reencrypt(byte[] wbo, KeyBundle oldKeys, KeyBundle newKeys, WindowedBatch.Slot<byte[]> slot) {
+        WBOEnvelope envelope = cryptographer.parseWBO(wbo, 0, wbo.length, cryptographer.getMetricsListener());
+        String id = envelope == null ? null : envelope.getId();
+        if (id == null) {
+            slot.fail(null, CryptoStatus.INVALID_JSON);
+            return;
+        }
+        if (SyncCryptographer.isCryptoKeys(envelope)) {
+            slot.fail(id, CryptoStatus.INVALID_KEYS_BUNDLE);
+            return;
+        }
+        
+        CryptoStatusBundle decrypted = cryptographer.decryptWBO(envelope, wbo, oldKeys);
+        if (decrypted.getStatus() != CryptoStatus.OK) {
+            slot.fail(id, decrypted.getStatus());
+            return;
+        }
+        
+        byte[] clearText = decrypted.getPayload();
+        CryptoStatusBundle encrypted = cryptographer.encrypt(clearText, newKeys);
+        Arrays.fill(clearText, (byte) 0);
+        if (encrypted.getStatus() != CryptoStatus.OK) {
+            slot.fail(id, encrypted.getStatus());
+            return;
+        }
+        byte[] reencrypted = replacePayload(wbo, envelope, encrypted.getPayload());
+        if (reencrypted == null) {
+            slot.fail(id, CryptoStatus.INVALID_JSON);
+            return;
+        }
+        slot.succeed(id, reencrypted);
+    }
+    
+    /*
+     * Swaps the payload of a WBO, leaving its other fields as they were
+     * 
+     * Input:   WBO, its envelope, new payload json
+     * Output:  the WBO with the new payload, null if it isn't a json object
+     */
+    static byte[] replacePayload(byte[] wbo, WBOEnvelope envelope, byte[] payload) {
+        int start = envelope.getPayloadStart();
+        int end = envelope.getPayloadEnd();
+        if (start < 0 || end > wbo.length || end <= start) {
+            return replacePayloadJson(wbo, payload);
+        }
+        
+        byte[] spliced = new byte[start + UploadBatchEncryptor.escapedLength(payload) + 2 + wbo.length - end];
+        System.arraycopy(wbo, 0, spliced, 0, start);
+        int pos = start;
+        spliced[pos++] = '"';
+        pos = UploadBatchEncryptor.writeEscaped(payload, spliced, pos);
+        spliced[pos++] = '"';
+        System.arraycopy(wbo, end, spliced, pos, wbo.length - end);
+        return spliced;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static byte[] replacePayloadJson(byte[] wbo, byte[] payload) {
+        try {
+            Object json = new JSONParser().parse(new String(wbo, StandardCharsets.UTF_8));
+            if (!(json instanceof JSONObject)) {
+                return null;
+            }
+            JSONObject object = (JSONObject) json;
+            object.put(KEY_PAYLOAD, new String(payload, StandardCharsets.US_ASCII));
+            return object.toJSONString().getBytes(StandardCharsets.UTF_8);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+    
+    /*
+     * Outcome of a re-encryption run
+     */
+    public static final class Result extends BatchResult {
+        
+        private long skipped;
+        private long reencrypted;
+        
+        /*
+         * Output: number of records skipped as done by an earlier run
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+        
+        /*
+         * Output: number of records handed to the sink
+         */
+        public long getReencrypted() {
+            return reencrypted;
+        }
+    }
+    
+}
@@ -0,0 +1,160 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * AES-CBC decryption of one large ciphertext on several cores.
+ * 
+ * Each CBC plaintext block depends only on its own ciphertext block and
+ * the one before it, so the ciphertext can be cut at any block boundary
+ * and every segment decrypted on its own, with the last ciphertext block
+ * before it (or the IV for the first) as its IV. Segments are decrypted
+ * without padding straight into the output array. Only the final block
+ * carries PKCS5 padding; it is decrypted first, which checks the padding
+ * and gives the exact output length. The result is byte for byte what a
+ * single doFinal over the whole ciphertext returns, and null in the same
+ * cases.
+ */
+final class ParallelDecryptor {
+    
+    // Segments smaller than this aren't worth a task
+    static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    
+    private ParallelDecryptor() {
+    }
+    
+    /*
+     * Input:   ciphertext (a multiple of the block size, at least two blocks),
+     *          IV, keys for decryption, pool to decrypt on
+     * Output:  decrypted byte[], null if the padding is invalid
+     */
+    static byte[] decrypt(byte[] cipherText, byte[] iv, KeyBundle keys, ForkJoinPool pool) {
+        int bodyLength = cipherText.length - Cryptographer.BLOCK_SIZE;
+        
+        // Final block first, its padding decides the output length
+        byte[] last;
+        Cipher cipher = CipherCache.getCipher();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, 
+                        CipherCache.getEncryptionKey(keys, Cryptographer.KEY_ALGORITHM_SPEC), 
+                        new IvParameterSpec(cipherText, bodyLength - Cryptographer.BLOCK_SIZE, Cryptographer.BLOCK_SIZE));
+            last = cipher.doFinal(cipherText, bodyLength, Cryptographer.BLOCK_SIZE);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+        
+        byte[] clearText = new byte[bodyLength + last.length];
+        System.arraycopy(last, 0, clearText, bodyLength, last.length);
+        
+        // The rest in block-aligned segments, one per core at most
+        int segments = Math.max(1, Math.min(pool.getParallelism(), bodyLength / MIN_SEGMENT_SIZE));
+        int blocks = bodyLength / Cryptographer.BLOCK_SIZE;
+        int segmentSize = (blocks + segments - 1) / segments * Cryptographer.BLOCK_SIZE;
+        SegmentTask task = new SegmentTask(cipherText, iv, keys, clearText, 0, bodyLength, segmentSize);
+        pool.invoke(task);
+        return task.failed ? null : clearText;
+    }
+    
+    /*
+     * Decrypts [start, end) of the ciphertext into the same range of
+     * the output, splitting until a piece is at most segmentSize
+     */
+    private static class SegmentTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final byte[] cipherText;
+        private final byte[] iv;
+        private final KeyBundle keys;
+        private final byte[] clearText;
+        private final int start;
+        private final int end;
+        private final int segmentSize;
+        private volatile boolean failed;
+        
+        SegmentTask(byte[] cipherText, byte[] iv, KeyBundle keys, byte[] clearText, 
+                    int start, int end, int segmentSize) {
+            this.cipherText = cipherText;
+            this.iv = iv;
+            this.keys = keys;
+            this.clearText = clearText;
+            this.start = start;
+            this.end = end;
+            this.segmentSize = segmentSize;
+        }
+        
+        @Override
+        protected void compute() {
+            if (end - start <= segmentSize) {
+                failed = !decryptSegment();
+                return;
+            }
+            
+            // Split on a segment boundary
+            int middle = start + ((end - start) / segmentSize + 1) / 2 * segmentSize;
+            SegmentTask left = new SegmentTask(cipherText, iv, keys, clearText, start, middle, segmentSize);
+            SegmentTask right = new SegmentTask(cipherText, iv, keys, clearText, middle, end, segmentSize);
+            invokeAll(left, right);
+            failed = left.failed || right.failed;
+        }
+        
+        private boolean decryptSegment() {
+            IvParameterSpec segmentIv = start == 0 ? new IvParameterSpec(iv) : 
+                    new IvParameterSpec(cipherText, start - Cryptographer.BLOCK_SIZE, Cryptographer.BLOCK_SIZE);
+            Cipher cipher = CipherCache.getNoPaddingCipher();
+            try {
+                SecretKeySpec key = CipherCache.getEncryptionKey(keys, Cryptographer.KEY_ALGORITHM_SPEC);
+                cipher.init(Cipher.DECRYPT_MODE, key, segmentIv);
+                cipher.doFinal(cipherText, start, end - start, clearText, start);
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+            return true;
+        }
+    }
+}
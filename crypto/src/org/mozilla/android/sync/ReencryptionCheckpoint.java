@@ -0,0 +1,189 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * Progress of a key rotation, kept in a small json file:
+ * {"<collection>":{"keys":"<fingerprint>","done":<records>,"failed":<records>},...}
+ * 
+ * done counts the records of the collection, in input order, that
+ * have been handed to the sink and flushed, failed those of them that
+ * could not be re-encrypted. The fingerprint is a
+ * SHA-256 of the new keys, so a rotation can't be resumed with keys
+ * other than those the finished records were encrypted with.
+ * 
+ * The file is replaced as a whole on every update, through a synced
+ * temporary file and a rename, so it always holds a complete state.
+ */
+public class ReencryptionCheckpoint {
+    
+    private static final String KEY_KEYS =      "keys";
+    private static final String KEY_DONE =      "done";
+    private static final String KEY_FAILED =    "failed";
+    
+    private final Path file;
+    private final JSONObject state;
+    
+    /*
+     * Input:   checkpoint file, read if it exists
+     * Throws:  IOException if it exists but can't be read or parsed
+     */
+    public ReencryptionCheckpoint(Path file) throws IOException {
+        this.file = file;
+        if (!Files.exists(file)) {
+            state = new JSONObject();
+            return;
+        }
+        
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Object parsed = new JSONParser().parse(in);
+            if (!(parsed instanceof JSONObject)) {
+                throw new IOException("Invalid checkpoint " + file);
+            }
+            state = (JSONObject) parsed;
+        } catch (ParseException e) {
+            throw new IOException("Invalid checkpoint " + file, e);
+        }
+    }
+    
+    public Path getFile() {
+        return file;
+    }
+    
+    /*
+     * Input:   collection name
+     * Output:  number of its records already re-encrypted, 0 if none
+     */
+    public synchronized long getDone(String collection) {
+        return getCount(collection, KEY_DONE);
+    }
+    
+    /*
+     * Input:   collection name
+     * Output:  number of the done records that failed and were left
+     *          on the old keys, 0 if none
+     */
+    public synchronized long getFailed(String collection) {
+        return getCount(collection, KEY_FAILED);
+    }
+    
+    /*
+     * Input:   collection name, the keys it is being re-encrypted with
+     * Throws:  IllegalArgumentException if the collection was started with other keys
+     */
+    synchronized void checkKeys(String collection, KeyBundle newKeys) {
+        JSONObject entry = getEntry(collection);
+        if (entry != null && !fingerprint(newKeys).equals(entry.get(KEY_KEYS))) {
+            throw new IllegalArgumentException("Checkpoint for " + collection + " was written for other keys");
+        }
+    }
+    
+    /*
+     * Records progress and writes the file
+     * 
+     * Input:   collection name, the keys it is being re-encrypted with,
+     *          number of its records done and how many of them failed
+     */
+    synchronized void update(String collection, KeyBundle newKeys, long done, long failed) throws IOException {
+        JSONObject entry = new JSONObject();
+        Utils.asMap(entry).put(KEY_KEYS, fingerprint(newKeys));
+        Utils.asMap(entry).put(KEY_DONE, done);
+        Utils.asMap(entry).put(KEY_FAILED, failed);
+        Utils.asMap(state).put(collection, entry);
+        write();
+    }
+    
+    /*
+     * Deletes the checkpoint file, once the whole rotation is done
+     */
+    public synchronized void delete() throws IOException {
+        state.clear();
+        Files.deleteIfExists(file);
+    }
+    
+    private long getCount(String collection, String key) {
+        JSONObject entry = getEntry(collection);
+        if (entry == null || !(entry.get(key) instanceof Number)) {
+            return 0;
+        }
+        return ((Number) entry.get(key)).longValue();
+    }
+    
+    private JSONObject getEntry(String collection) {
+        Object entry = state.get(collection);
+        return entry instanceof JSONObject ? (JSONObject) entry : null;
+    }
+    
+    private void write() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, 
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer json = ByteBuffer.wrap(state.toString().getBytes(StandardCharsets.UTF_8));
+            while (json.hasRemaining()) {
+                channel.write(json);
+            }
+            channel.force(true);
+        }
+        
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    private static String fingerprint(KeyBundle keys) {
+        return Utils.byte2hex(Utils.keyFingerprint(keys));
+    }
+}
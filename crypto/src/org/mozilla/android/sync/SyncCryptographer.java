@@ -42,6 +42,18 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import org.apache.commons.codec.binary.Base64;
 import org.json.simple.JSONArray;
@@ -51,6 +63,10 @@ import org.mozilla.android.sync.domain.CryptoInfo;
 import org.mozilla.android.sync.domain.CryptoStatusBundle;
 import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
 import org.mozilla.android.sync.domain.KeyBundle;
+import org.mozilla.android.sync.domain.WBOEnvelope;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener.Operation;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener.Stage;
 
 /*
  * This class acts as a wrapper for the Cryptographer class.
@@ -60,6 +76,13 @@ import org.mozilla.android.sync.domain.KeyBundle;
  * enables classes to get crypto servies based on a WBO rather than
  * having to pare json itself. This class decouple the Cryptographer
  * from the sync client.
+ * 
+ * Instances are thread-safe and meant to be shared, one per account.
+ * All state lives in immutable snapshots (the credentials below and the
+ * KeyRegistry's keys) published through volatile/atomic references.
+ * Each call reads the snapshots it needs once, so the hot path never
+ * locks, and a crypto/keys record decrypted on one thread swaps the keys
+ * atomically for everyone else.
  */
 public class SyncCryptographer {
     
@@ -76,9 +99,32 @@ public class SyncCryptographer {
     private static final String ID_CRYPTO_KEYS =            "keys";
     private static final String CRYPTO_KEYS_COLLECTION =    "crypto";
     
-    private byte[] syncKey;
-    private String username;
-    private KeyBundle keys;
+    // Pieces of the payload json built by createJSONBundle
+    private static final byte[] JSON_CIPHER_TEXT =          ("{\"" + KEY_CIPHER_TEXT + "\":\"").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON_IV =                   ("\",\"" + KEY_IV + "\":\"").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON_HMAC =                 ("\",\"" + KEY_HMAC + "\":\"").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON_END =                  "\"}".getBytes(StandardCharsets.US_ASCII);
+    
+    // Pieces of the crypto/keys cleartext built by createCryptoKeysJson
+    private static final byte[] JSON_CRYPTO_KEYS =          ("{\"" + KEY_ID + "\":\"" + ID_CRYPTO_KEYS + "\",\"" + 
+                                                             KEY_COLLECTION + "\":\"" + CRYPTO_KEYS_COLLECTION + "\",\"" + 
+                                                             KEY_COLLECTIONS + "\":{},\"" + 
+                                                             KEY_DEFAULT_COLLECTION + "\":[\"").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON_KEY_SEPARATOR =        "\",\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON_CRYPTO_KEYS_END =      "\"]}".getBytes(StandardCharsets.US_ASCII);
+    
+    // Batches are split until a fork-join task holds at most this many WBOs
+    private static final int BATCH_SPLIT_THRESHOLD =        16;
+    
+    private volatile Credentials credentials = new Credentials(null, null);
+    private final KeyRegistry keyRegistry = new KeyRegistry(this::clearRecordCache);
+    private volatile ForkJoinPool decryptPool = ForkJoinPool.commonPool();
+    private volatile Executor asyncExecutor;
+    private volatile DecryptedRecordCache recordCache;
+    private volatile DerivedKeyCache derivedKeyCache = DerivedKeyCache.getDefault();
+    private final CryptoStatusCounters encryptCounters = new CryptoStatusCounters();
+    private final CryptoStatusCounters decryptCounters = new CryptoStatusCounters();
+    private volatile CryptoMetricsListener metricsListener = CryptoMetricsListener.NOOP;
     
     /*
      * Constructors
@@ -92,8 +138,7 @@ public class SyncCryptographer {
     }
     
     public SyncCryptographer(String username, String friendlyBase32SyncKey, String base64EncryptionKey, String base64HmacKey) {
-        this.setUsername(username);
-        this.setSyncKey(friendlyBase32SyncKey);
+        this.setCredentials(username, friendlyBase32SyncKey);
         this.setKeys(base64EncryptionKey, base64HmacKey);
     }
     
@@ -103,13 +148,54 @@ public class SyncCryptographer {
      *          crypto information (ciphertext, iv, hmac) 
      */
     public CryptoStatusBundle encryptWBO(String jsonString) {
+        return encryptWBO(jsonString, null);
+    }
+    
+    /*
+     * Input:   A string representation of a WBO (json) payload to be encrypted,
+     *          the collection it belongs to
+     * Output:  Same as above, encrypted with the collection's keys
+     */
+    public CryptoStatusBundle encryptWBO(String jsonString, String collection) {
+        KeyBundle keys = keyRegistry.getKeys(collection);
+        
+        // Verify that encryption keys are set
+        if (keys == null) {
+            return count(encryptCounters, new CryptoStatusBundle(CryptoStatus.MISSING_KEYS, jsonString));
+        }
+        
+        return encrypt(jsonString.getBytes(StandardCharsets.UTF_8), keys);
+    }
+    
+    /*
+     * Byte oriented versions of the above, no String is created.
+     * 
+     * Input:   UTF-8 encoded WBO payload to be encrypted, optionally
+     *          the collection it belongs to
+     * Output:  CryptoStatusBundle with a UTF-8 encoded json payload
+     *          (see CryptoStatusBundle.getPayload()) containing crypto
+     *          information (ciphertext, iv, hmac)
+     */
+    public CryptoStatusBundle encryptWBO(byte[] clearText) {
+        return encryptWBO(clearText, null);
+    }
+    
+    public CryptoStatusBundle encryptWBO(byte[] clearText, String collection) {
+        KeyBundle keys = keyRegistry.getKeys(collection);
         
         // Verify that encryption keys are set
         if (keys == null) {
-            return new CryptoStatusBundle(CryptoStatus.MISSING_KEYS, jsonString);
+            return count(encryptCounters, new CryptoStatusBundle(CryptoStatus.MISSING_KEYS, clearText));
         }
         
-        return encrypt(jsonString, keys);
+        return encrypt(clearText, keys);
+    }
+    
+    /*
+     * Input: The remaining bytes of clearText (position is advanced)
+     */
+    public CryptoStatusBundle encryptWBO(ByteBuffer clearText, String collection) {
+        return encryptWBO(toArray(clearText), collection);
     }
     
     /*
@@ -117,85 +203,449 @@ public class SyncCryptographer {
      * Output: the decrypted payload and status
      */
     public CryptoStatusBundle decryptWBO(String jsonString) {
+        return decryptWBO(jsonString, keyRegistry.getDefaultKeys());
+    }
+    
+    /*
+     * Input:   A string representation of the WBO (json), the collection
+     *          it belongs to
+     * Output:  the decrypted payload and status
+     */
+    public CryptoStatusBundle decryptWBO(String jsonString, String collection) {
+        return decryptWBO(jsonString, keyRegistry.getKeys(collection));
+    }
+    
+    /*
+     * Byte oriented versions of the above, no String is created.
+     * 
+     * Input:   UTF-8 encoded WBO (json), optionally the collection
+     *          it belongs to
+     * Output:  the decrypted UTF-8 payload (see CryptoStatusBundle.getPayload())
+     *          and status
+     */
+    public CryptoStatusBundle decryptWBO(byte[] wbo) {
+        return decryptWBO(wbo, 0, wbo.length, keyRegistry.getDefaultKeys());
+    }
+    
+    public CryptoStatusBundle decryptWBO(byte[] wbo, String collection) {
+        return decryptWBO(wbo, 0, wbo.length, keyRegistry.getKeys(collection));
+    }
+    
+    /*
+     * Input: The remaining bytes of wbo (position is advanced)
+     */
+    public CryptoStatusBundle decryptWBO(ByteBuffer wbo, String collection) {
+        KeyBundle keys = keyRegistry.getKeys(collection);
+        if (wbo.hasArray()) {
+            int offset = wbo.arrayOffset() + wbo.position();
+            int length = wbo.remaining();
+            wbo.position(wbo.limit());
+            return decryptWBO(wbo.array(), offset, length, keys);
+        }
+        byte[] bytes = toArray(wbo);
+        return decryptWBO(bytes, 0, bytes.length, keys);
+    }
+    
+    /*
+     * Decrypts a batch of WBOs in parallel on the decrypt pool.
+     * 
+     * Input:   List of string representations of WBOs (json)
+     * Output:  List of decrypted payloads and statuses, in input order
+     */
+    public List<CryptoStatusBundle> decryptWBOs(List<String> jsonStrings) {
+        return decryptWBOs(jsonStrings, null, decryptPool);
+    }
+    
+    /*
+     * Input:   List of string representations of WBOs (json), the
+     *          collection they belong to
+     * Output:  List of decrypted payloads and statuses, in input order
+     */
+    public List<CryptoStatusBundle> decryptWBOs(List<String> jsonStrings, String collection) {
+        return decryptWBOs(jsonStrings, collection, decryptPool);
+    }
+    
+    public List<CryptoStatusBundle> decryptWBOs(List<String> jsonStrings, ForkJoinPool pool) {
+        return decryptWBOs(jsonStrings, null, pool);
+    }
+    
+    /*
+     * Decrypts a batch of WBOs in parallel on the given pool.
+     * 
+     * The keys are read once before the batch starts and shared by
+     * every record in it. A crypto/keys record inside the batch still
+     * updates the keys on this object, but only for later calls; the
+     * other records in the same batch are decrypted with the keys that
+     * were set when the batch started.
+     * 
+     * Input:   List of string representations of WBOs (json), the collection
+     *          they belong to (null for the default keys), pool to run on
+     * Output:  List of decrypted payloads and statuses, in input order
+     */
+    public List<CryptoStatusBundle> decryptWBOs(List<String> jsonStrings, String collection, ForkJoinPool pool) {
+        String[] in = jsonStrings.toArray(new String[jsonStrings.size()]);
+        CryptoStatusBundle[] out = new CryptoStatusBundle[in.length];
+        if (in.length > 0) {
+            pool.invoke(new DecryptWBOsTask(in, out, 0, in.length, keyRegistry.getKeys(collection)));
+        }
+        return Arrays.asList(out);
+    }
+    
+    /*
+     * Decrypts a stream of WBOs. Records are decrypted lazily as the
+     * returned stream is consumed, so parallelism and ordering follow
+     * the input stream (a parallel ordered stream decrypts in parallel
+     * and keeps encounter order). Keys are shared as in decryptWBOs.
+     * 
+     * Input:   Stream of string representations of WBOs (json)
+     * Output:  Stream of decrypted payloads and statuses
+     */
+    public Stream<CryptoStatusBundle> decryptWBOs(Stream<String> jsonStrings) {
+        return decryptWBOs(jsonStrings, null);
+    }
+    
+    public Stream<CryptoStatusBundle> decryptWBOs(Stream<String> jsonStrings, String collection) {
+        final KeyBundle batchKeys = keyRegistry.getKeys(collection);
+        return jsonStrings.map(jsonString -> decryptWBO(jsonString, batchKeys));
+    }
+    
+    /*
+     * Asynchronous versions of encryptWBO/decryptWBO, run on the async
+     * executor (see CryptoExecutors). The keys are looked up when the
+     * record is processed, not when it is submitted, so a crypto/keys
+     * record completing first is seen by records submitted after it.
+     * 
+     * Input:   Same as the blocking versions
+     * Output:  Future completed with the same CryptoStatusBundle the
+     *          blocking version returns
+     */
+    public CompletableFuture<CryptoStatusBundle> encryptWBOAsync(String jsonString) {
+        return encryptWBOAsync(jsonString, null);
+    }
+    
+    public CompletableFuture<CryptoStatusBundle> encryptWBOAsync(String jsonString, String collection) {
+        return async(() -> encryptWBO(jsonString, collection));
+    }
+    
+    public CompletableFuture<CryptoStatusBundle> encryptWBOAsync(byte[] clearText, String collection) {
+        return async(() -> encryptWBO(clearText, collection));
+    }
+    
+    public CompletableFuture<CryptoStatusBundle> decryptWBOAsync(String jsonString) {
+        return decryptWBOAsync(jsonString, null);
+    }
+    
+    public CompletableFuture<CryptoStatusBundle> decryptWBOAsync(String jsonString, String collection) {
+        return async(() -> decryptWBO(jsonString, collection));
+    }
+    
+    public CompletableFuture<CryptoStatusBundle> decryptWBOAsync(byte[] wbo, String collection) {
+        return async(() -> decryptWBO(wbo, collection));
+    }
+    
+    /*
+     * Helper to run crypto on the async executor
+     */
+    private <T> CompletableFuture<T> async(Supplier<T> work) {
+        return CompletableFuture.supplyAsync(work, getAsyncExecutor());
+    }
+    
+    /*
+     * Checks that a stored WBO is intact under the current keys without
+     * decrypting it: only the envelope is parsed, the HMAC checked and
+     * the IV decoded, no AES work is done and no cleartext produced.
+     * A bad IV fails with DECRYPTION_FAIL. crypto/keys
+     * records are checked with the keys derived from the sync key.
+     * Nothing is counted in the decrypt counters. See IntegrityAuditor
+     * to audit whole collections.
+     * 
+     * Input:   A string representation of the WBO (json), or its UTF-8
+     *          bytes, optionally the collection it belongs to
+     * Output:  OK, or the status decryptWBO would fail with before decrypting
+     */
+    public CryptoStatus verifyWBO(String jsonString) {
+        return verifyWBO(jsonString, null);
+    }
+    
+    public CryptoStatus verifyWBO(String jsonString, String collection) {
+        return verifyWBO(parseWBO(jsonString, CryptoMetricsListener.NOOP), keyRegistry.getKeys(collection));
+    }
+    
+    public CryptoStatus verifyWBO(byte[] wbo, String collection) {
+        return verifyWBO(parseWBO(wbo, 0, wbo.length, CryptoMetricsListener.NOOP), keyRegistry.getKeys(collection));
+    }
+    
+    /*
+     * Decrypts a single WBO with the given keys
+     * 
+     * Input:   A string representation of the WBO (json), keys to decrypt with
+     * Output:  the decrypted payload and status
+     */
+    private CryptoStatusBundle decryptWBO(String jsonString, KeyBundle keys) {
+        CryptoMetricsListener metrics = metricsListener;
+        WBOEnvelope envelope = parseWBO(jsonString, metrics);
+        return count(decryptCounters, decryptEnvelope(envelope, keys, jsonString, metrics));
+    }
+    
+    /*
+     * Same as above for a UTF-8 encoded WBO
+     */
+    private CryptoStatusBundle decryptWBO(byte[] wbo, int offset, int length, KeyBundle keys) {
+        CryptoMetricsListener metrics = metricsListener;
+        WBOEnvelope envelope = parseWBO(wbo, offset, length, metrics);
         
-        // Get json from string
-        JSONObject json = null;
-        JSONObject payload = null;
-        try {
-            json = getJSONObject(jsonString);
-            payload = getJSONObject(json, KEY_PAYLOAD);
-            
-        } catch (Exception e) {
-            return new CryptoStatusBundle(CryptoStatus.INVALID_JSON, jsonString);
+        // Only copy a slice if it is actually needed for a failure bundle
+        Object input = offset == 0 && length == wbo.length ? wbo : Arrays.copyOfRange(wbo, offset, offset + length);
+        return count(decryptCounters, decryptEnvelope(envelope, keys, input, metrics));
+    }
+    
+    /*
+     * Parse step of decryptWBO, for callers that need to look at the
+     * envelope before the record is decrypted (see DecryptProcessor).
+     * Pulls the crypto pieces out of the json, falling back to a full
+     * parse if the fast parser can't handle it.
+     * 
+     * Input:   WBO (json) as a String or UTF-8 bytes, listener for stage timings
+     * Output:  WBOEnvelope, null if the WBO could not be parsed
+     */
+    WBOEnvelope parseWBO(String jsonString, CryptoMetricsListener metrics) {
+        long start = startTime(metrics);
+        WBOEnvelope envelope = WBOEnvelopeParser.parse(jsonString);
+        if (envelope == null) {
+            envelope = parseWBOEnvelope(jsonString);
+        }
+        endStage(metrics, Operation.DECRYPT, Stage.PARSE, start, jsonString.length());
+        return envelope;
+    }
+    
+    WBOEnvelope parseWBO(byte[] wbo, int offset, int length, CryptoMetricsListener metrics) {
+        long start = startTime(metrics);
+        WBOEnvelope envelope = WBOEnvelopeParser.parse(wbo, offset, length);
+        if (envelope == null) {
+            envelope = parseWBOEnvelope(new String(wbo, offset, length, StandardCharsets.UTF_8));
+        }
+        endStage(metrics, Operation.DECRYPT, Stage.PARSE, start, length);
+        return envelope;
+    }
+    
+    /*
+     * Decrypt step of decryptWBO, the keys are looked up now
+     * 
+     * Input:   Envelope from parseWBO, the WBO it came from, the collection
+     *          it belongs to (null for the default keys)
+     * Output:  the decrypted payload and status
+     */
+    CryptoStatusBundle decryptWBO(WBOEnvelope envelope, Object wbo, String collection) {
+        return count(decryptCounters, decryptEnvelope(envelope, keyRegistry.getKeys(collection), wbo, metricsListener));
+    }
+    
+    /*
+     * Decrypt step of decryptWBO with the given keys rather than the
+     * registered ones. Package-private for KeyRotationReencryptor, which
+     * keeps crypto/keys records away from here.
+     * 
+     * Input:   Envelope from parseWBO, the WBO it came from, keys to decrypt with
+     * Output:  the decrypted payload and status
+     */
+    CryptoStatusBundle decryptWBO(WBOEnvelope envelope, Object wbo, KeyBundle keys) {
+        return count(decryptCounters, decryptEnvelope(envelope, keys, wbo, metricsListener));
+    }
+    
+    /*
+     * Verify step of verifyWBO, package-private for IntegrityAuditor
+     * 
+     * Input:   Envelope from parseWBO, keys of the collection it belongs to
+     * Output:  OK, or the status decryptWBO would fail with before decrypting
+     */
+    CryptoStatus verifyWBO(WBOEnvelope envelope, KeyBundle keys) {
+        if (envelope == null || envelope.getId() == null || envelope.getCiphertext() == null ||
+                envelope.getIv() == null || envelope.getHmac() == null) {
+            return CryptoStatus.INVALID_JSON;
         }
         
+        if (isCryptoKeys(envelope)) {
+            keys = deriveCryptoKeysBundleKeys();
+            if (keys == null) {
+                return CryptoStatus.MISSING_SYNCKEY_OR_USER;
+            }
+        } else if (keys == null) {
+            return CryptoStatus.MISSING_KEYS;
+        }
+        
+        String hexHmac = envelope.getHmac();
+        byte[] hmac = new byte[hexHmac.length() / 2];
+        if (!Utils.hex2ByteConstantTime(hexHmac, hmac) ||
+                !Cryptographer.verifyHmac(envelope.getCiphertext(), hmac, keys)) {
+            return CryptoStatus.HMAC_VERIFY_FAIL;
+        }
+        
+        // The IV isn't covered by the HMAC, decrypting would fail without a good one
+        if (!isValidIv(envelope.getIv())) {
+            return CryptoStatus.DECRYPTION_FAIL;
+        }
+        return CryptoStatus.OK;
+    }
+    
+    /*
+     * Output: true if iv is padded Base64 of exactly one AES block
+     */
+    private static boolean isValidIv(String iv) {
+        int length = iv.length();
+        if (length != Utils.base64Length(Cryptographer.BLOCK_SIZE)) {
+            return false;
+        }
+        byte[] ascii = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char c = iv.charAt(i);
+            ascii[i] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        return Utils.decodeBase64(ascii, 0, length, new byte[length / 4 * 3], 0) == Cryptographer.BLOCK_SIZE;
+    }
+    
+    /*
+     * Output: true if decrypting this envelope would replace the keys
+     */
+    static boolean isCryptoKeys(WBOEnvelope envelope) {
+        return envelope != null && envelope.getId() != null && envelope.getId().equalsIgnoreCase(ID_CRYPTO_KEYS);
+    }
+    
+    /*
+     * Decrypts a parsed WBO
+     * 
+     * Input:   WBOEnvelope (null if the WBO could not be parsed), keys to
+     *          decrypt with, the WBO as a String or byte[] to hand back
+     *          on failure, listener for stage timings
+     * Output:  the decrypted payload and status
+     */
+    private CryptoStatusBundle decryptEnvelope(WBOEnvelope envelope, KeyBundle keys, Object wbo, 
+                                               CryptoMetricsListener metrics) {
+        
         // Check that paylod contains all pieces for crypto
-        if (!payload.containsKey(KEY_CIPHER_TEXT) || !payload.containsKey(KEY_IV) || !payload.containsKey(KEY_HMAC)) {
-            return new CryptoStatusBundle(CryptoStatus.INVALID_JSON, jsonString);
+        if (envelope == null || envelope.getId() == null || envelope.getCiphertext() == null ||
+                envelope.getIv() == null || envelope.getHmac() == null) {
+            return statusBundle(CryptoStatus.INVALID_JSON, wbo);
         }
         
-        String id = (String) json.get(KEY_ID);
-        if (id.equalsIgnoreCase(ID_CRYPTO_KEYS)) {
+        if (envelope.getId().equalsIgnoreCase(ID_CRYPTO_KEYS)) {
             // If this is a crypto keys bundle, handle it seperately
-            return decryptKeysWBO(payload);
+            return decryptKeysWBO(envelope, wbo, metrics);
         } else if (keys == null) {
             // Otherwise, make sure we have crypto keys before continuing
-            return new CryptoStatusBundle(CryptoStatus.MISSING_KEYS, jsonString); 
+            return statusBundle(CryptoStatus.MISSING_KEYS, wbo); 
         }
         
-        byte[] clearText = decryptPayload(payload, this.keys);
+        return decryptPayload(envelope, keys, wbo, metrics);
+        
+    }
+    
+    /*
+     * Fork-join task that decrypts a slice of a batch into the
+     * matching slice of the output array
+     */
+    private class DecryptWBOsTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
         
-        return new CryptoStatusBundle(CryptoStatus.OK, new String(clearText));
+        private final String[] in;
+        private final CryptoStatusBundle[] out;
+        private final int start;
+        private final int end;
+        private final KeyBundle keys;
         
+        DecryptWBOsTask(String[] in, CryptoStatusBundle[] out, int start, int end, KeyBundle keys) {
+            this.in = in;
+            this.out = out;
+            this.start = start;
+            this.end = end;
+            this.keys = keys;
+        }
+        
+        @Override
+        protected void compute() {
+            if (end - start <= BATCH_SPLIT_THRESHOLD) {
+                for (int i = start; i < end; i++) {
+                    out[i] = decryptWBO(in[i], keys);
+                }
+                return;
+            }
+            
+            int middle = (start + end) >>> 1;
+            invokeAll(new DecryptWBOsTask(in, out, start, middle, keys),
+                      new DecryptWBOsTask(in, out, middle, end, keys));
+        }
     }
     
     /*
      * Handles the case where we are decrypting the crypto/keys bundle.
      * Uses the sync key and username to get keys for decrypting this
-     * bundle. Once bundle is decrypted the keys are saved to this
-     * object for future use and the decrypted payload is returned.
+     * bundle. Once bundle is decrypted the default and per-collection
+     * keys replace the ones in the key registry in a single swap, and
+     * the decrypted payload is returned.
      * 
-     * Input: JSONObject payload containing crypto/keys json
+     * Input: WBOEnvelope of the crypto/keys WBO, the WBO as String or byte[],
+     *        listener for stage timings
      * Output: Decrypted crypto/keys String
      */
-    private CryptoStatusBundle decryptKeysWBO(JSONObject payload) {
+    private CryptoStatusBundle decryptKeysWBO(WBOEnvelope envelope, Object wbo, CryptoMetricsListener metrics) {
         
         // Get the keys to decrypt the crypto keys bundle
-        KeyBundle cryptoKeysBundleKeys;
-        try {
-            cryptoKeysBundleKeys = getCryptoKeysBundleKeys();
-        } catch (Exception e) {
-            return new CryptoStatusBundle(CryptoStatus.MISSING_SYNCKEY_OR_USER, payload.toString());
+        KeyBundle cryptoKeysBundleKeys = deriveCryptoKeysBundleKeys();
+        if (cryptoKeysBundleKeys == null) {
+            return statusBundle(CryptoStatus.MISSING_SYNCKEY_OR_USER, wbo);
         }
         
-        byte[] cryptoKeysBundle = decryptPayload(payload, cryptoKeysBundleKeys);
+        CryptoStatusBundle decrypted = decryptPayload(envelope, cryptoKeysBundleKeys, wbo, metrics);
+        if (decrypted.getStatus() != CryptoStatus.OK) {
+            return decrypted;
+        }
         
         // Extract decrypted keys
-        InputStream stream = new ByteArrayInputStream(cryptoKeysBundle);
-        Reader in = new InputStreamReader(stream);
-        JSONObject json = null;
+        InputStream stream = new ByteArrayInputStream(decrypted.getPayload());
+        Reader in = new InputStreamReader(stream, StandardCharsets.UTF_8);
+        Object parsed;
         try {
-            json = (JSONObject) new JSONParser().parse(in);
+            parsed = new JSONParser().parse(in);
         } catch (Exception e) {
-            e.printStackTrace();
+            return statusBundle(CryptoStatus.INVALID_KEYS_BUNDLE, wbo);
         }
+        if (!(parsed instanceof JSONObject)) {
+            return statusBundle(CryptoStatus.INVALID_KEYS_BUNDLE, wbo);
+        }
+        JSONObject json = (JSONObject) parsed;
         
         // Verify that this is indeed the crypto/keys bundle and decryption worked
-        String id = (String) json.get(KEY_ID);
-        String collection = (String) json.get(KEY_COLLECTION);
-        if (id.equalsIgnoreCase(ID_CRYPTO_KEYS) && collection.equalsIgnoreCase(CRYPTO_KEYS_COLLECTION) && json.containsKey(KEY_DEFAULT_COLLECTION)) {
+        Object id = json.get(KEY_ID);
+        Object collection = json.get(KEY_COLLECTION);
+        if (id instanceof String && ((String) id).equalsIgnoreCase(ID_CRYPTO_KEYS) && 
+                collection instanceof String && ((String) collection).equalsIgnoreCase(CRYPTO_KEYS_COLLECTION) && 
+                json.containsKey(KEY_DEFAULT_COLLECTION)) {
             
-            // Extract the keys and add them to this
-            Object jsonKeysObj = json.get(KEY_DEFAULT_COLLECTION);
-            if (jsonKeysObj.getClass() != JSONArray.class) {
+            // Extract the default keys
+            KeyBundle defaultKeys = getKeyBundle(json.get(KEY_DEFAULT_COLLECTION));
+            if (defaultKeys == null) {
                 return new CryptoStatusBundle(CryptoStatus.INVALID_KEYS_BUNDLE, json.toString());
             }
             
-            JSONArray jsonKeys = (JSONArray) jsonKeysObj;            
-            this.setKeys((String) jsonKeys.get(0), (String) jsonKeys.get(1));
+            // Extract the per-collection keys, if any
+            Map<String, KeyBundle> collectionKeys = new HashMap<String, KeyBundle>();
+            Object jsonCollectionsObj = json.get(KEY_COLLECTIONS);
+            if (jsonCollectionsObj != null) {
+                if (jsonCollectionsObj.getClass() != JSONObject.class) {
+                    return new CryptoStatusBundle(CryptoStatus.INVALID_KEYS_BUNDLE, json.toString());
+                }
+                for (Map.Entry<Object, Object> entry : Utils.asMap((JSONObject) jsonCollectionsObj).entrySet()) {
+                    KeyBundle keys = getKeyBundle(entry.getValue());
+                    if (keys == null) {
+                        return new CryptoStatusBundle(CryptoStatus.INVALID_KEYS_BUNDLE, json.toString());
+                    }
+                    collectionKeys.put((String) entry.getKey(), keys);
+                }
+            }
+            
+            keyRegistry.setKeys(defaultKeys, collectionKeys);
             
-            // Return the string containing the decrypted payload
-            return new CryptoStatusBundle(CryptoStatus.OK, new String(cryptoKeysBundle));
+            // Return the decrypted payload
+            return decrypted;
         } else {
             return new CryptoStatusBundle(CryptoStatus.INVALID_KEYS_BUNDLE, json.toString());
         }
@@ -210,30 +660,45 @@ public class SyncCryptographer {
      */
     public CryptoStatusBundle generateCryptoKeysWBOPayload() {
         
-        // Generate the keys and save for later use
+        // Generate the keys and save for later use, this bundle has no
+        // per-collection keys
         KeyBundle cryptoKeys = Cryptographer.generateKeys();
-        setKeys(Base64.encodeBase64String(cryptoKeys.getEncryptionKey()),
-                Base64.encodeBase64String(cryptoKeys.getHmacKey()));
-        
-        // Generate json
-        JSONArray keysArray = new JSONArray();
-        Utils.asAList(keysArray).add(new String(Base64.encodeBase64(cryptoKeys.getEncryptionKey()))); 
-        Utils.asAList(keysArray).add(new String(Base64.encodeBase64(cryptoKeys.getHmacKey())));
-        JSONObject json = new JSONObject();
-        Utils.asMap(json).put(KEY_ID, ID_CRYPTO_KEYS);
-        Utils.asMap(json).put(KEY_COLLECTION, CRYPTO_KEYS_COLLECTION);
-        Utils.asMap(json).put(KEY_COLLECTIONS, "{}");
-        Utils.asMap(json).put(KEY_DEFAULT_COLLECTION, keysArray);
+        keyRegistry.setKeys(cryptoKeys, new HashMap<String, KeyBundle>());
         
         // Get the keys to encrypt the crypto keys bundle
-        KeyBundle cryptoKeysBundleKeys;
-        try {
-            cryptoKeysBundleKeys = getCryptoKeysBundleKeys();
-        } catch (Exception e) {
-            return new CryptoStatusBundle(CryptoStatus.MISSING_SYNCKEY_OR_USER, "");
+        KeyBundle cryptoKeysBundleKeys = deriveCryptoKeysBundleKeys();
+        if (cryptoKeysBundleKeys == null) {
+            return count(encryptCounters, new CryptoStatusBundle(CryptoStatus.MISSING_SYNCKEY_OR_USER, ""));
         }
         
-        return encrypt(json.toString(), cryptoKeysBundleKeys);
+        return encrypt(createCryptoKeysJson(cryptoKeys), cryptoKeysBundleKeys);
+    }
+    
+    /*
+     * Helper to build the cleartext of a crypto/keys record holding only
+     * default keys. Package-private for AccountProvisioner.
+     * 
+     * The keys are Base64 encoded straight into the returned array, no
+     * String ever holds them, so callers can wipe the cleartext once it
+     * has been encrypted:
+     * {"id":"keys","collection":"crypto","collections":{},"default":["...","..."]}
+     * 
+     * Input:   the bulk keys
+     * Output:  UTF-8 encoded json
+     */
+    static byte[] createCryptoKeysJson(KeyBundle cryptoKeys) {
+        byte[] encryptionKey = cryptoKeys.getEncryptionKey();
+        byte[] hmacKey = cryptoKeys.getHmacKey();
+        byte[] json = new byte[JSON_CRYPTO_KEYS.length + Utils.base64Length(encryptionKey.length) + 
+                               JSON_KEY_SEPARATOR.length + Utils.base64Length(hmacKey.length) + 
+                               JSON_CRYPTO_KEYS_END.length];
+        int pos = 0;
+        pos = append(json, pos, JSON_CRYPTO_KEYS);
+        pos += Utils.encodeBase64(encryptionKey, 0, encryptionKey.length, json, pos);
+        pos = append(json, pos, JSON_KEY_SEPARATOR);
+        pos += Utils.encodeBase64(hmacKey, 0, hmacKey.length, json, pos);
+        append(json, pos, JSON_CRYPTO_KEYS_END);
+        return json;
     }
     
     /////////////////////// HELPERS /////////////////////////////
@@ -244,31 +709,135 @@ public class SyncCryptographer {
      * Input:   Message to encrypt, Keys for encryption/hmac
      * Output:  CryptoStatusBundle with a json payload containing
      *          crypto information (ciphertext, iv, hmac) 
+     *          Package-private for UploadBatchEncryptor and AccountProvisioner.
      */
-    private CryptoStatusBundle encrypt(String message, KeyBundle keys) {
-        CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(message.getBytes(), keys));
-        String payload = createJSONBundle(encrypted);
-        return new CryptoStatusBundle(CryptoStatus.OK, payload);
+    CryptoStatusBundle encrypt(byte[] message, KeyBundle keys) {
+        CryptoMetricsListener metrics = metricsListener;
+        long start = startTime(metrics);
+        
+        CryptoInfo encrypted = Cryptographer.encryptWithoutHmac(new CryptoInfo(message, keys));
+        if (encrypted == null) {
+            // The keys can't be used with the cipher
+            return count(encryptCounters, new CryptoStatusBundle(CryptoStatus.INVALID_KEYS_BUNDLE, message));
+        }
+        start = endStage(metrics, Operation.ENCRYPT, Stage.AES, start, message.length);
+        
+        // The Base64 ciphertext is both what the HMAC covers and what is sent
+        byte[] base64CipherText = Base64.encodeBase64(encrypted.getMessage());
+        byte[] base64Iv = Base64.encodeBase64(encrypted.getIv());
+        start = endStage(metrics, Operation.ENCRYPT, Stage.BASE64, start, encrypted.getMessage().length);
+        
+        byte[] hmac = Cryptographer.generateHmac(base64CipherText, keys);
+        start = endStage(metrics, Operation.ENCRYPT, Stage.HMAC, start, base64CipherText.length);
+        
+        byte[] payload = createJSONBundle(base64CipherText, base64Iv, hmac);
+        endStage(metrics, Operation.ENCRYPT, Stage.SERIALIZE, start, payload.length);
+        
+        return count(encryptCounters, new CryptoStatusBundle(CryptoStatus.OK, payload));
     }
     
     /*
-     * Helper method for doing actual decryption
+     * Helper method for doing actual decryption. Failures are reported
+     * through the status, nothing is thrown or printed.
      * 
-     * Input:   JSONObject containing a valid payload (cipherText, IV, hmac),
-     *          KeyBundle with keys for decryption
-     * Output:  byte[] clearText
+     * Input:   WBOEnvelope containing a valid payload (cipherText, IV, hmac),
+     *          KeyBundle with keys for decryption, the WBO as String or
+     *          byte[] to hand back on failure, listener for stage timings
+     * Output:  CryptoStatusBundle with the clearText as payload, or
+     *          HMAC_VERIFY_FAIL/DECRYPTION_FAIL and the WBO
      */
-    private byte[] decryptPayload(JSONObject payload, KeyBundle keybundle) {
-        byte[] clearText = Cryptographer.decrypt(
-            new CryptoInfo (
-                    Base64.decodeBase64( (String) payload.get(KEY_CIPHER_TEXT) ),
-                    Base64.decodeBase64( (String) payload.get(KEY_IV) ),
-                    Utils.hex2Byte( (String) payload.get(KEY_HMAC) ),
-                    keybundle
-                )
-            );
+    private CryptoStatusBundle decryptPayload(WBOEnvelope envelope, KeyBundle keybundle, Object wbo, 
+                                              CryptoMetricsListener metrics) {
+        // Seen and verified before under these keys
+        DecryptedRecordCache cache = recordCache;
+        if (cache != null) {
+            byte[] cached = cache.get(keybundle, envelope.getId(), envelope.getHmac(), 
+                                      envelope.getCiphertext(), envelope.getIv());
+            if (cached != null) {
+                return new CryptoStatusBundle(CryptoStatus.OK, cached);
+            }
+        }
+        
+        long start = startTime(metrics);
+        
+        // The received hmac is compared against a secret, decode it in constant time
+        String hexHmac = envelope.getHmac();
+        byte[] hmac = new byte[hexHmac.length() / 2];
+        if (!Utils.hex2ByteConstantTime(hexHmac, hmac)) {
+            return statusBundle(CryptoStatus.HMAC_VERIFY_FAIL, wbo);
+        }
         
-        return clearText;
+        // The HMAC covers the Base64 ciphertext as sent, so it is checked
+        // before anything is decoded
+        byte[] base64CipherText = envelope.getCiphertext().getBytes(StandardCharsets.US_ASCII);
+        boolean verified = Cryptographer.verifyHmac(base64CipherText, hmac, keybundle);
+        start = endStage(metrics, Operation.DECRYPT, Stage.HMAC, start, base64CipherText.length);
+        if (!verified) {
+            return statusBundle(CryptoStatus.HMAC_VERIFY_FAIL, wbo);
+        }
+        
+        byte[] cipherText = Base64.decodeBase64(base64CipherText);
+        byte[] iv = Base64.decodeBase64(envelope.getIv().getBytes(StandardCharsets.US_ASCII));
+        start = endStage(metrics, Operation.DECRYPT, Stage.BASE64, start, base64CipherText.length);
+        
+        byte[] clearText = Cryptographer.decryptVerified(cipherText, iv, keybundle);
+        endStage(metrics, Operation.DECRYPT, Stage.AES, start, cipherText.length);
+        if (clearText == null) {
+            return statusBundle(CryptoStatus.DECRYPTION_FAIL, wbo);
+        }
+        
+        if (cache != null) {
+            cache.put(keybundle, envelope.getId(), envelope.getHmac(), envelope.getCiphertext(), 
+                      envelope.getIv(), clearText);
+        }
+        return new CryptoStatusBundle(CryptoStatus.OK, clearText);
+    }
+    
+    /*
+     * Fallback for json WBOEnvelopeParser can't handle. Does a full
+     * parse of the WBO and then of its payload.
+     * 
+     * Input:   String containing json
+     * Output:  Extracted WBOEnvelope, null if json is invalid
+     */
+    private WBOEnvelope parseWBOEnvelope(String jsonString) {
+        try {
+            JSONObject json = getJSONObject(jsonString);
+            JSONObject payload = getJSONObject(json, KEY_PAYLOAD);
+            return new WBOEnvelope(
+                    (String) json.get(KEY_ID),
+                    (String) payload.get(KEY_CIPHER_TEXT),
+                    (String) payload.get(KEY_IV),
+                    (String) payload.get(KEY_HMAC));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    /*
+     * Helper to read a [base64EncryptionKey, base64HmacKey] pair
+     * Input:   json value of a key pair
+     * Output:  KeyBundle, or null if the value is not a key pair of
+     *          256 bit keys
+     */
+    private KeyBundle getKeyBundle(Object jsonKeysObj) {
+        if (jsonKeysObj == null || jsonKeysObj.getClass() != JSONArray.class) {
+            return null;
+        }
+        
+        JSONArray jsonKeys = (JSONArray) jsonKeysObj;
+        if (jsonKeys.size() != 2 || !(jsonKeys.get(0) instanceof String) || !(jsonKeys.get(1) instanceof String)) {
+            return null;
+        }
+        
+        // Check the lengths here, an empty or short key would only fail
+        // later when the Cipher or Mac is keyed
+        byte[] encryptionKey = Base64.decodeBase64((String) jsonKeys.get(0));
+        byte[] hmacKey = Base64.decodeBase64((String) jsonKeys.get(1));
+        if (encryptionKey.length != Cryptographer.KEY_SIZE / 8 || hmacKey.length != Cryptographer.KEY_SIZE / 8) {
+            return null;
+        }
+        return new KeyBundle(encryptionKey, hmacKey);
     }
     
     /*
@@ -303,14 +872,74 @@ public class SyncCryptographer {
     }
     
     /*
-     * Helper to create json bundle for encrypted objects
+     * Helper to create json bundle for encrypted objects. The values
+     * are Base64 and hex, which never need escaping, so the UTF-8 json
+     * is assembled directly: {"ciphertext":"...","IV":"...","hmac":"..."}
+     */
+    private byte[] createJSONBundle(byte[] cipherText, byte[] iv, byte[] hmac) {
+        byte[] json = new byte[JSON_CIPHER_TEXT.length + cipherText.length + JSON_IV.length +
+                               iv.length + JSON_HMAC.length + hmac.length * 2 + JSON_END.length];
+        int pos = 0;
+        pos = append(json, pos, JSON_CIPHER_TEXT);
+        pos = append(json, pos, cipherText);
+        pos = append(json, pos, JSON_IV);
+        pos = append(json, pos, iv);
+        pos = append(json, pos, JSON_HMAC);
+        Utils.byte2hex(hmac, 0, hmac.length, json, pos);
+        pos += hmac.length * 2;
+        append(json, pos, JSON_END);
+        return json;
+    }
+    
+    private static int append(byte[] dst, int pos, byte[] src) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+    
+    /*
+     * Helper to copy the remaining bytes of a buffer
      */
-    private String createJSONBundle(CryptoInfo info) {
-        JSONObject json = new JSONObject();
-        Utils.asMap(json).put(KEY_CIPHER_TEXT, new String(Base64.encodeBase64(info.getMessage())));
-        Utils.asMap(json).put(KEY_HMAC, Utils.byte2hex(info.getHmac()));
-        Utils.asMap(json).put(KEY_IV, new String(Base64.encodeBase64(info.getIv())));
-        return json.toString();
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+    
+    /*
+     * Helper to build a status bundle around a WBO given as String or byte[]
+     */
+    private static CryptoStatusBundle statusBundle(CryptoStatus status, Object wbo) {
+        if (wbo instanceof byte[]) {
+            return new CryptoStatusBundle(status, (byte[]) wbo);
+        }
+        return new CryptoStatusBundle(status, (String) wbo);
+    }
+    
+    /*
+     * Helpers for stage timings. Nothing is timed for the NOOP listener.
+     * 
+     * endStage() Output: end of the stage, to be used as the start of the next one
+     */
+    private static long startTime(CryptoMetricsListener metrics) {
+        return metrics == CryptoMetricsListener.NOOP ? 0 : System.nanoTime();
+    }
+    
+    private static long endStage(CryptoMetricsListener metrics, Operation operation, Stage stage, 
+                                 long start, long bytes) {
+        if (metrics == CryptoMetricsListener.NOOP) {
+            return 0;
+        }
+        long end = System.nanoTime();
+        metrics.onStage(operation, stage, end - start, bytes);
+        return end;
+    }
+    
+    /*
+     * Helper to record the status of a finished operation
+     */
+    private static CryptoStatusBundle count(CryptoStatusCounters counters, CryptoStatusBundle bundle) {
+        counters.increment(bundle.getStatus());
+        return bundle;
     }
     
     /*
@@ -319,45 +948,201 @@ public class SyncCryptographer {
      * Throws:  Exception if syncKey or username is not set
      */
     public KeyBundle getCryptoKeysBundleKeys() throws Exception {
-        // Check that we have the sync key and username
-        if (syncKey == null || username.equalsIgnoreCase("")) {
+        KeyBundle keys = deriveCryptoKeysBundleKeys();
+        if (keys == null) {
             throw new Exception();
         }
+        return keys;
+    }
+    
+    /*
+     * Same as above without the exception
+     * 
+     * Output:  KeyBundle, null if syncKey or username is not set
+     */
+    private KeyBundle deriveCryptoKeysBundleKeys() {
+        Credentials current = credentials;
         
-        byte[][] keys = HKDF.getCryptoKeysBundleKeys(syncKey, username.getBytes());
-        return new KeyBundle(keys[0], keys[1]);
+        // Check that we have the sync key and username
+        if (current.syncKey == null || current.username == null || current.username.equalsIgnoreCase("")) {
+            return null;
+        }
+        
+        return derivedKeyCache.getCryptoKeysBundleKeys(current.syncKey, current.username.getBytes(StandardCharsets.UTF_8));
     }
 
     /*
      * Accessors/Mutators
      */
     public byte[] getSyncKey() {
-        return syncKey;
+        byte[] syncKey = credentials.syncKey;
+        return syncKey == null ? null : syncKey.clone();
     }
 
     /*
      * Input: FriendlyBase32 encoded sync key
      */
     public void setSyncKey(String friendlyBase32SyncKey) {
-        this.syncKey = Utils.decodeFriendlyBase32(friendlyBase32SyncKey);
+        byte[] syncKey = Utils.decodeFriendlyBase32(friendlyBase32SyncKey);
+        synchronized (this) {
+            credentials = new Credentials(credentials.username, syncKey);
+        }
+    }
+    
+    /*
+     * Set username and sync key together, so no thread can see
+     * the new username with the old sync key or vice versa.
+     * 
+     * Input: username, FriendlyBase32 encoded sync key
+     */
+    public void setCredentials(String username, String friendlyBase32SyncKey) {
+        byte[] syncKey = Utils.decodeFriendlyBase32(friendlyBase32SyncKey);
+        synchronized (this) {
+            credentials = new Credentials(username, syncKey);
+        }
     }
 
+    /*
+     * Output: The default keys
+     */
     public KeyBundle getKeys() {
-        return keys;
+        return keyRegistry.getDefaultKeys();
+    }
+    
+    /*
+     * Output: The keys used for the given collection
+     */
+    public KeyBundle getKeys(String collection) {
+        return keyRegistry.getKeys(collection);
+    }
+    
+    public KeyRegistry getKeyRegistry() {
+        return keyRegistry;
     }
 
     /*
+     * Sets the default keys, per-collection keys are kept
      * Input: Base64 encoded encryption and hmac keys
      */
     public void setKeys(String base64EncryptionKey, String base64HmacKey) {
-        this.keys = new KeyBundle(Base64.decodeBase64(base64EncryptionKey), Base64.decodeBase64(base64HmacKey));
+        byte[] encryptionKey = Base64.decodeBase64(base64EncryptionKey);
+        byte[] hmacKey = Base64.decodeBase64(base64HmacKey);
+        
+        // Empty keys (as set by the constructors) mean there are no keys yet
+        if (encryptionKey.length == 0 && hmacKey.length == 0) {
+            keyRegistry.setDefaultKeys(null);
+        } else {
+            keyRegistry.setDefaultKeys(new KeyBundle(encryptionKey, hmacKey));
+        }
+    }
+    
+    public ForkJoinPool getDecryptPool() {
+        return decryptPool;
+    }
+    
+    /*
+     * Input: Pool used by decryptWBOs when no pool is given
+     */
+    public void setDecryptPool(ForkJoinPool decryptPool) {
+        this.decryptPool = decryptPool;
+    }
+    
+    /*
+     * Output: Executor for the *Async methods, CryptoExecutors.getDefault()
+     *         (created now if this is its first use) unless one was set
+     */
+    public Executor getAsyncExecutor() {
+        Executor executor = asyncExecutor;
+        return executor != null ? executor : CryptoExecutors.getDefault();
+    }
+    
+    /*
+     * Input: Executor for the *Async methods, null for CryptoExecutors.getDefault()
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+    
+    public DecryptedRecordCache getRecordCache() {
+        return recordCache;
+    }
+    
+    /*
+     * Input: Cache of decrypted records, null (the default) for none.
+     *        Cleared whenever the keys are rotated.
+     */
+    public void setRecordCache(DecryptedRecordCache recordCache) {
+        this.recordCache = recordCache;
+    }
+    
+    private void clearRecordCache() {
+        DecryptedRecordCache cache = recordCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+    
+    public DerivedKeyCache getDerivedKeyCache() {
+        return derivedKeyCache;
+    }
+    
+    /*
+     * Input: Cache for the crypto/keys bundle keys, shared by default
+     */
+    public void setDerivedKeyCache(DerivedKeyCache derivedKeyCache) {
+        this.derivedKeyCache = derivedKeyCache;
+    }
+    
+    /*
+     * Output: Number of encryptWBO/generateCryptoKeysWBOPayload calls
+     *         per resulting status
+     */
+    public CryptoStatusCounters getEncryptCounters() {
+        return encryptCounters;
+    }
+    
+    /*
+     * Output: Number of WBOs decrypted per resulting status, including
+     *         those decrypted in batches
+     */
+    public CryptoStatusCounters getDecryptCounters() {
+        return decryptCounters;
+    }
+    
+    public CryptoMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+    
+    /*
+     * Input: Listener for per-stage timings, null or
+     *        CryptoMetricsListener.NOOP to turn metrics off
+     */
+    public void setMetricsListener(CryptoMetricsListener metricsListener) {
+        this.metricsListener = metricsListener == null ? CryptoMetricsListener.NOOP : metricsListener;
     }
     
     public String getUsername() {
-        return username;
+        return credentials.username;
     }
     
     public void setUsername(String username) {
-        this.username = username;
+        synchronized (this) {
+            credentials = new Credentials(username, credentials.syncKey);
+        }
+    }
+    
+    /*
+     * Immutable (username, sync key) pair. Writers replace it under
+     * the object's lock, readers just read the volatile field.
+     */
+    private static final class Credentials {
+        
+        private final String username;
+        private final byte[] syncKey;
+        
+        Credentials(String username, byte[] syncKey) {
+            this.username = username;
+            this.syncKey = syncKey;
+        }
     }
 }
\ No newline at end of file
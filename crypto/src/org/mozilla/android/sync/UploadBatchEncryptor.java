@@ -0,0 +1,326 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.simple.JSONValue;
+import org.mozilla.android.sync.domain.ClearTextWBO;
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+/*
+ * Encrypts outgoing records in parallel and writes them as ready to
+ * POST json arrays of WBOs: [{"id":"...","payload":"..."},...]
+ * 
+ * Output is split into chunks so that no chunk is larger than maxBytes
+ * or holds more than maxRecords records. Each chunk goes to its own
+ * stream from a ChunkSink; to write to a WritableByteChannel, return
+ * Channels.newOutputStream(channel) from the sink.
+ * 
+ * Records are taken from the input a window at a time. A window is
+ * encrypted and serialized in parallel, then written in input order,
+ * so memory use is bounded by the window rather than the whole upload.
+ * All records in a call are encrypted with the keys that were set when
+ * it started.
+ * 
+ * Records that are not written are reported as failures: INVALID_JSON
+ * for a null id, RECORD_TOO_LARGE for a record that can't fit in a
+ * chunk even on its own, or the encryption status.
+ */
+public class UploadBatchEncryptor {
+    
+    private static final byte[] RECORD_START =      "{\"id\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PAYLOAD_START =     ",\"payload\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RECORD_END =        "\"}".getBytes(StandardCharsets.US_ASCII);
+    
+    /*
+     * Destination of the chunks
+     */
+    public interface ChunkSink {
+        
+        /*
+         * Input:   index of the chunk, starting at 0
+         * Output:  stream the chunk is written to
+         */
+        public OutputStream openChunk(int index) throws IOException;
+        
+        /*
+         * Called once the whole chunk has been written to out, e.g. to
+         * close it and send it.
+         * 
+         * Input:   index of the chunk, the stream from openChunk, number
+         *          of records and bytes in the chunk
+         */
+        public void closeChunk(int index, OutputStream out, int records, long bytes) throws IOException;
+    }
+    
+    private final SyncCryptographer cryptographer;
+    private final long maxBytes;
+    private final int maxRecords;
+    
+    /*
+     * Input:   cryptographer whose keys are used, maximum size of a chunk
+     *          in bytes and records (0 or less for no limit)
+     */
+    public UploadBatchEncryptor(SyncCryptographer cryptographer, long maxBytes, int maxRecords) {
+        this.cryptographer = cryptographer;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.maxRecords = maxRecords > 0 ? maxRecords : Integer.MAX_VALUE;
+    }
+    
+    public Result encryptWBOs(List<ClearTextWBO> records, String collection, ChunkSink sink) throws IOException {
+        return encryptWBOs(records.iterator(), collection, sink, ForkJoinPool.commonPool());
+    }
+    
+    /*
+     * Input:   records to upload, the collection they belong to (null
+     *          for the default keys), where to write the chunks, pool
+     *          to encrypt on
+     * Output:  Result describing what was written and what was not
+     * Throws:  IOException from the sink, the chunk being written is
+     *          left incomplete
+     */
+    public Result encryptWBOs(Iterator<ClearTextWBO> records, String collection, ChunkSink sink, 
+                              ForkJoinPool pool) throws IOException {
+        final Result result = new Result();
+        final KeyBundle keys = cryptographer.getKeyRegistry().getKeys(collection);
+        if (keys == null) {
+            long position = 0;
+            while (records.hasNext()) {
+                result.addFailure(records.next().getId(), position++, CryptoStatus.MISSING_KEYS);
+            }
+            return result;
+        }
+        
+        final ChunkWriter writer = new ChunkWriter(sink, result);
+        new WindowedBatch<ClearTextWBO, byte[]>() {
+            @Override
+            void process(ClearTextWBO record, long position, Slot<byte[]> slot) {
+                if (record.getId() == null) {
+                    slot.fail(null, CryptoStatus.INVALID_JSON);
+                    return;
+                }
+                CryptoStatusBundle bundle = cryptographer.encrypt(record.getClearText(), keys);
+                if (bundle.getStatus() == CryptoStatus.OK) {
+                    slot.succeed(record.getId(), serialize(record.getId(), bundle.getPayload()));
+                } else {
+                    slot.fail(record.getId(), bundle.getStatus());
+                }
+            }
+            
+            @Override
+            void accept(ClearTextWBO record, long position, Slot<byte[]> slot) throws IOException {
+                if (slot.isOk()) {
+                    writer.write(record.getId(), position, slot.getValue());
+                } else {
+                    result.addFailure(record.getId(), position, slot.getStatus());
+                }
+            }
+        }.run(records, 0, pool);
+        
+        writer.finish();
+        return result;
+    }
+    
+    /*
+     * Helper to build {"id":"...","payload":"..."} for an encrypted
+     * payload. The payload json is written as a json string, which only
+     * needs its quotes and backslashes escaped as it is plain ASCII.
+     * 
+     * Input:   record id, UTF-8 encoded payload json
+     * Output:  UTF-8 encoded WBO json
+     */
+    static byte[] serialize(String id, byte[] payload) {
+        byte[] jsonId = ("\"" + JSONValue.escape(id) + "\"").getBytes(StandardCharsets.UTF_8);
+        
+        byte[] wbo = new byte[RECORD_START.length + jsonId.length + PAYLOAD_START.length +
+                              escapedLength(payload) + RECORD_END.length];
+        int pos = 0;
+        System.arraycopy(RECORD_START, 0, wbo, pos, RECORD_START.length);
+        pos += RECORD_START.length;
+        System.arraycopy(jsonId, 0, wbo, pos, jsonId.length);
+        pos += jsonId.length;
+        System.arraycopy(PAYLOAD_START, 0, wbo, pos, PAYLOAD_START.length);
+        pos += PAYLOAD_START.length;
+        pos = writeEscaped(payload, wbo, pos);
+        System.arraycopy(RECORD_END, 0, wbo, pos, RECORD_END.length);
+        return wbo;
+    }
+    
+    /*
+     * Helpers to write an ASCII payload json as the contents of a json
+     * string, only quotes and backslashes need escaping
+     * 
+     * Input:   payload, and where to write it
+     * Output:  its escaped length, or the position after it
+     */
+    static int escapedLength(byte[] payload) {
+        int length = payload.length;
+        for (byte b : payload) {
+            if (b == '"' || b == '\\') {
+                length++;
+            }
+        }
+        return length;
+    }
+    
+    static int writeEscaped(byte[] payload, byte[] dst, int pos) {
+        for (byte b : payload) {
+            if (b == '"' || b == '\\') {
+                dst[pos++] = '\\';
+            }
+            dst[pos++] = b;
+        }
+        return pos;
+    }
+    
+    /*
+     * Writes serialized records into chunks, starting a new chunk
+     * whenever the next record would break a limit
+     */
+    private class ChunkWriter {
+        
+        private final ChunkSink sink;
+        private final Result result;
+        
+        private OutputStream out;
+        private int index;
+        private int records;
+        private long bytes;
+        
+        ChunkWriter(ChunkSink sink, Result result) {
+            this.sink = sink;
+            this.result = result;
+        }
+        
+        void write(String id, long position, byte[] wbo) throws IOException {
+            
+            // Alone in a chunk: "[" + wbo + "]"
+            if (wbo.length + 2 > maxBytes) {
+                result.oversized.add(id);
+                result.addFailure(id, position, CryptoStatus.RECORD_TOO_LARGE);
+                return;
+            }
+            
+            // After other records: "," + wbo, with "]" still to come
+            if (out != null && (records >= maxRecords || bytes + 1 + wbo.length + 1 > maxBytes)) {
+                finish();
+            }
+            
+            if (out == null) {
+                out = sink.openChunk(index);
+                out.write('[');
+                bytes = 1;
+            } else {
+                out.write(',');
+                bytes++;
+            }
+            out.write(wbo);
+            bytes += wbo.length;
+            records++;
+        }
+        
+        void finish() throws IOException {
+            if (out == null) {
+                return;
+            }
+            out.write(']');
+            bytes++;
+            sink.closeChunk(index, out, records, bytes);
+            
+            result.chunks++;
+            result.records += records;
+            result.bytes += bytes;
+            
+            out = null;
+            index++;
+            records = 0;
+            bytes = 0;
+        }
+    }
+    
+    /*
+     * Outcome of an upload batch
+     */
+    public static final class Result extends BatchResult {
+        
+        private int chunks;
+        private int records;
+        private long bytes;
+        private final List<String> oversized = new ArrayList<String>();
+        
+        /*
+         * Output: number of chunks written
+         */
+        public int getChunks() {
+            return chunks;
+        }
+        
+        /*
+         * Output: number of records written
+         */
+        public int getRecords() {
+            return records;
+        }
+        
+        /*
+         * Output: total size of all chunks
+         */
+        public long getBytes() {
+            return bytes;
+        }
+        
+        /*
+         * Output: ids of the records too large to fit in any chunk, these
+         *         are also among the failures as RECORD_TOO_LARGE
+         */
+        public List<String> getOversized() {
+            return Collections.unmodifiableList(oversized);
+        }
+    }
+    
+}
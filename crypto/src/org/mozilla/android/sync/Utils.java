@@ -37,6 +37,10 @@
 
 package org.mozilla.android.sync;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
@@ -44,55 +48,294 @@ import java.util.Map;
 import org.apache.commons.codec.binary.Base32;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.mozilla.android.sync.domain.KeyBundle;
 
 public class Utils {
     
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+    
+    // Value of every hex digit indexed by character, -1 for anything else
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+    
+    private static final byte[] BASE64_CHARS = 
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    
+    // Value of every Base64 digit indexed by character, -1 for anything else
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        for (int i = 0; i < BASE64_CHARS.length; i++) {
+            BASE64_VALUES[BASE64_CHARS[i]] = (byte) i;
+        }
+    }
+    
     /*
      * Helper to convert Hex String to Byte Array
      * Input: Hex string
      * Output: byte[] version of hex string
+     * Throws: NumberFormatException if the string is not hex
      */
     public static byte[] hex2Byte(String str)
     {
-        if (str.length() % 2 == 1) {
-            str = "0" + str;
+        // An odd length string has an implied leading zero
+        int odd = str.length() % 2;
+        byte[] bytes = new byte[(str.length() + odd) / 2];
+        if (odd == 1) {
+            int value = hexValue(str.charAt(0));
+            if (value < 0) {
+                throw new NumberFormatException("Invalid hex string");
+            }
+            bytes[0] = (byte) value;
         }
         
-        byte[] bytes = new byte[str.length() / 2];
-        for (int i = 0; i < bytes.length; i++)
-        {
-            bytes[i] = (byte) Integer
-                .parseInt(str.substring(2 * i, 2 * i + 2), 16);
+        if (!hex2Byte(str, odd, str.length() - odd, bytes, odd)) {
+            throw new NumberFormatException("Invalid hex string");
         }
         return bytes;
     }
     
+    /*
+     * Decode hex characters into a caller supplied array
+     * Input:   Hex chars (src, offset, even length), destination array and offset
+     * Output:  false if a character is not a hex digit, true otherwise.
+     *          len / 2 bytes are written to dst.
+     */
+    public static boolean hex2Byte(CharSequence src, int srcOffset, int len, byte[] dst, int dstOffset) {
+        int end = srcOffset + len;
+        for (int i = srcOffset; i < end; i += 2) {
+            int high = hexValue(src.charAt(i));
+            int low = hexValue(src.charAt(i + 1));
+            if ((high | low) < 0) {
+                return false;
+            }
+            dst[dstOffset++] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+    
+    /*
+     * Same as above, for hex digits stored as ASCII bytes
+     */
+    public static boolean hex2Byte(byte[] src, int srcOffset, int len, byte[] dst, int dstOffset) {
+        int end = srcOffset + len;
+        for (int i = srcOffset; i < end; i += 2) {
+            int high = hexValue(src[i]);
+            int low = hexValue(src[i + 1]);
+            if ((high | low) < 0) {
+                return false;
+            }
+            dst[dstOffset++] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+    
+    /*
+     * Same as above, decoding all remaining ASCII hex digits of src
+     * into dst. Both buffers' positions are advanced.
+     */
+    public static boolean hex2Byte(ByteBuffer src, ByteBuffer dst) {
+        while (src.remaining() >= 2) {
+            int high = hexValue(src.get());
+            int low = hexValue(src.get());
+            if ((high | low) < 0) {
+                return false;
+            }
+            dst.put((byte) ((high << 4) | low));
+        }
+        return true;
+    }
+    
+    /*
+     * Decode hex in constant time. Use this for values that are compared
+     * against secrets (like a received HMAC), so neither table lookups nor
+     * branches depend on the characters being decoded.
+     * 
+     * Input:   Hex chars (even length), destination array of length / 2
+     * Output:  false if a character is not a hex digit, true otherwise.
+     *          The timing does not depend on where a bad digit is.
+     */
+    public static boolean hex2ByteConstantTime(CharSequence src, byte[] dst) {
+        if (src.length() != dst.length * 2) {
+            return false;
+        }
+        
+        int bad = 0;
+        for (int i = 0; i < dst.length; i++) {
+            int high = hexValueConstantTime(src.charAt(2 * i));
+            int low = hexValueConstantTime(src.charAt(2 * i + 1));
+            bad |= high | low;
+            dst[i] = (byte) ((high << 4) | low);
+        }
+        return (bad & ~0xF) == 0;
+    }
+    
     /*
      * Helper to convert Byte Array to a Hex String
      * Input: byte[] array
      * Output: Hex string
      */
     public static String byte2hex(byte[] b) {
-
-        // String Buffer can be used instead
-        String hs = "";
-        String stmp = "";
-
-        for (int n = 0; n < b.length; n++) {
-            stmp = (java.lang.Integer.toHexString(b[n] & 0XFF));
+        char[] chars = new char[b.length * 2];
+        byte2hex(b, 0, b.length, chars, 0);
+        return new String(chars);
+    }
+    
+    /*
+     * Encode bytes as lower case hex into a caller supplied array
+     * Input:   Bytes (src, offset, length), destination array of at
+     *          least len * 2 chars after dstOffset
+     */
+    public static void byte2hex(byte[] src, int srcOffset, int len, char[] dst, int dstOffset) {
+        int end = srcOffset + len;
+        for (int i = srcOffset; i < end; i++) {
+            dst[dstOffset++] = HEX_CHARS[(src[i] >> 4) & 0xF];
+            dst[dstOffset++] = HEX_CHARS[src[i] & 0xF];
+        }
+    }
+    
+    /*
+     * Same as above, writing the hex digits as ASCII bytes
+     */
+    public static void byte2hex(byte[] src, int srcOffset, int len, byte[] dst, int dstOffset) {
+        int end = srcOffset + len;
+        for (int i = srcOffset; i < end; i++) {
+            dst[dstOffset++] = (byte) HEX_CHARS[(src[i] >> 4) & 0xF];
+            dst[dstOffset++] = (byte) HEX_CHARS[src[i] & 0xF];
+        }
+    }
+    
+    /*
+     * Same as above, encoding all remaining bytes of src into dst
+     * as ASCII hex digits. Both buffers' positions are advanced.
+     */
+    public static void byte2hex(ByteBuffer src, ByteBuffer dst) {
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            dst.put((byte) HEX_CHARS[(b >> 4) & 0xF]);
+            dst.put((byte) HEX_CHARS[b & 0xF]);
+        }
+    }
+    
+    /*
+     * Encode bytes as padded standard Base64 into a caller supplied array
+     * Input:   Bytes (src, offset, length), destination array of at least
+     *          base64Length(len) bytes after dstOffset
+     * Output:  number of bytes written
+     */
+    public static int encodeBase64(byte[] src, int srcOffset, int len, byte[] dst, int dstOffset) {
+        int end = srcOffset + len;
+        int pos = dstOffset;
+        int i = srcOffset;
+        for (; i + 3 <= end; i += 3) {
+            int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst[pos++] = BASE64_CHARS[bits >>> 18];
+            dst[pos++] = BASE64_CHARS[(bits >>> 12) & 0x3F];
+            dst[pos++] = BASE64_CHARS[(bits >>> 6) & 0x3F];
+            dst[pos++] = BASE64_CHARS[bits & 0x3F];
+        }
+        if (i < end) {
+            int bits = (src[i] & 0xFF) << 16 | (i + 1 < end ? (src[i + 1] & 0xFF) << 8 : 0);
+            dst[pos++] = BASE64_CHARS[bits >>> 18];
+            dst[pos++] = BASE64_CHARS[(bits >>> 12) & 0x3F];
+            dst[pos++] = i + 1 < end ? BASE64_CHARS[(bits >>> 6) & 0x3F] : (byte) '=';
+            dst[pos++] = '=';
+        }
+        return pos - dstOffset;
+    }
+    
+    /*
+     * Decode padded standard Base64 into a caller supplied array
+     * Input:   Base64 as ASCII bytes (src, offset, length a multiple of 4),
+     *          destination array of at least len / 4 * 3 bytes after dstOffset
+     * Output:  number of bytes written, or -1 if src is not valid Base64
+     */
+    public static int decodeBase64(byte[] src, int srcOffset, int len, byte[] dst, int dstOffset) {
+        if (len % 4 != 0) {
+            return -1;
+        }
+        int end = srcOffset + len;
+        int pos = dstOffset;
+        for (int i = srcOffset; i < end; i += 4) {
+            int a = base64Value(src[i]);
+            int b = base64Value(src[i + 1]);
+            if (a < 0 || b < 0) {
+                return -1;
+            }
             
-            if (stmp.length() == 1) {
-                hs = hs + "0" + stmp;
-            } else {
-                hs = hs + stmp;
+            // Padding is only allowed at the very end
+            boolean last = i + 4 == end;
+            if (last && src[i + 3] == '=') {
+                dst[pos++] = (byte) (a << 2 | b >> 4);
+                if (src[i + 2] == '=') {
+                    return (b & 0xF) == 0 ? pos - dstOffset : -1;
+                }
+                int c = base64Value(src[i + 2]);
+                if (c < 0 || (c & 0x3) != 0) {
+                    return -1;
+                }
+                dst[pos++] = (byte) (b << 4 | c >> 2);
+                return pos - dstOffset;
             }
             
-            if (n < b.length - 1) {
-                hs = hs + "";
+            int c = base64Value(src[i + 2]);
+            int d = base64Value(src[i + 3]);
+            if (c < 0 || d < 0) {
+                return -1;
             }
+            int bits = a << 18 | b << 12 | c << 6 | d;
+            dst[pos++] = (byte) (bits >> 16);
+            dst[pos++] = (byte) (bits >> 8);
+            dst[pos++] = (byte) bits;
         }
+        return pos - dstOffset;
+    }
+    
+    /*
+     * Output: length of the padded Base64 encoding of len bytes
+     */
+    public static int base64Length(int len) {
+        return (len + 2) / 3 * 4;
+    }
+    
+    /*
+     * Helper to look up the value of a Base64 digit
+     * Output: 0-63, or -1 if c is not a Base64 digit
+     */
+    private static int base64Value(byte c) {
+        return c >= 0 ? BASE64_VALUES[c] : -1;
+    }
+    
+    /*
+     * Helper to look up the value of a hex digit
+     * Output: 0-15, or -1 if c is not a hex digit
+     */
+    private static int hexValue(int c) {
+        return (c & ~0x7F) == 0 ? HEX_VALUES[c] : -1;
+    }
+    
+    /*
+     * Branch free version of hexValue.
+     * Output: 0-15, or -1 if c is not a hex digit
+     */
+    private static int hexValueConstantTime(int c) {
+        int digit = c - '0';
+        int letter = (c | 0x20) - 'a' + 10;
+        
+        // All ones when in range, zero otherwise
+        int digitMask = ~((digit | (9 - digit)) >> 31);
+        int letterMask = ~(((letter - 10) | (15 - letter)) >> 31);
         
-        return hs;
+        return (digit & digitMask) | (letter & letterMask) | ~(digitMask | letterMask);
     }
     
     /*
@@ -116,6 +359,22 @@ public class Utils {
         return result;
     }
     
+    /*
+     * Helper to identify a KeyBundle without keeping its keys, e.g. in a
+     * cache key or a file
+     * Input: KeyBundle
+     * Output: SHA-256 of the encryption key followed by the hmac key
+     */
+    static byte[] keyFingerprint(KeyBundle keys) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(keys.getEncryptionKey());
+            return digest.digest(keys.getHmacKey());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
     /*
      * Decode a friendly base32 string
      */
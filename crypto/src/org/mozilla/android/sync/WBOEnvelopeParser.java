@@ -0,0 +1,478 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import org.mozilla.android.sync.domain.WBOEnvelope;
+
+/*
+ * Single pass extractor for WBO envelopes.
+ * 
+ * A WBO's payload is a json object serialized into a json string, so
+ * parsing it with JSONParser builds two full trees just to read four
+ * values. This parser walks the outer object once, decodes the payload
+ * string on the fly and reads the inner object from it, keeping only
+ * id, payload.ciphertext, payload.IV and payload.hmac, plus where the
+ * payload string is in the input. Other members are skipped without
+ * being materialized.
+ * 
+ * Any input this parser does not understand makes it return null, and
+ * callers are expected to fall back to JSONParser. Skipped members are
+ * only checked for balanced brackets and strings, not full json syntax.
+ */
+public class WBOEnvelopeParser {
+    
+    private static final String KEY_ID =            "id";
+    private static final String KEY_PAYLOAD =       "payload";
+    private static final String KEY_CIPHER_TEXT =   "ciphertext";
+    private static final String KEY_IV =            "IV";
+    private static final String KEY_HMAC =          "hmac";
+    
+    private static final int END = -1;
+    
+    // Thrown internally to unwind on input we can't handle, never escapes
+    private static final MalformedException MALFORMED = new MalformedException();
+    
+    private final StringBuilder buffer = new StringBuilder(64);
+    
+    private WBOEnvelopeParser() {
+    }
+    
+    /*
+     * Input:   String representation of a WBO (json)
+     * Output:  Extracted envelope (members missing from the json are
+     *          null), or null if the json could not be parsed
+     */
+    public static WBOEnvelope parse(CharSequence json) {
+        return new WBOEnvelopeParser().parseEnvelope(new CharSequenceSource(json));
+    }
+    
+    /*
+     * Input:   UTF-8 encoded WBO (json), offset and length
+     * Output:  Same as above
+     */
+    public static WBOEnvelope parse(byte[] json, int offset, int length) {
+        return new WBOEnvelopeParser().parseEnvelope(new Utf8Source(json, offset, offset + length));
+    }
+    
+    private WBOEnvelope parseEnvelope(Source source) {
+        WBOEnvelope envelope = new WBOEnvelope();
+        try {
+            parseObject(source, envelope, false);
+        } catch (MalformedException e) {
+            return null;
+        }
+        return envelope;
+    }
+    
+    /*
+     * Parses a whole object (the WBO or its payload) from source, which
+     * must contain nothing else.
+     */
+    private void parseObject(Source source, WBOEnvelope envelope, boolean isPayload) throws MalformedException {
+        skipWhitespace(source);
+        expect(source, '{');
+        skipWhitespace(source);
+        
+        if (source.peek() == '}') {
+            source.next();
+        } else {
+            while (true) {
+                expect(source, '"');
+                readString(source);
+                skipWhitespace(source);
+                expect(source, ':');
+                skipWhitespace(source);
+                
+                if (isPayload) {
+                    parsePayloadMember(source, envelope);
+                } else {
+                    parseWBOMember(source, envelope);
+                }
+                
+                skipWhitespace(source);
+                int c = source.next();
+                if (c == '}') {
+                    break;
+                } else if (c != ',') {
+                    throw MALFORMED;
+                }
+                skipWhitespace(source);
+            }
+        }
+        
+        skipWhitespace(source);
+        if (source.next() != END) {
+            throw MALFORMED;
+        }
+    }
+    
+    /*
+     * Reads the value of the member whose name is in buffer
+     */
+    private void parseWBOMember(Source source, WBOEnvelope envelope) throws MalformedException {
+        if (contentEquals(KEY_ID)) {
+            envelope.setId(readStringValue(source));
+        } else if (contentEquals(KEY_PAYLOAD)) {
+            expect(source, '"');
+            int start = source.offset() - 1;
+            parseObject(new StringSource(source), envelope, true);
+            int end = source.offset();
+            if (start >= 0 && end > start) {
+                envelope.setPayloadRange(start, end);
+            }
+        } else {
+            skipValue(source);
+        }
+    }
+    
+    private void parsePayloadMember(Source source, WBOEnvelope envelope) throws MalformedException {
+        if (contentEquals(KEY_CIPHER_TEXT)) {
+            envelope.setCiphertext(readStringValue(source));
+        } else if (contentEquals(KEY_IV)) {
+            envelope.setIv(readStringValue(source));
+        } else if (contentEquals(KEY_HMAC)) {
+            envelope.setHmac(readStringValue(source));
+        } else {
+            skipValue(source);
+        }
+    }
+    
+    /*
+     * Reads a string value. Anything else (numbers, null...) is not
+     * something we can decrypt, leave those to the fallback.
+     */
+    private String readStringValue(Source source) throws MalformedException {
+        expect(source, '"');
+        readString(source);
+        return buffer.toString();
+    }
+    
+    /*
+     * Reads the rest of a string whose opening quote was consumed into buffer
+     */
+    private void readString(Source source) throws MalformedException {
+        buffer.setLength(0);
+        StringSource string = new StringSource(source);
+        int c;
+        while ((c = string.next()) != END) {
+            buffer.append((char) c);
+        }
+    }
+    
+    private void skipValue(Source source) throws MalformedException {
+        int c = source.next();
+        if (c == '"') {
+            skipString(source);
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = source.next();
+                if (c == '"') {
+                    skipString(source);
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                } else if (c == END) {
+                    throw MALFORMED;
+                }
+            }
+        } else if (isLiteralChar(c)) {
+            while (isLiteralChar(source.peek())) {
+                source.next();
+            }
+        } else {
+            throw MALFORMED;
+        }
+    }
+    
+    private static void skipString(Source source) throws MalformedException {
+        StringSource string = new StringSource(source);
+        while (string.next() != END) {
+            // Skip
+        }
+    }
+    
+    private static void skipWhitespace(Source source) throws MalformedException {
+        int c = source.peek();
+        while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+            source.next();
+            c = source.peek();
+        }
+    }
+    
+    private static void expect(Source source, char expected) throws MalformedException {
+        if (source.next() != expected) {
+            throw MALFORMED;
+        }
+    }
+    
+    /*
+     * Characters of numbers, true, false and null
+     */
+    private static boolean isLiteralChar(int c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.' || c == 'E';
+    }
+    
+    private boolean contentEquals(String key) {
+        if (buffer.length() != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (buffer.charAt(i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /////////////////////// SOURCES /////////////////////////////
+    
+    /*
+     * A stream of chars with one char of lookahead. Returns END
+     * once there is nothing left.
+     */
+    private static abstract class Source {
+        
+        private int peeked = Integer.MIN_VALUE;
+        
+        int peek() throws MalformedException {
+            if (peeked == Integer.MIN_VALUE) {
+                peeked = read();
+            }
+            return peeked;
+        }
+        
+        int next() throws MalformedException {
+            if (peeked != Integer.MIN_VALUE) {
+                int c = peeked;
+                peeked = Integer.MIN_VALUE;
+                return c;
+            }
+            return read();
+        }
+        
+        abstract int read() throws MalformedException;
+        
+        /*
+         * Output: offset in the input of the next char to be read, -1
+         *         if not known (nested sources, or a char was peeked)
+         */
+        final int offset() {
+            return peeked == Integer.MIN_VALUE ? position() : -1;
+        }
+        
+        int position() {
+            return -1;
+        }
+    }
+    
+    private static class CharSequenceSource extends Source {
+        
+        private final CharSequence chars;
+        private int pos;
+        
+        CharSequenceSource(CharSequence chars) {
+            this.chars = chars;
+        }
+        
+        @Override
+        int read() {
+            return pos < chars.length() ? chars.charAt(pos++) : END;
+        }
+        
+        @Override
+        int position() {
+            return pos;
+        }
+    }
+    
+    /*
+     * Decodes UTF-8 into UTF-16 chars
+     */
+    private static class Utf8Source extends Source {
+        
+        private final byte[] bytes;
+        private final int end;
+        private int pos;
+        private int lowSurrogate = END;
+        
+        Utf8Source(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.pos = start;
+            this.end = end;
+        }
+        
+        @Override
+        int position() {
+            return lowSurrogate == END ? pos : -1;
+        }
+        
+        @Override
+        int read() throws MalformedException {
+            if (lowSurrogate != END) {
+                int c = lowSurrogate;
+                lowSurrogate = END;
+                return c;
+            }
+            if (pos >= end) {
+                return END;
+            }
+            
+            int b = bytes[pos++];
+            if (b >= 0) {
+                return b;
+            }
+            
+            int extra;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                throw MALFORMED;
+            }
+            
+            if (pos + extra > end) {
+                throw MALFORMED;
+            }
+            for (int i = 0; i < extra; i++) {
+                int continuation = bytes[pos++];
+                if ((continuation & 0xC0) != 0x80) {
+                    throw MALFORMED;
+                }
+                codePoint = (codePoint << 6) | (continuation & 0x3F);
+            }
+            
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                lowSurrogate = Character.lowSurrogate(codePoint);
+                return Character.highSurrogate(codePoint);
+            }
+            return codePoint;
+        }
+    }
+    
+    /*
+     * The contents of a json string read from another source, with
+     * escapes decoded. The opening quote must already be consumed;
+     * END is returned after the closing quote.
+     */
+    private static class StringSource extends Source {
+        
+        private final Source source;
+        private boolean done;
+        
+        StringSource(Source source) {
+            this.source = source;
+        }
+        
+        @Override
+        int read() throws MalformedException {
+            if (done) {
+                return END;
+            }
+            
+            int c = source.next();
+            if (c == '"') {
+                done = true;
+                return END;
+            } else if (c == END || c < 0x20) {
+                throw MALFORMED;
+            } else if (c != '\\') {
+                return c;
+            }
+            
+            c = source.next();
+            switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = hexDigit(source.next());
+                    if (digit < 0) {
+                        throw MALFORMED;
+                    }
+                    value = (value << 4) | digit;
+                }
+                return value;
+            default:
+                throw MALFORMED;
+            }
+        }
+    }
+    
+    private static int hexDigit(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+    
+    private static class MalformedException extends Exception {
+        
+        private static final long serialVersionUID = 1L;
+        
+        MalformedException() {
+            // No stack trace, this is used for control flow
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+
+/*
+ * Runs per-record work over an input a window at a time, for the
+ * batch classes (UploadBatchEncryptor, AccountProvisioner,
+ * KeyRotationReencryptor, IntegrityAuditor).
+ * 
+ * A window is processed in parallel on a fork-join pool, each record
+ * into its own Slot, then the slots are handed back in input order on
+ * the calling thread. Memory use is bounded by the window rather than
+ * the whole input.
+ */
+abstract class WindowedBatch<I, O> {
+    
+    // Records processed in parallel before being handed back
+    static final int WINDOW_SIZE =                  256;
+    
+    // Windows are split until a fork-join task holds at most this many records
+    static final int DEFAULT_SPLIT_THRESHOLD =      16;
+    
+    private final int splitThreshold;
+    
+    WindowedBatch() {
+        this(DEFAULT_SPLIT_THRESHOLD);
+    }
+    
+    /*
+     * Input: split threshold, larger for cheaper records
+     */
+    WindowedBatch(int splitThreshold) {
+        this.splitThreshold = splitThreshold;
+    }
+    
+    /*
+     * Processes one record, called on a pool thread
+     * 
+     * Input:   the record, its position in the input, slot to fill
+     */
+    abstract void process(I record, long position, Slot<O> slot);
+    
+    /*
+     * Hands back one processed record, called on the calling thread in
+     * input order
+     * 
+     * Input:   the record, its position in the input, its filled slot
+     */
+    abstract void accept(I record, long position, Slot<O> slot) throws IOException;
+    
+    /*
+     * Called on the calling thread once a whole window has been accepted
+     * 
+     * Input:   position of the next record in the input
+     */
+    void windowDone(long position) throws IOException {
+    }
+    
+    /*
+     * Input:   records, position of the first one, pool to process on
+     * Output:  position after the last record
+     * Throws:  IOException from accept or windowDone, records after the
+     *          one being handed back are not processed
+     */
+    final long run(Iterator<? extends I> records, long position, ForkJoinPool pool) throws IOException {
+        @SuppressWarnings("unchecked")
+        I[] window = (I[]) new Object[WINDOW_SIZE];
+        @SuppressWarnings("unchecked")
+        Slot<O>[] slots = (Slot<O>[]) new Slot<?>[WINDOW_SIZE];
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            slots[i] = new Slot<O>();
+        }
+        
+        while (records.hasNext()) {
+            int size = 0;
+            while (size < WINDOW_SIZE && records.hasNext()) {
+                window[size++] = records.next();
+            }
+            
+            pool.invoke(new Task(window, slots, 0, size, position));
+            
+            for (int i = 0; i < size; i++) {
+                accept(window[i], position + i, slots[i]);
+                window[i] = null;
+                slots[i].clear();
+            }
+            position += size;
+            windowDone(position);
+        }
+        return position;
+    }
+    
+    /*
+     * Fork-join task that processes a slice of a window into the
+     * matching slice of slots
+     */
+    private class Task extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final I[] in;
+        private final Slot<O>[] out;
+        private final int start;
+        private final int end;
+        private final long position;
+        
+        Task(I[] in, Slot<O>[] out, int start, int end, long position) {
+            this.in = in;
+            this.out = out;
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+        
+        @Override
+        protected void compute() {
+            if (end - start <= splitThreshold) {
+                for (int i = start; i < end; i++) {
+                    process(in[i], position + i, out[i]);
+                }
+                return;
+            }
+            
+            int middle = (start + end) >>> 1;
+            invokeAll(new Task(in, out, start, middle, position),
+                      new Task(in, out, middle, end, position));
+        }
+    }
+    
+    /*
+     * Outcome of one record: the record id if known, and either a value
+     * or the CryptoStatus it failed with
+     */
+    static final class Slot<O> {
+        
+        private String id;
+        private O value;
+        private CryptoStatus status;
+        
+        void succeed(String id, O value) {
+            this.id = id;
+            this.value = value;
+            this.status = CryptoStatus.OK;
+        }
+        
+        void fail(String id, CryptoStatus status) {
+            this.id = id;
+            this.value = null;
+            this.status = status;
+        }
+        
+        String getId() {
+            return id;
+        }
+        
+        O getValue() {
+            return value;
+        }
+        
+        CryptoStatus getStatus() {
+            return status;
+        }
+        
+        boolean isOk() {
+            return status == CryptoStatus.OK;
+        }
+        
+        private void clear() {
+            id = null;
+            value = null;
+            status = null;
+        }
+    }
+}
@@ -37,6 +37,8 @@
 
 package org.mozilla.android.sync.domain;
 
+import java.nio.charset.StandardCharsets;
+
 public class CryptoStatusBundle {
     
     public enum CryptoStatus {
@@ -45,16 +47,29 @@ public class CryptoStatusBundle {
         HMAC_VERIFY_FAIL,
         INVALID_JSON,
         INVALID_KEYS_BUNDLE,
-        MISSING_SYNCKEY_OR_USER
+        MISSING_SYNCKEY_OR_USER,
+        DECRYPTION_FAIL,
+        RECORD_TOO_LARGE
     }
     
     private CryptoStatus status;
     private String json;
+    private byte[] payload;
     
     public CryptoStatusBundle (CryptoStatus status, String json) {
        this.setStatus(status);
        this.setJson(json);
     }
+    
+    /*
+     * Constructor used by the byte oriented API. payload holds
+     * UTF-8 encoded json and is only turned into a String if
+     * getJson() is called.
+     */
+    public CryptoStatusBundle (CryptoStatus status, byte[] payload) {
+       this.setStatus(status);
+       this.setPayload(payload);
+    }
 
     public CryptoStatus getStatus() {
         return status;
@@ -65,11 +80,30 @@ public class CryptoStatusBundle {
     }
 
     public String getJson() {
+        if (json == null && payload != null) {
+            json = new String(payload, StandardCharsets.UTF_8);
+        }
         return json;
     }
 
     public void setJson(String json) {
         this.json = json;
+        this.payload = null;
+    }
+    
+    /*
+     * Output: UTF-8 encoded json
+     */
+    public byte[] getPayload() {
+        if (payload == null && json != null) {
+            payload = json.getBytes(StandardCharsets.UTF_8);
+        }
+        return payload;
+    }
+    
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+        this.json = null;
     }
 
 }
@@ -42,6 +42,10 @@ public class KeyBundle {
     private byte[] encryptionKey;
     private byte[] hmacKey;
     
+    // Bumped whenever the keys change, so caches of key material
+    // derived from this bundle can tell theirs is stale
+    private volatile int generation;
+    
     public KeyBundle(byte[] encryptionKey, byte[] hmacKey) {
        this.setEncryptionKey(encryptionKey);
        this.setHmacKey(hmacKey);
@@ -53,6 +57,7 @@ public class KeyBundle {
 
     public void setEncryptionKey(byte[] encryptionKey) {
         this.encryptionKey = encryptionKey;
+        keysChanged();
     }
 
     public byte[] getHmacKey() {
@@ -61,6 +66,19 @@ public class KeyBundle {
 
     public void setHmacKey(byte[] hmacKey) {
         this.hmacKey = hmacKey;
+        keysChanged();
+    }
+    
+    /*
+     * Call after changing the bytes of either key in place, the setters
+     * already do
+     */
+    public void keysChanged() {
+        generation++;
+    }
+    
+    public int getGeneration() {
+        return generation;
     }
 
 }
@@ -0,0 +1,121 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.domain;
+
+/*
+ * The parts of a WBO needed for decryption. Fields hold the
+ * values as they appear in the json, still BaseXX encoded.
+ * 
+ * WBOEnvelopeParser also records where the payload string is in the
+ * input, so a record can be rewritten with another payload and the
+ * rest of it left untouched.
+ */
+public class WBOEnvelope {
+    
+    private String id;
+    private String ciphertext;
+    private String iv;
+    private String hmac;
+    private int payloadStart = -1;
+    private int payloadEnd = -1;
+    
+    public WBOEnvelope() {
+    }
+    
+    public WBOEnvelope(String id, String ciphertext, String iv, String hmac) {
+        this.setId(id);
+        this.setCiphertext(ciphertext);
+        this.setIv(iv);
+        this.setHmac(hmac);
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public void setId(String id) {
+        this.id = id;
+    }
+    
+    public String getCiphertext() {
+        return ciphertext;
+    }
+    
+    public void setCiphertext(String ciphertext) {
+        this.ciphertext = ciphertext;
+    }
+    
+    public String getIv() {
+        return iv;
+    }
+    
+    public void setIv(String iv) {
+        this.iv = iv;
+    }
+    
+    public String getHmac() {
+        return hmac;
+    }
+    
+    public void setHmac(String hmac) {
+        this.hmac = hmac;
+    }
+    
+    /*
+     * Output: offset of the opening quote of the payload string in the
+     *         parsed input (index in the byte[] for UTF-8 input, chars for a String),
+     *         -1 if not known
+     */
+    public int getPayloadStart() {
+        return payloadStart;
+    }
+    
+    /*
+     * Output: offset just after the closing quote of the payload string,
+     *         -1 if not known
+     */
+    public int getPayloadEnd() {
+        return payloadEnd;
+    }
+    
+    public void setPayloadRange(int payloadStart, int payloadEnd) {
+        this.payloadStart = payloadStart;
+        this.payloadEnd = payloadEnd;
+    }
+    
+}
@@ -0,0 +1,77 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.metrics;
+
+/*
+ * Receives the time and size of each stage of a WBO encryption or
+ * decryption. Set one on SyncCryptographer with setMetricsListener().
+ * 
+ * The default, NOOP, is recognised by SyncCryptographer and skips the
+ * timing altogether, so metrics cost nothing when they are off.
+ * 
+ * Listeners are called on the thread doing the work, possibly many
+ * threads at once, and should return quickly.
+ */
+public interface CryptoMetricsListener {
+    
+    public enum Operation {
+        ENCRYPT,
+        DECRYPT
+    }
+    
+    public enum Stage {
+        PARSE,          // extracting ciphertext, IV and hmac from the WBO json
+        BASE64,         // Base64 decoding/encoding of ciphertext and IV
+        HMAC,           // computing and checking the HMAC
+        AES,            // the cipher itself
+        SERIALIZE       // building the encrypted payload json
+    }
+    
+    public static final CryptoMetricsListener NOOP = new CryptoMetricsListener() {
+        @Override
+        public void onStage(Operation operation, Stage stage, long nanos, long bytes) {
+        }
+    };
+    
+    /*
+     * Input:   operation and stage that finished, how long it took in
+     *          nanoseconds, number of bytes it processed
+     */
+    public void onStage(Operation operation, Stage stage, long nanos, long bytes);
+    
+}
@@ -0,0 +1,114 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Keeps a LatencyHistogram (in nanoseconds) and a byte count for every
+ * operation and stage. Safe to share between threads and cryptographers.
+ */
+public class HistogramMetricsListener implements CryptoMetricsListener {
+    
+    private static final int OPERATIONS =   Operation.values().length;
+    private static final int STAGES =       Stage.values().length;
+    
+    private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS * STAGES];
+    private final LongAdder[] bytes = new LongAdder[OPERATIONS * STAGES];
+    
+    public HistogramMetricsListener() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            bytes[i] = new LongAdder();
+        }
+    }
+    
+    @Override
+    public void onStage(Operation operation, Stage stage, long nanos, long bytes) {
+        int index = index(operation, stage);
+        histograms[index].record(nanos);
+        this.bytes[index].add(bytes);
+    }
+    
+    /*
+     * Output: latencies of stage in nanoseconds
+     */
+    public LatencyHistogram getHistogram(Operation operation, Stage stage) {
+        return histograms[index(operation, stage)];
+    }
+    
+    /*
+     * Output: total bytes processed by stage
+     */
+    public long getBytes(Operation operation, Stage stage) {
+        return bytes[index(operation, stage)].sum();
+    }
+    
+    public void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].reset();
+            bytes[i].reset();
+        }
+    }
+    
+    /*
+     * Output: one line per stage that has been recorded, e.g.
+     *         DECRYPT HMAC count=10 p50=950 p99=1343 p999=1343 max=1343 bytes=4520
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for (Operation operation : Operation.values()) {
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram histogram = getHistogram(operation, stage);
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                report.append(operation).append(' ').append(stage).append(' ')
+                      .append(histogram).append(" bytes=").append(getBytes(operation, stage))
+                      .append('\n');
+            }
+        }
+        return report.toString();
+    }
+    
+    private static int index(Operation operation, Stage stage) {
+        return operation.ordinal() * STAGES + stage.ordinal();
+    }
+    
+}
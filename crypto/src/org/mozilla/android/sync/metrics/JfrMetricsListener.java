@@ -0,0 +1,108 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Emits a JDK Flight Recorder event per stage, so crypto work can be
+ * lined up with GC and other activity in a recording. Events are only
+ * built when "org.mozilla.android.sync.CryptoStage" is enabled in the
+ * recording settings; stack traces are off to keep them cheap.
+ * 
+ * Can wrap another listener (e.g. a HistogramMetricsListener) so both
+ * run at once.
+ */
+public class JfrMetricsListener implements CryptoMetricsListener {
+    
+    @Name("org.mozilla.android.sync.CryptoStage")
+    @Label("Crypto Stage")
+    @Category({ "Android Sync", "Crypto" })
+    @Description("One stage of a WBO encryption or decryption")
+    @StackTrace(false)
+    static class CryptoStageEvent extends Event {
+        
+        @Label("Operation")
+        String operation;
+        
+        @Label("Stage")
+        String stage;
+        
+        @Label("Stage Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+        
+        @Label("Bytes")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+    }
+    
+    private final CryptoMetricsListener delegate;
+    
+    public JfrMetricsListener() {
+        this(NOOP);
+    }
+    
+    /*
+     * Input: listener every stage is also passed on to
+     */
+    public JfrMetricsListener(CryptoMetricsListener delegate) {
+        this.delegate = delegate;
+    }
+    
+    @Override
+    public void onStage(Operation operation, Stage stage, long nanos, long bytes) {
+        CryptoStageEvent event = new CryptoStageEvent();
+        if (event.isEnabled()) {
+            event.operation = operation.name();
+            event.stage = stage.name();
+            event.nanos = nanos;
+            event.bytes = bytes;
+            event.commit();
+        }
+        delegate.onStage(operation, stage, nanos, bytes);
+    }
+    
+}
@@ -0,0 +1,179 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Android Sync Client.
+ *
+ * The Initial Developer of the Original Code is
+ * the Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Jason Voll
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.mozilla.android.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock-free latency histogram.
+ * 
+ * Values are counted in log-linear buckets: exact below 16, and above
+ * that 16 buckets per power of two, so a reported percentile is at most
+ * 1/16 (6.25%) above the true value. Recording is a single atomic
+ * increment and never allocates, so many threads can record at once.
+ * 
+ * Reads are not atomic with concurrent recording; percentiles taken
+ * while values are being recorded may miss the latest ones.
+ */
+public class LatencyHistogram {
+    
+    private static final int SUB_BUCKET_BITS =      4;
+    private static final int SUB_BUCKET_COUNT =     1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK =      SUB_BUCKET_COUNT - 1;
+    
+    // Enough buckets for any non-negative long
+    private static final int BUCKET_COUNT =         (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong max = new AtomicLong();
+    
+    /*
+     * Input: value to count, negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+    
+    /*
+     * Output: number of values recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+    
+    public long getMax() {
+        return max.get();
+    }
+    
+    /*
+     * Input:   percentile as a fraction, e.g. 0.99 for p99
+     * Output:  smallest bucket bound that at least that fraction of the
+     *          values fall under (never above the maximum recorded),
+     *          0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+    
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+    
+    public long getP999() {
+        return getPercentile(0.999);
+    }
+    
+    /*
+     * Clears all counts. Values recorded concurrently may or may not
+     * survive the reset.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+    
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " p50=" + getP50() + " p99=" + getP99() + 
+               " p999=" + getP999() + " max=" + getMax();
+    }
+    
+    /*
+     * Values below SUB_BUCKET_COUNT get a bucket each. Above that, the
+     * highest set bit picks a group of SUB_BUCKET_COUNT buckets and the
+     * next SUB_BUCKET_BITS bits pick the bucket within the group.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & SUB_BUCKET_MASK);
+    }
+    
+    /*
+     * Output: largest value counted in bucket index
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + (index & SUB_BUCKET_MASK)) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+    
+}
@@ -0,0 +1,75 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mozilla.android.sync.test.SyncFixtures.SYNC_KEY;
+import static org.mozilla.android.sync.test.SyncFixtures.failure;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.mozilla.android.sync.AccountProvisioner;
+import org.mozilla.android.sync.AccountProvisioner.ProvisionSink;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.mozilla.android.sync.domain.SyncAccount;
+
+public class AccountProvisionerTests {
+    
+    @Test
+    public void testProvision() throws IOException {
+        
+        // More than one window, with an account that can't be provisioned
+        List<SyncAccount> accounts = new ArrayList<SyncAccount>();
+        for (int i = 0; i < 300; i++) {
+            accounts.add(new SyncAccount("user" + i, SYNC_KEY));
+        }
+        accounts.set(100, new SyncAccount("nokey", (byte[]) null));
+        
+        final List<SyncAccount> sunk = new ArrayList<SyncAccount>();
+        final List<KeyBundle> keys = new ArrayList<KeyBundle>();
+        final List<String> wbos = new ArrayList<String>();
+        ProvisionSink sink = new ProvisionSink() {
+            public void provisioned(SyncAccount account, KeyBundle bulkKeys, byte[] keysWBO) {
+                sunk.add(account);
+                keys.add(bulkKeys);
+                wbos.add(new String(keysWBO, StandardCharsets.UTF_8));
+            }
+        };
+        
+        AccountProvisioner provisioner = new AccountProvisioner();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        AccountProvisioner.Result result;
+        try {
+            result = provisioner.provision(accounts.iterator(), sink, pool);
+        } finally {
+            pool.shutdown();
+        }
+        
+        assertEquals(299, result.getProvisioned());
+        assertEquals(CryptoStatus.MISSING_SYNCKEY_OR_USER, failure(result, "nokey"));
+        assertEquals(299, provisioner.getEncryptCounters().get(CryptoStatus.OK));
+        
+        // In input order, and each record opens with its own account's credentials only
+        assertEquals("user99", sunk.get(99).getUsername());
+        assertEquals("user101", sunk.get(100).getUsername());
+        for (int i = 0; i < sunk.size(); i++) {
+            SyncCryptographer cryptographer = new SyncCryptographer(sunk.get(i).getUsername(), SYNC_KEY);
+            assertEquals(CryptoStatus.OK, cryptographer.decryptWBO(wbos.get(i)).getStatus());
+            KeyBundle registered = cryptographer.getKeyRegistry().getKeys(null);
+            assertEquals(true, Arrays.equals(keys.get(i).getEncryptionKey(), registered.getEncryptionKey()));
+            assertEquals(true, Arrays.equals(keys.get(i).getHmacKey(), registered.getHmacKey()));
+        }
+        SyncCryptographer other = new SyncCryptographer("user1", SYNC_KEY);
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, other.decryptWBO(wbos.get(0)).getStatus());
+        assertEquals(false, Arrays.equals(keys.get(0).getEncryptionKey(), keys.get(1).getEncryptionKey()));
+    }
+}
@@ -0,0 +1,191 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.mozilla.android.sync.BufferCryptographer;
+import org.mozilla.android.sync.ByteBufferPool;
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.CryptoInfo;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+public class BufferCryptographerTests {
+    
+    private static final String CLEAR_TEXT = "{\"id\":\"5qRsgXWRJZXr\",\"title\":\"Ñandú – 見る\"}";
+    
+    @Test
+    public void testBase64() {
+        Random random = new Random(42);
+        for (int len = 0; len < 100; len++) {
+            byte[] input = new byte[len];
+            random.nextBytes(input);
+            
+            byte[] encoded = new byte[Utils.base64Length(len)];
+            assertEquals(encoded.length, Utils.encodeBase64(input, 0, len, encoded, 0));
+            assertEquals(true, Arrays.equals(Base64.encodeBase64(input), encoded));
+            
+            byte[] decoded = new byte[len];
+            assertEquals(len, Utils.decodeBase64(encoded, 0, encoded.length, decoded, 0));
+            assertEquals(true, Arrays.equals(input, decoded));
+        }
+        
+        // Strict: bad characters, bad length and misplaced padding are rejected
+        byte[] out = new byte[16];
+        assertEquals(-1, Utils.decodeBase64("QU*=".getBytes(StandardCharsets.US_ASCII), 0, 4, out, 0));
+        assertEquals(-1, Utils.decodeBase64("QUJD\n".getBytes(StandardCharsets.US_ASCII), 0, 5, out, 0));
+        assertEquals(-1, Utils.decodeBase64("Q=JD".getBytes(StandardCharsets.US_ASCII), 0, 4, out, 0));
+    }
+    
+    @Test
+    public void testHeapRoundTrip() {
+        roundTrip(new ByteBufferPool(false), CLEAR_TEXT.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    public void testDirectRoundTrip() {
+        roundTrip(new ByteBufferPool(true), CLEAR_TEXT.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    public void testLargeRecord() {
+        // Bigger than the scratch arrays kept per thread, then small again
+        byte[] large = new byte[200 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        roundTrip(new ByteBufferPool(true), large);
+        roundTrip(new ByteBufferPool(false), large);
+        roundTrip(new ByteBufferPool(true), CLEAR_TEXT.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /*
+     * Encrypt with the buffer path and decrypt with the array path, then the reverse
+     */
+    private void roundTrip(ByteBufferPool pool, byte[] clearText) {
+        KeyBundle keys = Cryptographer.generateKeys();
+        
+        ByteBuffer in = pool.acquire(clearText.length);
+        in.put(clearText).flip();
+        ByteBuffer cipherText = pool.acquire(BufferCryptographer.maxBase64CipherTextLength(clearText.length));
+        ByteBuffer iv = pool.acquire(24);
+        ByteBuffer hmac = pool.acquire(32);
+        assertEquals(CryptoStatus.OK, BufferCryptographer.encrypt(in, keys, cipherText, iv, hmac));
+        assertEquals(0, in.remaining());
+        
+        byte[] decrypted = Cryptographer.decrypt(toArray(cipherText), toArray(iv), toArray(hmac), keys);
+        assertEquals(true, Arrays.equals(clearText, decrypted));
+        
+        // And back again
+        CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(clearText, keys));
+        cipherText.clear();
+        cipherText.put(Base64.encodeBase64(encrypted.getMessage())).flip();
+        iv.clear();
+        iv.put(Base64.encodeBase64(encrypted.getIv())).flip();
+        hmac.clear();
+        hmac.put(encrypted.getHmac()).flip();
+        ByteBuffer out = pool.acquire(BufferCryptographer.maxClearTextLength(cipherText.remaining()));
+        assertEquals(CryptoStatus.OK, BufferCryptographer.decrypt(cipherText, iv, hmac, keys, out));
+        assertEquals(true, Arrays.equals(clearText, toArray(out)));
+        
+        for (ByteBuffer buffer : new ByteBuffer[] { in, cipherText, iv, hmac, out }) {
+            pool.release(buffer);
+        }
+    }
+    
+    @Test
+    public void testTampered() {
+        KeyBundle keys = Cryptographer.generateKeys();
+        byte[] clearText = CLEAR_TEXT.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer cipherText = ByteBuffer.allocateDirect(BufferCryptographer.maxBase64CipherTextLength(clearText.length));
+        ByteBuffer iv = ByteBuffer.allocate(24);
+        ByteBuffer hmac = ByteBuffer.allocate(32);
+        BufferCryptographer.encrypt(ByteBuffer.wrap(clearText), keys, cipherText, iv, hmac);
+        cipherText.flip();
+        iv.flip();
+        hmac.flip();
+        
+        ByteBuffer out = ByteBuffer.allocate(cipherText.remaining());
+        cipherText.put(4, (byte) (cipherText.get(4) == 'A' ? 'B' : 'A'));
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, BufferCryptographer.decrypt(cipherText.duplicate(), iv.duplicate(), 
+                                                                                hmac.duplicate(), keys, out));
+        assertEquals(0, out.position());
+        
+        // A truncated HMAC never matches
+        hmac.limit(16);
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, BufferCryptographer.decrypt(cipherText, iv, hmac, keys, out));
+    }
+    
+    @Test
+    public void testWrongEncryptionKey() {
+        byte[] clearText = CLEAR_TEXT.getBytes(StandardCharsets.UTF_8);
+        int failures = 0;
+        for (int i = 0; i < 20; i++) {
+            KeyBundle keys = Cryptographer.generateKeys();
+            ByteBuffer cipherText = ByteBuffer.allocate(BufferCryptographer.maxBase64CipherTextLength(clearText.length));
+            ByteBuffer iv = ByteBuffer.allocate(24);
+            ByteBuffer hmac = ByteBuffer.allocate(32);
+            BufferCryptographer.encrypt(ByteBuffer.wrap(clearText), keys, cipherText, iv, hmac);
+            cipherText.flip();
+            iv.flip();
+            hmac.flip();
+            
+            // The HMAC checks out but the padding almost never does
+            KeyBundle wrongKeys = new KeyBundle(Cryptographer.generateKeys().getEncryptionKey(), keys.getHmacKey());
+            byte[] untouched = new byte[cipherText.remaining()];
+            Arrays.fill(untouched, (byte) 0x55);
+            ByteBuffer out = ByteBuffer.wrap(untouched.clone());
+            CryptoStatus status = BufferCryptographer.decrypt(cipherText, iv, hmac, wrongKeys, out);
+            if (status == CryptoStatus.DECRYPTION_FAIL) {
+                failures++;
+                
+                // Nothing reaches the heap buffer
+                assertEquals(0, out.position());
+                assertEquals(true, Arrays.equals(untouched, out.array()));
+            }
+        }
+        assertEquals(true, failures > 0);
+    }
+    
+    @Test
+    public void testPoolReuse() {
+        ByteBufferPool pool = new ByteBufferPool(true, 1);
+        ByteBuffer first = pool.acquire(300);
+        assertEquals(512, first.capacity());
+        assertEquals(true, first.isDirect());
+        first.put((byte) 1);
+        pool.release(first);
+        
+        ByteBuffer second = pool.acquire(400);
+        assertEquals(true, first == second);
+        assertEquals(0, second.position());
+        
+        // Only one idle buffer per size is kept, foreign buffers are ignored
+        ByteBuffer third = pool.acquire(512);
+        assertEquals(false, first == third);
+        pool.release(second);
+        pool.release(third);
+        pool.release(ByteBuffer.allocate(512));
+        assertEquals(true, pool.acquire(512) == second);
+        assertEquals(false, pool.acquire(512) == third);
+    }
+    
+    /*
+     * Bytes written to the buffer so far
+     */
+    private static byte[] toArray(ByteBuffer buffer) {
+        ByteBuffer read = buffer.duplicate();
+        read.flip();
+        byte[] bytes = new byte[read.remaining()];
+        read.get(bytes);
+        return bytes;
+    }
+}
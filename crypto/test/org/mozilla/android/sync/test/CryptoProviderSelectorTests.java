@@ -0,0 +1,127 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.CryptoProviderSelector;
+import org.mozilla.android.sync.CryptoProviderSelector.Algorithm;
+import org.mozilla.android.sync.CryptoProviderSelector.Measurement;
+import org.mozilla.android.sync.domain.CryptoInfo;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+public class CryptoProviderSelectorTests {
+    
+    @Test
+    public void testCalibration() throws Exception {
+        CryptoProviderSelector selector = new CryptoProviderSelector(null, null, 10);
+        
+        for (Algorithm algorithm : Algorithm.values()) {
+            assertEquals(false, selector.isForced(algorithm));
+            List<Measurement> measurements = selector.getMeasurements(algorithm);
+            assertEquals(true, measurements.size() > 0);
+            
+            // Fastest first, and the pinned provider is one that was measured
+            boolean measured = false;
+            for (int i = 0; i < measurements.size(); i++) {
+                assertEquals(true, measurements.get(i).getOpsPerSecond() > 0);
+                if (i > 0) {
+                    assertEquals(true, measurements.get(i - 1).getOpsPerSecond() >= 
+                                       measurements.get(i).getOpsPerSecond());
+                }
+                measured |= measurements.get(i).getProvider().equals(selector.getProvider(algorithm).getName());
+            }
+            assertEquals(true, measured);
+        }
+        
+        assertEquals(selector.getProvider(Algorithm.AES_CBC), selector.newCipher().getProvider());
+        assertEquals(selector.getProvider(Algorithm.HMAC_SHA256), selector.newMac().getProvider());
+    }
+    
+    @Test
+    public void testForcedProvider() {
+        CryptoProviderSelector selector = new CryptoProviderSelector("SunJCE", "SunJCE", 10);
+        assertEquals(true, selector.isForced(Algorithm.AES_CBC));
+        assertEquals("SunJCE", selector.getProvider(Algorithm.AES_CBC).getName());
+        assertEquals("SunJCE", selector.getProvider(Algorithm.HMAC_SHA256).getName());
+        assertEquals(0, selector.getMeasurements(Algorithm.AES_CBC).size());
+        
+        // Unknown providers, or ones without the algorithm, are refused
+        try {
+            new CryptoProviderSelector("NoSuchProvider", null, 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new CryptoProviderSelector(null, "SUN", 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        
+        // Without calibration getInstance() picks
+        assertEquals(null, new CryptoProviderSelector(null, null, 0).getProvider(Algorithm.AES_CBC));
+    }
+    
+    @Test
+    public void testInit() throws Exception {
+        CryptoProviderSelector.setDefault(null);
+        try {
+            // Calibrates once, getDefault() then hands out the same one
+            CryptoProviderSelector selector = CryptoProviderSelector.init();
+            assertEquals(true, selector == CryptoProviderSelector.init());
+            assertEquals(true, selector == CryptoProviderSelector.getDefault());
+            
+            // While another thread calibrates, callers don't wait for it
+            CryptoProviderSelector.setDefault(null);
+            final CryptoProviderSelector[] seen = new CryptoProviderSelector[1];
+            Thread calibrating = new Thread() {
+                @Override
+                public void run() {
+                    CryptoProviderSelector.init();
+                }
+            };
+            Thread other = new Thread() {
+                @Override
+                public void run() {
+                    seen[0] = CryptoProviderSelector.getDefault();
+                }
+            };
+            calibrating.start();
+            other.start();
+            other.join();
+            calibrating.join();
+            assertEquals(true, seen[0] != null);
+            KeyBundle keys = Cryptographer.generateKeys();
+            byte[] clearText = "Provider test".getBytes();
+            assertEquals(true, Arrays.equals(clearText, Cryptographer.decrypt(
+                    Cryptographer.encrypt(new CryptoInfo(clearText.clone(), keys)))));
+        } finally {
+            CryptoProviderSelector.setDefault(null);
+        }
+    }
+    
+    @Test
+    public void testSetDefault() {
+        KeyBundle keys = Cryptographer.generateKeys();
+        byte[] clearText = "Provider test".getBytes();
+        
+        CryptoProviderSelector.setDefault(new CryptoProviderSelector("SunJCE", "SunJCE", 0));
+        try {
+            CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(clearText.clone(), keys));
+            
+            // Drops the Cipher/Mac built with the forced provider
+            CryptoProviderSelector.setDefault(new CryptoProviderSelector(null, null, 0));
+            assertEquals(true, Arrays.equals(clearText, Cryptographer.decrypt(encrypted)));
+        } finally {
+            CryptoProviderSelector.setDefault(null);
+        }
+    }
+    
+}
@@ -5,11 +5,21 @@ package org.mozilla.android.sync.test;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.DrbgIvSource;
+import org.mozilla.android.sync.IvSource;
 import org.mozilla.android.sync.Utils;
 import org.mozilla.android.sync.domain.CryptoInfo;
 import org.mozilla.android.sync.domain.KeyBundle;
@@ -100,6 +110,213 @@ public class CryptoTests {
         
     }
     
+    /*
+     * Streaming encryption must produce the same wire format as the
+     * in-memory path, and streaming decryption must reject bad HMACs.
+     */
+    @Test
+    public void testStreamingEncryptDecrypt() throws IOException {
+        byte[] clearText = new byte[1024 * 1024 + 5];
+        new Random(42).nextBytes(clearText);
+        KeyBundle keys = Cryptographer.generateKeys();
+        
+        // Encrypt
+        ByteArrayOutputStream base64CipherText = new ByteArrayOutputStream();
+        CryptoInfo info = Cryptographer.encrypt(new ByteArrayInputStream(clearText), base64CipherText, keys);
+        
+        // The in-memory path can decrypt it
+        byte[] decrypted = Cryptographer.decrypt(new CryptoInfo(
+                Base64.decodeBase64(base64CipherText.toByteArray()), info.getIv(), info.getHmac(), keys));
+        assertEquals(true, Arrays.equals(clearText, decrypted));
+        
+        // So can the streaming path
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean verified = Cryptographer.decrypt(new ByteArrayInputStream(base64CipherText.toByteArray()), out, info);
+        assertEquals(true, verified);
+        assertEquals(true, Arrays.equals(clearText, out.toByteArray()));
+        
+        // Streaming decryption of in-memory ciphertext
+        CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(clearText.clone(), keys));
+        out.reset();
+        verified = Cryptographer.decrypt(new ByteArrayInputStream(Base64.encodeBase64(encrypted.getMessage())), out, encrypted);
+        assertEquals(true, verified);
+        assertEquals(true, Arrays.equals(clearText, out.toByteArray()));
+        
+        // Tampered ciphertext fails verification
+        byte[] tampered = base64CipherText.toByteArray();
+        tampered[100] = (byte) (tampered[100] == 'A' ? 'B' : 'A');
+        out.reset();
+        verified = Cryptographer.decrypt(new ByteArrayInputStream(tampered), out, info);
+        assertEquals(false, verified);
+    }
+    
+    /*
+     * Cryptographer caches Cipher keys and HMAC hashers per KeyBundle.
+     * Changing a bundle through its setters, or in place followed by
+     * invalidateKeyCache(keys), must make the new keys take effect.
+     */
+    @Test
+    public void testKeyCacheInvalidation() {
+        String clearText =              "This is some cleartext written on" +
+                                        " Halloween 2011!";
+        KeyBundle keys = Cryptographer.generateKeys();
+        KeyBundle otherKeys = Cryptographer.generateKeys();
+        
+        // Prime the cache with the original keys
+        CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(clearText.getBytes(), keys));
+        assertEquals(true, Arrays.equals(clearText.getBytes(), Cryptographer.decrypt(encrypted)));
+        
+        // Swap the keys through the setters, the cache notices by itself
+        keys.setEncryptionKey(otherKeys.getEncryptionKey().clone());
+        keys.setHmacKey(otherKeys.getHmacKey().clone());
+        
+        // Old ciphertext no longer verifies, new ciphertext round trips
+        assertEquals(null, Cryptographer.decrypt(encrypted));
+        encrypted = Cryptographer.encrypt(new CryptoInfo(clearText.getBytes(), keys));
+        assertEquals(true, Arrays.equals(clearText.getBytes(), Cryptographer.decrypt(
+                new CryptoInfo(encrypted.getMessage(), encrypted.getIv(), encrypted.getHmac(), otherKeys))));
+        
+        // Key bytes changed in place need the bundle invalidated
+        KeyBundle thirdKeys = Cryptographer.generateKeys();
+        System.arraycopy(thirdKeys.getEncryptionKey(), 0, keys.getEncryptionKey(), 0, thirdKeys.getEncryptionKey().length);
+        System.arraycopy(thirdKeys.getHmacKey(), 0, keys.getHmacKey(), 0, thirdKeys.getHmacKey().length);
+        Cryptographer.invalidateKeyCache(keys);
+        assertEquals(null, Cryptographer.decrypt(encrypted));
+        encrypted = Cryptographer.encrypt(new CryptoInfo(clearText.getBytes(), keys));
+        assertEquals(true, Arrays.equals(clearText.getBytes(), Cryptographer.decrypt(
+                new CryptoInfo(encrypted.getMessage(), encrypted.getIv(), encrypted.getHmac(), thirdKeys))));
+        
+        // Other bundles keep their entries
+        CryptoInfo other = Cryptographer.encrypt(new CryptoInfo(clearText.getBytes(), otherKeys));
+        assertEquals(true, Arrays.equals(clearText.getBytes(), Cryptographer.decrypt(other)));
+    }
+    
+    /*
+     * Decrypt the Base64 ciphertext as received, HMAC checked first
+     */
+    @Test
+    public void testDecryptBase64() {
+        String clearText =              "This is some cleartext written on" +
+                                        " Halloween 2011!";
+        KeyBundle keys = Cryptographer.generateKeys();
+        
+        CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(clearText.getBytes(), keys));
+        byte[] base64CipherText = Base64.encodeBase64(encrypted.getMessage());
+        byte[] base64IV = Base64.encodeBase64(encrypted.getIv());
+        
+        assertEquals(true, Cryptographer.verifyHmac(base64CipherText, encrypted.getHmac(), keys));
+        byte[] decrypted = Cryptographer.decrypt(base64CipherText, base64IV, encrypted.getHmac(), keys);
+        assertEquals(clearText, new String(decrypted));
+        
+        // Tampered ciphertext is rejected
+        byte[] tampered = base64CipherText.clone();
+        tampered[5] = (byte) (tampered[5] == 'A' ? 'B' : 'A');
+        assertEquals(false, Cryptographer.verifyHmac(tampered, encrypted.getHmac(), keys));
+        assertEquals(null, Cryptographer.decrypt(tampered, base64IV, encrypted.getHmac(), keys));
+        
+        // As is anything that isn't even Base64, or the wrong keys
+        assertEquals(null, Cryptographer.decrypt("%%%".getBytes(), base64IV, encrypted.getHmac(), keys));
+        assertEquals(null, Cryptographer.decrypt(base64CipherText, base64IV, encrypted.getHmac(), 
+                                                 Cryptographer.generateKeys()));
+    }
+    
+    /*
+     * Large ciphertexts decrypted in parallel segments give exactly
+     * what the serial path gives, including for bad padding
+     */
+    @Test
+    public void testParallelDecrypt() throws Exception {
+        KeyBundle keys = Cryptographer.generateKeys();
+        Random random = new Random(42);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Cryptographer.setParallelDecryptPool(pool);
+        try {
+            for (int size : new int[] { 1, 16, 17, 100000, 3 * 1024 * 1024 + 5 }) {
+                byte[] clearText = new byte[size];
+                random.nextBytes(clearText);
+                CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(clearText.clone(), keys));
+                
+                Cryptographer.setParallelDecryptThreshold(Integer.MAX_VALUE);
+                byte[] serial = Cryptographer.decrypt(encrypted);
+                Cryptographer.setParallelDecryptThreshold(0);
+                byte[] parallel = Cryptographer.decrypt(encrypted);
+                assertEquals(true, Arrays.equals(clearText, serial));
+                assertEquals(true, Arrays.equals(serial, parallel));
+            }
+            
+            // Random ciphertext with a valid HMAC, the padding is almost always wrong
+            Mac hmacHasher = Mac.getInstance("HmacSHA256");
+            hmacHasher.init(new SecretKeySpec(keys.getHmacKey(), "HmacSHA256"));
+            for (int i = 0; i < 20; i++) {
+                byte[] cipherText = new byte[(1 + random.nextInt(20000)) * 16];
+                byte[] iv = new byte[16];
+                random.nextBytes(cipherText);
+                random.nextBytes(iv);
+                byte[] base64CipherText = Base64.encodeBase64(cipherText);
+                byte[] hmac = hmacHasher.doFinal(base64CipherText);
+                
+                Cryptographer.setParallelDecryptThreshold(Integer.MAX_VALUE);
+                byte[] serial = Cryptographer.decrypt(base64CipherText, Base64.encodeBase64(iv), hmac, keys);
+                Cryptographer.setParallelDecryptThreshold(0);
+                byte[] parallel = Cryptographer.decrypt(base64CipherText, Base64.encodeBase64(iv), hmac, keys);
+                assertEquals(true, Arrays.equals(serial, parallel));
+            }
+        } finally {
+            Cryptographer.setParallelDecryptThreshold(Cryptographer.DEFAULT_PARALLEL_DECRYPT_THRESHOLD);
+            Cryptographer.setParallelDecryptPool(null);
+            pool.shutdown();
+        }
+    }
+    
+    /*
+     * Encryption takes its IVs from the configured IvSource
+     */
+    @Test
+    public void testIvSource() {
+        final byte[] fixedIv = new byte[16];
+        Arrays.fill(fixedIv, (byte) 7);
+        KeyBundle keys = Cryptographer.generateKeys();
+        byte[] clearText = "IV test".getBytes();
+        
+        Cryptographer.setIvSource(new IvSource() {
+            @Override
+            public void nextIv(byte[] iv) {
+                System.arraycopy(fixedIv, 0, iv, 0, iv.length);
+            }
+        });
+        try {
+            CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(clearText.clone(), keys));
+            assertEquals(true, Arrays.equals(fixedIv, encrypted.getIv()));
+            assertEquals(true, Arrays.equals(clearText, Cryptographer.decrypt(encrypted)));
+        } finally {
+            Cryptographer.setIvSource(null);
+        }
+        assertEquals(DrbgIvSource.getDefault(), Cryptographer.getIvSource());
+        
+        // Default IVs differ between records
+        byte[] iv1 = Cryptographer.encrypt(new CryptoInfo(clearText.clone(), keys)).getIv();
+        byte[] iv2 = Cryptographer.encrypt(new CryptoInfo(clearText.clone(), keys)).getIv();
+        assertEquals(16, iv1.length);
+        assertEquals(false, Arrays.equals(iv1, iv2));
+    }
+    
+    /*
+     * Requests that span buffer refills and reseeds still get fresh bytes
+     */
+    @Test
+    public void testDrbgIvSource() {
+        DrbgIvSource source = new DrbgIvSource();
+        byte[] previous = new byte[5000];
+        source.nextBytes(previous);
+        for (int i = 0; i < 300; i++) {
+            byte[] next = new byte[5000];
+            source.nextBytes(next, 0, next.length);
+            assertEquals(false, Arrays.equals(previous, next));
+            assertEquals(false, Arrays.equals(new byte[5000], next));
+            previous = next;
+        }
+    }
+    
     /*
      * Basic sanity check to make sure length of keys is correct (32 bytes).
      * Also make sure that the two keys are different.
@@ -0,0 +1,426 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mozilla.android.sync.test.SyncFixtures.SYNC_KEY;
+import static org.mozilla.android.sync.test.SyncFixtures.USERNAME;
+import static org.mozilla.android.sync.test.SyncFixtures.wrap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.mozilla.android.sync.DecryptProcessor;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+public class DecryptProcessorTests {
+    
+    /*
+     * Publishes a list on request, counting what was requested
+     */
+    private static class ListPublisher<T> implements Flow.Publisher<T> {
+        
+        final List<T> items;
+        final AtomicLong requested = new AtomicLong();
+        
+        ListPublisher(List<T> items) {
+            this.items = items;
+        }
+        
+        @Override
+        public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private int next;
+                private boolean done;
+                
+                public synchronized void request(long n) {
+                    requested.addAndGet(n);
+                    for (long i = 0; i < n && next < items.size(); i++) {
+                        subscriber.onNext(items.get(next++));
+                    }
+                    if (next == items.size() && !done) {
+                        done = true;
+                        subscriber.onComplete();
+                    }
+                }
+                
+                public void cancel() {
+                }
+            });
+        }
+    }
+    
+    /*
+     * Runs each task after a random delay so that later records often
+     * finish first, tracking how many run at once
+     */
+    private static class SkewedExecutor implements Executor {
+        
+        final ExecutorService pool;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        
+        SkewedExecutor(int threads) {
+            pool = Executors.newFixedThreadPool(threads);
+        }
+        
+        @Override
+        public void execute(final Runnable task) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    int now = running.incrementAndGet();
+                    maxRunning.accumulateAndGet(now, Math::max);
+                    try {
+                        Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                        task.run();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+    
+    /*
+     * Collects everything, requesting batch at a time until stopped
+     */
+    private static class CollectingSubscriber implements Flow.Subscriber<CryptoStatusBundle> {
+        
+        final List<CryptoStatusBundle> results = Collections.synchronizedList(new ArrayList<CryptoStatusBundle>());
+        final CountDownLatch done = new CountDownLatch(1);
+        final int batch;
+        volatile Throwable error;
+        volatile int stopAfter = Integer.MAX_VALUE;
+        Flow.Subscription subscription;
+        int received;
+        
+        CollectingSubscriber(int batch) {
+            this.batch = batch;
+        }
+        
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(batch);
+        }
+        
+        @Override
+        public void onNext(CryptoStatusBundle item) {
+            results.add(item);
+            if (++received % batch == 0 && received < stopAfter) {
+                subscription.request(batch);
+            }
+        }
+        
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+        
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+    
+    @Test
+    public void testOrderedWithKeysMidStream() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        KeyBundle oldKeys = cryptographer.getKeys();
+        
+        // Half the records under the old keys, then crypto/keys, then the rest under the new keys
+        List<String> wbos = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            wbos.add(wrap("record" + i, cryptographer.encryptWBO(clearText(i)).getJson()));
+        }
+        wbos.add(wrap("keys", cryptographer.generateCryptoKeysWBOPayload().getJson()));
+        for (int i = 200; i < 400; i++) {
+            wbos.add(wrap("record" + i, cryptographer.encryptWBO(clearText(i)).getJson()));
+        }
+        cryptographer.setKeys(Base64.encodeBase64String(oldKeys.getEncryptionKey()), 
+                              Base64.encodeBase64String(oldKeys.getHmacKey()));
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DecryptProcessor<String> processor = DecryptProcessor.forStrings(cryptographer, null, 8, true, executor);
+            CollectingSubscriber subscriber = new CollectingSubscriber(16);
+            processor.subscribe(subscriber);
+            new ListPublisher<String>(wbos).subscribe(processor);
+            assertEquals(true, subscriber.done.await(30, TimeUnit.SECONDS));
+            
+            assertEquals(401, subscriber.results.size());
+            int next = 0;
+            for (int i = 0; i < 401; i++) {
+                CryptoStatusBundle result = subscriber.results.get(i);
+                assertEquals(CryptoStatus.OK, result.getStatus());
+                if (i != 200) {
+                    assertEquals(clearText(next++), result.getJson());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testBackpressure() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        List<byte[]> wbos = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            wbos.add(wrap("record" + i, cryptographer.encryptWBO(clearText(i)).getJson())
+                     .getBytes(StandardCharsets.UTF_8));
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            DecryptProcessor<byte[]> processor = DecryptProcessor.forBytes(cryptographer, null, 4, false, executor);
+            CollectingSubscriber subscriber = new CollectingSubscriber(10);
+            subscriber.stopAfter = 30;
+            ListPublisher<byte[]> publisher = new ListPublisher<byte[]>(wbos);
+            processor.subscribe(subscriber);
+            publisher.subscribe(processor);
+            
+            // The subscriber stops asking after 30, so the upstream is
+            // asked for no more than that plus the window
+            long deadline = System.currentTimeMillis() + 10000;
+            while (subscriber.results.size() < 30 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(30, subscriber.results.size());
+            assertEquals(true, publisher.requested.get() <= 34);
+            
+            // Asking again resumes, unordered output still has every record
+            subscriber.stopAfter = Integer.MAX_VALUE;
+            subscriber.subscription.request(Long.MAX_VALUE);
+            assertEquals(true, subscriber.done.await(30, TimeUnit.SECONDS));
+            List<String> decrypted = new ArrayList<String>();
+            for (CryptoStatusBundle result : subscriber.results) {
+                assertEquals(CryptoStatus.OK, result.getStatus());
+                decrypted.add(result.getJson());
+            }
+            Collections.sort(decrypted);
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < 1000; i++) {
+                expected.add(clearText(i));
+            }
+            Collections.sort(expected);
+            assertEquals(expected, decrypted);
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testOrderedUnderParallelism() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        List<String> wbos = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            wbos.add(wrap("record" + i, cryptographer.encryptWBO(clearText(i)).getJson()));
+        }
+        
+        SkewedExecutor executor = new SkewedExecutor(4);
+        try {
+            DecryptProcessor<String> processor = DecryptProcessor.forStrings(cryptographer, null, 6, true, executor);
+            CollectingSubscriber subscriber = new CollectingSubscriber(7);
+            processor.subscribe(subscriber);
+            new ListPublisher<String>(wbos).subscribe(processor);
+            assertEquals(true, subscriber.done.await(30, TimeUnit.SECONDS));
+            
+            // Records finish out of order but are delivered in order, with
+            // never more than the window decrypting
+            assertEquals(300, subscriber.results.size());
+            for (int i = 0; i < 300; i++) {
+                assertEquals(CryptoStatus.OK, subscriber.results.get(i).getStatus());
+                assertEquals(clearText(i), subscriber.results.get(i).getJson());
+            }
+            assertEquals(true, executor.maxRunning.get() <= 6);
+        } finally {
+            executor.pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testBytesWithKeysMidStream() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        KeyBundle oldKeys = cryptographer.getKeys();
+        
+        List<byte[]> wbos = new ArrayList<byte[]>();
+        for (int i = 0; i < 150; i++) {
+            wbos.add(wrap("record" + i, cryptographer.encryptWBO(clearText(i)).getJson())
+                     .getBytes(StandardCharsets.UTF_8));
+        }
+        wbos.add(wrap("keys", cryptographer.generateCryptoKeysWBOPayload().getJson())
+                 .getBytes(StandardCharsets.UTF_8));
+        for (int i = 150; i < 300; i++) {
+            wbos.add(wrap("record" + i, cryptographer.encryptWBO(clearText(i)).getJson())
+                     .getBytes(StandardCharsets.UTF_8));
+        }
+        cryptographer.setKeys(Base64.encodeBase64String(oldKeys.getEncryptionKey()), 
+                              Base64.encodeBase64String(oldKeys.getHmacKey()));
+        
+        // Unordered and skewed: if anything ran across the barrier it
+        // would be checked against the wrong keys and fail
+        SkewedExecutor executor = new SkewedExecutor(4);
+        try {
+            DecryptProcessor<byte[]> processor = DecryptProcessor.forBytes(cryptographer, null, 8, false, executor);
+            CollectingSubscriber subscriber = new CollectingSubscriber(5);
+            processor.subscribe(subscriber);
+            new ListPublisher<byte[]>(wbos).subscribe(processor);
+            assertEquals(true, subscriber.done.await(30, TimeUnit.SECONDS));
+            
+            assertEquals(301, subscriber.results.size());
+            int keysAt = -1;
+            List<String> decrypted = new ArrayList<String>();
+            for (int i = 0; i < 301; i++) {
+                CryptoStatusBundle result = subscriber.results.get(i);
+                assertEquals(CryptoStatus.OK, result.getStatus());
+                if (result.getJson().contains("\"record")) {
+                    decrypted.add(result.getJson());
+                } else {
+                    keysAt = i;
+                }
+            }
+            
+            // Nothing after the keys record is delivered before it
+            assertEquals(150, keysAt);
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < 300; i++) {
+                expected.add(clearText(i));
+            }
+            assertEquals(new HashSet<String>(expected.subList(0, 150)), 
+                         new HashSet<String>(decrypted.subList(0, 150)));
+            assertEquals(new HashSet<String>(expected.subList(150, 300)), 
+                         new HashSet<String>(decrypted.subList(150, 300)));
+        } finally {
+            executor.pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testOrderedBackpressure() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        List<String> wbos = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            wbos.add(wrap("record" + i, cryptographer.encryptWBO(clearText(i)).getJson()));
+        }
+        
+        SkewedExecutor executor = new SkewedExecutor(3);
+        try {
+            DecryptProcessor<String> processor = DecryptProcessor.forStrings(cryptographer, null, 3, true, executor);
+            CollectingSubscriber subscriber = new CollectingSubscriber(1);
+            subscriber.stopAfter = 20;
+            ListPublisher<String> publisher = new ListPublisher<String>(wbos);
+            processor.subscribe(subscriber);
+            publisher.subscribe(processor);
+            
+            long deadline = System.currentTimeMillis() + 10000;
+            while (subscriber.results.size() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(20, subscriber.results.size());
+            assertEquals(true, publisher.requested.get() <= 23);
+            assertEquals(true, executor.maxRunning.get() <= 3);
+            for (int i = 0; i < 20; i++) {
+                assertEquals(clearText(i), subscriber.results.get(i).getJson());
+            }
+        } finally {
+            executor.pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testNoSignalsBeforeOnSubscribe() throws Exception {
+        final SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        final DecryptProcessor<String> processor = DecryptProcessor.forStrings(cryptographer, null, 2, true, Runnable::run);
+        final AtomicBoolean inOnSubscribe = new AtomicBoolean();
+        final AtomicBoolean signalledEarly = new AtomicBoolean();
+        CollectingSubscriber subscriber = new CollectingSubscriber(1) {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                inOnSubscribe.set(true);
+                
+                // The upstream completes while the subscriber is still
+                // being handed its subscription
+                processor.onSubscribe(new Flow.Subscription() {
+                    public void request(long n) {
+                    }
+                    
+                    public void cancel() {
+                    }
+                });
+                processor.onComplete();
+                inOnSubscribe.set(false);
+                super.onSubscribe(subscription);
+            }
+            
+            @Override
+            public void onComplete() {
+                signalledEarly.compareAndSet(false, inOnSubscribe.get());
+                super.onComplete();
+            }
+        };
+        processor.subscribe(subscriber);
+        
+        assertEquals(true, subscriber.done.await(5, TimeUnit.SECONDS));
+        assertEquals(false, signalledEarly.get());
+        assertEquals(null, subscriber.error);
+    }
+    
+    @Test
+    public void testBadRequestCancelsUpstream() throws Exception {
+        final SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        final DecryptProcessor<String> processor = DecryptProcessor.forStrings(cryptographer, null, 2, true, Runnable::run);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicBoolean cancelledHoldingLock = new AtomicBoolean();
+        processor.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {
+            }
+            
+            public void cancel() {
+                cancelled.set(true);
+                cancelledHoldingLock.set(Thread.holdsLock(processor));
+            }
+        });
+        
+        CollectingSubscriber subscriber = new CollectingSubscriber(0);
+        processor.subscribe(subscriber);
+        
+        assertEquals(true, subscriber.done.await(5, TimeUnit.SECONDS));
+        assertEquals(true, subscriber.error instanceof IllegalArgumentException);
+        assertEquals(true, cancelled.get());
+        assertEquals(false, cancelledHoldingLock.get());
+    }
+    
+    private static String clearText(int i) {
+        return "{\"id\":\"record" + i + "\",\"title\":\"Record " + i + "\"}";
+    }
+}
@@ -0,0 +1,144 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mozilla.android.sync.test.SyncFixtures.SYNC_KEY;
+import static org.mozilla.android.sync.test.SyncFixtures.USERNAME;
+import static org.mozilla.android.sync.test.SyncFixtures.wrap;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.DecryptedRecordCache;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+public class DecryptedRecordCacheTests {
+    
+    @Test
+    public void testHitAndTamper() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        DecryptedRecordCache cache = new DecryptedRecordCache();
+        cryptographer.setRecordCache(cache);
+        
+        String originalText = "{\"id\":\"cached\",\"title\":\"café\"}";
+        String payload = cryptographer.encryptWBO(originalText).getJson();
+        String wbo = wrap("cached", payload);
+        
+        assertEquals(originalText, cryptographer.decryptWBO(wbo).getJson());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.size());
+        CryptoStatusBundle again = cryptographer.decryptWBO(wbo);
+        assertEquals(CryptoStatus.OK, again.getStatus());
+        assertEquals(originalText, again.getJson());
+        assertEquals(1, cache.getHits());
+        
+        // Changing the returned cleartext doesn't change the cache
+        again.getPayload()[0] = 'X';
+        assertEquals(originalText, cryptographer.decryptWBO(wbo).getJson());
+        
+        // Same id and hmac over another ciphertext or IV must not hit
+        JSONObject json = (JSONObject) new JSONParser().parse(payload);
+        JSONObject other = (JSONObject) new JSONParser().parse(cryptographer.encryptWBO("{\"id\":\"other\"}").getJson());
+        Utils.asMap(other).put("hmac", json.get("hmac"));
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, cryptographer.decryptWBO(wrap("cached", other.toString())).getStatus());
+        other = (JSONObject) new JSONParser().parse(payload);
+        Utils.asMap(other).put("IV", "AAAAAAAAAAAAAAAAAAAAAA==");
+        CryptoStatusBundle wrongIv = cryptographer.decryptWBO(wrap("cached", other.toString()));
+        assertEquals(false, originalText.equals(wrongIv.getJson()));
+    }
+    
+    @Test
+    public void testKeyRotation() {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        DecryptedRecordCache cache = new DecryptedRecordCache();
+        cryptographer.setRecordCache(cache);
+        
+        String wbo = wrap("rotated", cryptographer.encryptWBO("{\"id\":\"rotated\"}").getJson());
+        assertEquals(CryptoStatus.OK, cryptographer.decryptWBO(wbo).getStatus());
+        assertEquals(1, cache.size());
+        
+        cryptographer.generateCryptoKeysWBOPayload();
+        assertEquals(0, cache.size());
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, cryptographer.decryptWBO(wbo).getStatus());
+        
+        // Entries are also bound to the keys they were verified with
+        KeyBundle keys = Cryptographer.generateKeys();
+        cache.put(keys, "id", "00", "AAAA", "BBBB", new byte[] { 1 });
+        assertEquals(1, cache.get(keys, "id", "00", "AAAA", "BBBB").length);
+        assertEquals(null, cache.get(Cryptographer.generateKeys(), "id", "00", "AAAA", "BBBB"));
+    }
+    
+    @Test
+    public void testKeysChangedInPlace() {
+        KeyBundle keys = Cryptographer.generateKeys();
+        DecryptedRecordCache cache = new DecryptedRecordCache();
+        cache.put(keys, "id", "00", "AAAA", "BBBB", new byte[] { 1 });
+        assertEquals(1, cache.get(keys, "id", "00", "AAAA", "BBBB").length);
+        
+        // Same bundle, other keys: the entry was verified under the old ones
+        KeyBundle other = Cryptographer.generateKeys();
+        System.arraycopy(other.getHmacKey(), 0, keys.getHmacKey(), 0, other.getHmacKey().length);
+        Cryptographer.invalidateKeyCache(keys);
+        assertEquals(null, cache.get(keys, "id", "00", "AAAA", "BBBB"));
+        keys.setEncryptionKey(other.getEncryptionKey());
+        assertEquals(null, cache.get(keys, "id", "00", "AAAA", "BBBB"));
+    }
+    
+    @Test
+    public void testCryptoKeysNeverCached() {
+        SyncCryptographer source = new SyncCryptographer(USERNAME, SYNC_KEY);
+        String keysWBO = wrap("keys", source.generateCryptoKeysWBOPayload().getJson());
+        
+        // Installing the first keys clears whatever was cached before
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        DecryptedRecordCache cache = new DecryptedRecordCache();
+        cryptographer.setRecordCache(cache);
+        cache.put(Cryptographer.generateKeys(), "id", "00", "AAAA", "BBBB", new byte[] { 1 });
+        assertEquals(CryptoStatus.OK, cryptographer.decryptWBO(keysWBO).getStatus());
+        assertEquals(0, cache.size());
+        
+        // Decrypting it again still goes through the HMAC check
+        assertEquals(CryptoStatus.OK, cryptographer.decryptWBO(keysWBO).getStatus());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        KeyBundle keys = Cryptographer.generateKeys();
+        cache.put(keys, "keys", "00", "AAAA", "BBBB", new byte[] { 1 });
+        assertEquals(null, cache.get(keys, "keys", "00", "AAAA", "BBBB"));
+    }
+    
+    @Test
+    public void testEviction() {
+        KeyBundle keys = Cryptographer.generateKeys();
+        DecryptedRecordCache cache = new DecryptedRecordCache(2000);
+        byte[] clearText = new byte[400];
+        
+        for (int i = 0; i < 10; i++) {
+            cache.put(keys, "record" + i, "00", "AAAA", "BBBB", clearText);
+            
+            // Keep record0 recently used
+            cache.get(keys, "record0", "00", "AAAA", "BBBB");
+            assertEquals(true, cache.getBytes() <= 2000);
+        }
+        assertEquals(true, cache.size() < 10);
+        assertEquals(true, cache.get(keys, "record0", "00", "AAAA", "BBBB") != null);
+        assertEquals(null, cache.get(keys, "record1", "00", "AAAA", "BBBB"));
+        assertEquals(true, cache.get(keys, "record9", "00", "AAAA", "BBBB") != null);
+        
+        // Too large to cache at all
+        cache.put(keys, "large", "00", "AAAA", "BBBB", new byte[4000]);
+        assertEquals(null, cache.get(keys, "large", "00", "AAAA", "BBBB"));
+        
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+}
@@ -0,0 +1,63 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.mozilla.android.sync.DerivedKeyCache;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.KeyBundle;
+
+public class DerivedKeyCacheTests {
+    
+    private static final String USERNAME =              "smqvooxj664hmrkrv6bw4r4vkegjhkns";
+    private static final String SYNC_KEY =              "gbh7teqqcgyzd65svjgibd7tqy";
+    private static final String BASE64_ENCRYPTION_KEY = "069EnS3EtDK4y1tZ1AyKX+U7WEsWRp9bRIKLdW/7aoE=";
+    private static final String BASE64_HMAC_KEY =       "LF2YCS1QCgSNCf0BCQvQ06SGH8jqJDi9dKj0O+b0fwI=";
+    
+    @Test
+    public void testHitsAndMisses() {
+        DerivedKeyCache cache = new DerivedKeyCache(4);
+        byte[] syncKey = Utils.decodeFriendlyBase32(SYNC_KEY);
+        
+        KeyBundle first = cache.getCryptoKeysBundleKeys(syncKey, USERNAME.getBytes());
+        KeyBundle second = cache.getCryptoKeysBundleKeys(syncKey.clone(), USERNAME.getBytes());
+        
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+        
+        // Both are the derived keys, and each caller has its own copy
+        assertEquals(true, Arrays.equals(Base64.decodeBase64(BASE64_ENCRYPTION_KEY), first.getEncryptionKey()));
+        assertEquals(true, Arrays.equals(Base64.decodeBase64(BASE64_HMAC_KEY), first.getHmacKey()));
+        assertEquals(true, Arrays.equals(first.getEncryptionKey(), second.getEncryptionKey()));
+        assertEquals(false, first.getEncryptionKey() == second.getEncryptionKey());
+    }
+    
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        DerivedKeyCache cache = new DerivedKeyCache(2);
+        byte[] syncKey = Utils.decodeFriendlyBase32(SYNC_KEY);
+        
+        KeyBundle a = cache.getCryptoKeysBundleKeys(syncKey, "a".getBytes());
+        cache.getCryptoKeysBundleKeys(syncKey, "b".getBytes());
+        cache.getCryptoKeysBundleKeys(syncKey, "a".getBytes());     // hit, b is now eldest
+        cache.getCryptoKeysBundleKeys(syncKey, "c".getBytes());     // evicts b
+        cache.getCryptoKeysBundleKeys(syncKey, "a".getBytes());     // hit
+        cache.getCryptoKeysBundleKeys(syncKey, "b".getBytes());     // miss
+        
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        
+        // Keys handed out survive eviction and clear
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(false, Arrays.equals(new byte[32], a.getEncryptionKey()));
+    }
+}
@@ -0,0 +1,101 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mozilla.android.sync.test.SyncFixtures.SYNC_KEY;
+import static org.mozilla.android.sync.test.SyncFixtures.USERNAME;
+import static org.mozilla.android.sync.test.SyncFixtures.failure;
+import static org.mozilla.android.sync.test.SyncFixtures.wrap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+import org.mozilla.android.sync.IntegrityAuditor;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+
+public class IntegrityAuditorTests {
+    
+    @Test
+    public void testVerifyWBO() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        String keysWBO = wrap("keys", cryptographer.generateCryptoKeysWBOPayload().getJson());
+        String payload = cryptographer.encryptWBO("{\"id\":\"record\"}").getJson();
+        
+        assertEquals(CryptoStatus.OK, cryptographer.verifyWBO(wrap("record", payload)));
+        assertEquals(CryptoStatus.OK, cryptographer.verifyWBO(keysWBO));
+        assertEquals(CryptoStatus.INVALID_JSON, cryptographer.verifyWBO("{\"id\":\"record\"}"));
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, cryptographer.verifyWBO(wrap("record", tamper(payload))));
+        assertEquals(CryptoStatus.MISSING_KEYS, new SyncCryptographer(USERNAME, SYNC_KEY).verifyWBO(wrap("record", payload)));
+        assertEquals(CryptoStatus.MISSING_SYNCKEY_OR_USER, new SyncCryptographer("").verifyWBO(keysWBO));
+        
+        // The IV isn't covered by the HMAC but must decode to one block
+        assertEquals(CryptoStatus.DECRYPTION_FAIL, cryptographer.verifyWBO(wrap("record", withIv(payload, "AAAAAAAAAAAAAAAA"))));
+        assertEquals(CryptoStatus.DECRYPTION_FAIL, 
+                     cryptographer.verifyWBO(wrap("record", withIv(payload, "not*base64*at*all*here=="))));
+        assertEquals(CryptoStatus.DECRYPTION_FAIL, cryptographer.verifyWBO(wrap("record", withIv(payload, ""))));
+        
+        // Ciphertext longer than the chunks it is hashed in
+        StringBuilder longRecord = new StringBuilder("{\"id\":\"long\",\"text\":\"");
+        for (int i = 0; i < 1000; i++) {
+            longRecord.append("abcdefgh");
+        }
+        String longPayload = cryptographer.encryptWBO(longRecord.append("\"}").toString()).getJson();
+        assertEquals(CryptoStatus.OK, cryptographer.verifyWBO(wrap("long", longPayload)));
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, cryptographer.verifyWBO(wrap("long", tamper(longPayload))));
+        
+        // Nothing was decrypted
+        assertEquals(0, cryptographer.getDecryptCounters().total());
+    }
+    
+    @Test
+    public void testAudit() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        SyncCryptographer otherKeys = new SyncCryptographer(USERNAME, SYNC_KEY);
+        otherKeys.generateCryptoKeysWBOPayload();
+        
+        // More than one window
+        List<byte[]> wbos = new ArrayList<byte[]>();
+        for (int i = 0; i < 3000; i++) {
+            String payload = cryptographer.encryptWBO("{\"id\":\"record" + i + "\"}").getJson();
+            wbos.add(wrap("record" + i, payload).getBytes(StandardCharsets.UTF_8));
+        }
+        wbos.set(5, wrap("record5", tamper(cryptographer.encryptWBO("{}").getJson())).getBytes(StandardCharsets.UTF_8));
+        wbos.set(1500, wrap("record1500", otherKeys.encryptWBO("{}").getJson()).getBytes(StandardCharsets.UTF_8));
+        wbos.set(2999, "{\"payload\":".getBytes(StandardCharsets.UTF_8));
+        
+        IntegrityAuditor.Result result = new IntegrityAuditor(cryptographer).audit(wbos, null);
+        assertEquals(2997, result.getCounters().get(CryptoStatus.OK));
+        assertEquals(2, result.getCounters().get(CryptoStatus.HMAC_VERIFY_FAIL));
+        assertEquals(1, result.getCounters().get(CryptoStatus.INVALID_JSON));
+        assertEquals(3, result.getFailures().size());
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, failure(result, "record5"));
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, failure(result, "record1500"));
+        assertEquals(CryptoStatus.INVALID_JSON, failure(result, null));
+        assertEquals(2999, result.getFailures().get(2).getPosition());
+        assertEquals(false, result.isClean());
+        assertEquals(0, cryptographer.getDecryptCounters().total());
+    }
+    
+    private static String withIv(String payload, String iv) throws Exception {
+        JSONObject json = (JSONObject) new JSONParser().parse(payload);
+        Utils.asMap(json).put("IV", iv);
+        return json.toString();
+    }
+    
+    private static String tamper(String payload) throws Exception {
+        JSONObject json = (JSONObject) new JSONParser().parse(payload);
+        String cipherText = (String) json.get("ciphertext");
+        char first = cipherText.charAt(0) == 'A' ? 'B' : 'A';
+        Utils.asMap(json).put("ciphertext", first + cipherText.substring(1));
+        return json.toString();
+    }
+}
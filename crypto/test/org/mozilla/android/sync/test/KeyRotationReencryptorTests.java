@@ -0,0 +1,220 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mozilla.android.sync.test.SyncFixtures.SYNC_KEY;
+import static org.mozilla.android.sync.test.SyncFixtures.USERNAME;
+import static org.mozilla.android.sync.test.SyncFixtures.failure;
+import static org.mozilla.android.sync.test.SyncFixtures.wrapBytes;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.KeyRotationReencryptor;
+import org.mozilla.android.sync.KeyRotationReencryptor.RecordSink;
+import org.mozilla.android.sync.ReencryptionCheckpoint;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.KeyBundle;
+import org.mozilla.android.sync.domain.RecordFailure;
+
+public class KeyRotationReencryptorTests {
+    
+    @Test
+    public void testInterruptAndResume() throws IOException {
+        SyncCryptographer oldCryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        oldCryptographer.generateCryptoKeysWBOPayload();
+        KeyBundle oldKeys = oldCryptographer.getKeyRegistry().getDefaultKeys();
+        KeyBundle newKeys = Cryptographer.generateKeys();
+        
+        List<byte[]> wbos = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            String payload = oldCryptographer.encryptWBO("{\"id\":\"record" + i + "\",\"title\":\"café\"}").getJson();
+            wbos.add(wrapBytes("record" + i, payload));
+        }
+        wbos.set(10, wrapBytes("record10", "{\"ciphertext\":\"AAAA\",\"IV\":\"AAAA\",\"hmac\":\"00\"}"));
+        wbos.set(20, "not json".getBytes(StandardCharsets.UTF_8));
+        wbos.set(700, wrapBytes("keys", oldCryptographer.generateCryptoKeysWBOPayload().getJson()));
+        
+        Path file = Files.createTempFile("rotation", ".json");
+        Files.delete(file);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // Interrupted once past the first checkpoint
+            CollectingSink sink = new CollectingSink(600);
+            KeyRotationReencryptor reencryptor = new KeyRotationReencryptor(new ReencryptionCheckpoint(file));
+            reencryptor.setCheckpointInterval(500);
+            try {
+                reencryptor.reencrypt("history", oldKeys, newKeys, wbos.iterator(), sink, pool);
+                assertEquals(true, false);
+            } catch (IOException e) {
+                // Expected
+            }
+            assertEquals(512, new ReencryptionCheckpoint(file).getDone("history"));
+            assertEquals(510, sink.flushed);
+            
+            // The failures before the checkpoint were reported, they won't be seen again
+            assertEquals(2, new ReencryptionCheckpoint(file).getFailed("history"));
+            assertEquals(2, sink.flushedFailures);
+            assertEquals("record10", sink.failures.get(0).getId());
+            assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, sink.failures.get(0).getStatus());
+            assertEquals(null, sink.failures.get(1).getId());
+            assertEquals(20, sink.failures.get(1).getPosition());
+            assertEquals(CryptoStatus.INVALID_JSON, sink.failures.get(1).getStatus());
+            
+            // Resuming with other keys is refused
+            try {
+                new KeyRotationReencryptor(new ReencryptionCheckpoint(file)).reencrypt("history", oldKeys, 
+                        Cryptographer.generateKeys(), wbos.iterator(), sink, pool);
+                assertEquals(true, false);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            
+            // Resumes after the checkpoint, redoing the rest
+            CollectingSink resumed = new CollectingSink(Integer.MAX_VALUE);
+            reencryptor = new KeyRotationReencryptor(new ReencryptionCheckpoint(file));
+            KeyRotationReencryptor.Result result = reencryptor.reencrypt("history", oldKeys, newKeys, wbos.iterator(), resumed, pool);
+            assertEquals(512, result.getSkipped());
+            assertEquals(487, result.getReencrypted());
+            assertEquals(CryptoStatus.INVALID_KEYS_BUNDLE, failure(result, "keys"));
+            assertEquals(1, result.getFailureCount());
+            assertEquals(1, resumed.failures.size());
+            assertEquals(700, resumed.failures.get(0).getPosition());
+            assertEquals(1000, new ReencryptionCheckpoint(file).getDone("history"));
+            assertEquals(3, new ReencryptionCheckpoint(file).getFailed("history"));
+            assertEquals(0, new ReencryptionCheckpoint(file).getDone("bookmarks"));
+            
+            // Everything done, in order, readable with the new keys only
+            List<String> ids = new ArrayList<String>(sink.ids.subList(0, sink.flushed));
+            List<byte[]> out = new ArrayList<byte[]>(sink.wbos.subList(0, sink.flushed));
+            ids.addAll(resumed.ids);
+            out.addAll(resumed.wbos);
+            assertEquals(997, ids.size());
+            assertEquals("record11", ids.get(10));
+            assertEquals("record21", ids.get(19));
+            
+            SyncCryptographer newCryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+            newCryptographer.getKeyRegistry().setKeys(newKeys, new HashMap<String, KeyBundle>());
+            for (int i = 0; i < ids.size(); i++) {
+                String expected = "{\"id\":\"" + ids.get(i) + "\",\"title\":\"café\"}";
+                assertEquals(expected, newCryptographer.decryptWBO(out.get(i)).getJson());
+            }
+            assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, oldCryptographer.decryptWBO(out.get(0)).getStatus());
+            
+            new ReencryptionCheckpoint(file).delete();
+            assertEquals(false, Files.exists(file));
+        } finally {
+            pool.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    @Test
+    public void testFailures() throws IOException {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        KeyBundle oldKeys = cryptographer.getKeyRegistry().getDefaultKeys();
+        
+        List<byte[]> wbos = new ArrayList<byte[]>();
+        wbos.add(wrapBytes("bad", "{\"ciphertext\":\"AAAA\",\"IV\":\"AAAA\",\"hmac\":\"00\"}"));
+        wbos.add("not json".getBytes(StandardCharsets.UTF_8));
+        wbos.add(wrapBytes("good", cryptographer.encryptWBO("{\"id\":\"good\"}").getJson()));
+        
+        CollectingSink sink = new CollectingSink(Integer.MAX_VALUE);
+        KeyRotationReencryptor reencryptor = new KeyRotationReencryptor(null);
+        KeyRotationReencryptor.Result result = reencryptor.reencrypt("history", oldKeys, Cryptographer.generateKeys(), 
+                                                                     wbos.iterator(), sink);
+        assertEquals(1, result.getReencrypted());
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, failure(result, "bad"));
+        assertEquals(CryptoStatus.INVALID_JSON, failure(result, null));
+        assertEquals(1, result.getFailures().get(1).getPosition());
+        assertEquals(1, sink.flushed);
+        assertEquals(2, sink.flushedFailures);
+        assertEquals(1, reencryptor.getEncryptCounters().get(CryptoStatus.OK));
+    }
+    
+    @Test
+    public void testKeepsOtherFields() throws IOException, ParseException {
+        SyncCryptographer oldCryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        oldCryptographer.generateCryptoKeysWBOPayload();
+        KeyBundle oldKeys = oldCryptographer.getKeyRegistry().getDefaultKeys();
+        KeyBundle newKeys = Cryptographer.generateKeys();
+        
+        String payload = JSONValue.escape(oldCryptographer.encryptWBO("{\"id\":\"abc\"}").getJson());
+        List<byte[]> wbos = new ArrayList<byte[]>();
+        wbos.add(("{\"sortindex\":100,\"id\":\"abc\",\"payload\":\"" + payload + 
+                  "\",\"ttl\":3600,\"modified\":1298400000.25}").getBytes(StandardCharsets.UTF_8));
+        wbos.add(("{ \"ttl\" : 60,\n \"payload\" : \"" + payload + "\",\n \"id\" : \"abc\",\n \"sortindex\" : -5 }")
+                  .getBytes(StandardCharsets.UTF_8));
+        
+        CollectingSink sink = new CollectingSink(Integer.MAX_VALUE);
+        KeyRotationReencryptor.Result result = new KeyRotationReencryptor(null).reencrypt("history", oldKeys, newKeys, 
+                                                                                           wbos.iterator(), sink);
+        assertEquals(2, result.getReencrypted());
+        
+        SyncCryptographer newCryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        newCryptographer.getKeyRegistry().setKeys(newKeys, new HashMap<String, KeyBundle>());
+        JSONObject first = (JSONObject) new JSONParser().parse(new String(sink.wbos.get(0), StandardCharsets.UTF_8));
+        assertEquals(5, first.size());
+        assertEquals("abc", first.get("id"));
+        assertEquals(100L, first.get("sortindex"));
+        assertEquals(3600L, first.get("ttl"));
+        assertEquals(1298400000.25, first.get("modified"));
+        assertEquals("{\"id\":\"abc\"}", newCryptographer.decryptWBO(sink.wbos.get(0)).getJson());
+        
+        JSONObject second = (JSONObject) new JSONParser().parse(new String(sink.wbos.get(1), StandardCharsets.UTF_8));
+        assertEquals(4, second.size());
+        assertEquals(60L, second.get("ttl"));
+        assertEquals(-5L, second.get("sortindex"));
+        assertEquals("{\"id\":\"abc\"}", newCryptographer.decryptWBO(sink.wbos.get(1)).getJson());
+    }
+    
+    /*
+     * Keeps records in memory, failing once it has been given failAfter
+     */
+    private static class CollectingSink implements RecordSink {
+        
+        private final int failAfter;
+        private final List<String> ids = new ArrayList<String>();
+        private final List<byte[]> wbos = new ArrayList<byte[]>();
+        private final List<RecordFailure> failures = new ArrayList<RecordFailure>();
+        private int flushed;
+        private int flushedFailures;
+        
+        CollectingSink(int failAfter) {
+            this.failAfter = failAfter;
+        }
+        
+        public void reencrypted(String collection, String id, byte[] wbo) throws IOException {
+            if (ids.size() == failAfter) {
+                throw new IOException("Interrupted");
+            }
+            ids.add(id);
+            wbos.add(wbo);
+        }
+        
+        public void failed(String collection, RecordFailure failure) {
+            failures.add(failure);
+        }
+        
+        public void flush() {
+            flushed = ids.size();
+            flushedFailures = failures.size();
+        }
+    }
+}
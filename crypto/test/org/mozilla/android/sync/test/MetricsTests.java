@@ -0,0 +1,132 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mozilla.android.sync.test.SyncFixtures.SYNC_KEY;
+import static org.mozilla.android.sync.test.SyncFixtures.USERNAME;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener.Operation;
+import org.mozilla.android.sync.metrics.CryptoMetricsListener.Stage;
+import org.mozilla.android.sync.metrics.HistogramMetricsListener;
+import org.mozilla.android.sync.metrics.JfrMetricsListener;
+import org.mozilla.android.sync.metrics.LatencyHistogram;
+
+public class MetricsTests {
+    
+    private static final String CLEAR_TEXT =   "{\"id\":\"metrics\",\"title\":\"Some title\"}";
+    
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getP99());
+        
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        
+        // Reported values are never below the true percentile and at most 1/16 above
+        assertWithin(500000, histogram.getP50());
+        assertWithin(990000, histogram.getP99());
+        assertWithin(999000, histogram.getP999());
+        assertEquals(1000000, histogram.getPercentile(1.0));
+        
+        // Small values are exact
+        histogram.reset();
+        histogram.record(3);
+        histogram.record(7);
+        assertEquals(3, histogram.getP50());
+        assertEquals(7, histogram.getP99());
+        
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1.0));
+    }
+    
+    @Test
+    public void testStageTimings() {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        
+        HistogramMetricsListener metrics = new HistogramMetricsListener();
+        cryptographer.setMetricsListener(metrics);
+        
+        String wbo = newWBO(cryptographer);
+        assertEquals(CryptoStatus.OK, cryptographer.decryptWBO(wbo).getStatus());
+        
+        for (Stage stage : new Stage[] { Stage.AES, Stage.BASE64, Stage.HMAC, Stage.SERIALIZE }) {
+            assertEquals(1, metrics.getHistogram(Operation.ENCRYPT, stage).getCount());
+        }
+        assertEquals(0, metrics.getHistogram(Operation.ENCRYPT, Stage.PARSE).getCount());
+        for (Stage stage : new Stage[] { Stage.PARSE, Stage.HMAC, Stage.BASE64, Stage.AES }) {
+            assertEquals(1, metrics.getHistogram(Operation.DECRYPT, stage).getCount());
+        }
+        assertEquals(0, metrics.getHistogram(Operation.DECRYPT, Stage.SERIALIZE).getCount());
+        assertEquals(wbo.length(), metrics.getBytes(Operation.DECRYPT, Stage.PARSE));
+        assertEquals(CLEAR_TEXT.length(), metrics.getBytes(Operation.ENCRYPT, Stage.AES));
+        
+        // Turning metrics off stops reporting
+        cryptographer.setMetricsListener(null);
+        assertEquals(CryptoMetricsListener.NOOP, cryptographer.getMetricsListener());
+        cryptographer.decryptWBO(wbo);
+        assertEquals(1, metrics.getHistogram(Operation.DECRYPT, Stage.AES).getCount());
+    }
+    
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        HistogramMetricsListener histograms = new HistogramMetricsListener();
+        cryptographer.setMetricsListener(new JfrMetricsListener(histograms));
+        
+        Path file = Files.createTempFile("crypto", ".jfr");
+        try {
+            Recording recording = new Recording();
+            recording.enable("org.mozilla.android.sync.CryptoStage");
+            recording.start();
+            cryptographer.decryptWBO(newWBO(cryptographer));
+            recording.stop();
+            recording.dump(file);
+            recording.close();
+            
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            int decryptAes = 0;
+            for (RecordedEvent event : events) {
+                if ("DECRYPT".equals(event.getString("operation")) && "AES".equals(event.getString("stage"))) {
+                    decryptAes++;
+                }
+            }
+            assertEquals(1, decryptAes);
+            assertEquals(1, histograms.getHistogram(Operation.DECRYPT, Stage.AES).getCount());
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    private static String newWBO(SyncCryptographer cryptographer) {
+        JSONObject json = new JSONObject();
+        Utils.asMap(json).put("id", "metrics");
+        Utils.asMap(json).put("payload", cryptographer.encryptWBO(CLEAR_TEXT).getJson());
+        return json.toString();
+    }
+    
+    private static void assertWithin(long expected, long actual) {
+        assertEquals(true, actual >= expected && actual <= expected + expected / 16);
+    }
+}
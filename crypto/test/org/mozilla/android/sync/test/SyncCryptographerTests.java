@@ -6,11 +6,31 @@ package org.mozilla.android.sync.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.junit.Test;
+import org.mozilla.android.sync.CryptoExecutors;
+import org.mozilla.android.sync.Cryptographer;
+import org.mozilla.android.sync.CryptoStatusCounters;
+import org.mozilla.android.sync.domain.CryptoInfo;
 import org.mozilla.android.sync.domain.CryptoStatusBundle;
 import org.mozilla.android.sync.domain.KeyBundle;
 import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
@@ -102,6 +122,49 @@ public class SyncCryptographerTests {
         assertEquals(CryptoStatus.OK, result.getStatus());
     }
     
+    @Test
+    public void testDecryptBatch() {
+        String base64EncryptionKey =    "K8fV6PHG8RgugfHexGesbzTeOs2o12cr" + 
+                                        "N/G3bz0Bx1M=";
+        String base64HmacKey =          "nbceuI6w1RJbBzh+iCJHEs8p4lElsOma" + 
+                                        "yUhx+OztVgM=";
+        String username =               "b6evr62dptbxz7fvebek7btljyu322wp";
+        String friendlyBase32SyncKey =  "basuxv2426eqj7frhvpcwkavdi";
+        int count =                     100;
+        
+        // Encrypt a batch of records
+        SyncCryptographer cryptographer = new SyncCryptographer(username, friendlyBase32SyncKey, base64EncryptionKey, base64HmacKey);
+        List<String> originals = new ArrayList<String>();
+        List<String> wbos = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String originalText = "{\"id\":\"record" + i + "\"}";
+            CryptoStatusBundle result = cryptographer.encryptWBO(originalText);
+            assertEquals(CryptoStatus.OK, result.getStatus());
+            
+            JSONObject in = new JSONObject();
+            Utils.asMap(in).put("payload", result.getJson());
+            Utils.asMap(in).put("id", "record" + i);
+            originals.add(originalText);
+            wbos.add(in.toString());
+        }
+        
+        // Decrypt them all at once on a dedicated pool
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<CryptoStatusBundle> results;
+        try {
+            results = cryptographer.decryptWBOs(wbos, pool);
+        } finally {
+            pool.shutdown();
+        }
+        
+        // Check that every result is OK and in input order
+        assertEquals(count, results.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(CryptoStatus.OK, results.get(i).getStatus());
+            assertEquals(originals.get(i), results.get(i).getJson());
+        }
+    }
+    
     @Test
     public void testConstructKeyBundleKeys() {
         
@@ -206,5 +269,368 @@ public class SyncCryptographerTests {
         equal = Arrays.equals(createdKeys.getHmacKey(), decryptedKeys.getHmacKey());
         assertEquals(true, equal);
     }
+    
+    @Test
+    public void testCollectionKeys() throws Exception {
+        String username =               "b6evr62dptbxz7fvebek7btljyu322wp";
+        String friendlyBase32SyncKey =  "basuxv2426eqj7frhvpcwkavdi";
+        KeyBundle defaultKeys =         Cryptographer.generateKeys();
+        KeyBundle bookmarksKeys =       Cryptographer.generateKeys();
+        
+        // Build a crypto/keys bundle with keys for the bookmarks collection
+        JSONObject collections = new JSONObject();
+        Utils.asMap(collections).put("bookmarks", keyPair(bookmarksKeys));
+        JSONObject bundle = new JSONObject();
+        Utils.asMap(bundle).put("id", "keys");
+        Utils.asMap(bundle).put("collection", "crypto");
+        Utils.asMap(bundle).put("default", keyPair(defaultKeys));
+        Utils.asMap(bundle).put("collections", collections);
+        
+        SyncCryptographer cryptographer = new SyncCryptographer(username, friendlyBase32SyncKey);
+        CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(
+                bundle.toString().getBytes(), cryptographer.getCryptoKeysBundleKeys()));
+        JSONObject payload = new JSONObject();
+        Utils.asMap(payload).put("ciphertext", Base64.encodeBase64String(encrypted.getMessage()));
+        Utils.asMap(payload).put("IV", Base64.encodeBase64String(encrypted.getIv()));
+        Utils.asMap(payload).put("hmac", Utils.byte2hex(encrypted.getHmac()));
+        JSONObject in = new JSONObject();
+        Utils.asMap(in).put("payload", payload.toString());
+        Utils.asMap(in).put("id", "keys");
+        
+        CryptoStatusBundle result = cryptographer.decryptWBO(in.toString());
+        assertEquals(CryptoStatus.OK, result.getStatus());
+        
+        // Collections without their own keys use the default keys
+        assertEquals(true, Arrays.equals(defaultKeys.getEncryptionKey(), cryptographer.getKeys().getEncryptionKey()));
+        assertEquals(true, Arrays.equals(defaultKeys.getHmacKey(), cryptographer.getKeys("history").getHmacKey()));
+        assertEquals(true, Arrays.equals(bookmarksKeys.getEncryptionKey(), cryptographer.getKeys("bookmarks").getEncryptionKey()));
+        assertEquals(true, Arrays.equals(bookmarksKeys.getHmacKey(), cryptographer.getKeys("bookmarks").getHmacKey()));
+        
+        // Round trip a bookmark with the bookmarks keys
+        String originalText = "{\"id\":\"bookmark1\"}";
+        result = cryptographer.encryptWBO(originalText, "bookmarks");
+        assertEquals(CryptoStatus.OK, result.getStatus());
+        in = new JSONObject();
+        Utils.asMap(in).put("payload", result.getJson());
+        Utils.asMap(in).put("id", "bookmark1");
+        result = cryptographer.decryptWBO(in.toString(), "bookmarks");
+        assertEquals(CryptoStatus.OK, result.getStatus());
+        assertEquals(originalText, result.getJson());
+    }
+    
+    @Test
+    public void testInvalidKeyLengths() throws Exception {
+        String username =               "b6evr62dptbxz7fvebek7btljyu322wp";
+        String friendlyBase32SyncKey =  "basuxv2426eqj7frhvpcwkavdi";
+        KeyBundle keys =                Cryptographer.generateKeys();
+        
+        SyncCryptographer cryptographer = new SyncCryptographer(username, friendlyBase32SyncKey);
+        cryptographer.generateCryptoKeysWBOPayload();
+        KeyBundle current = cryptographer.getKeys();
+        
+        // An empty default key, then a short collection key
+        JSONArray emptyKey = new JSONArray();
+        Utils.asAList(emptyKey).add("");
+        Utils.asAList(emptyKey).add(Base64.encodeBase64String(keys.getHmacKey()));
+        JSONArray shortKey = new JSONArray();
+        Utils.asAList(shortKey).add(Base64.encodeBase64String(new byte[16]));
+        Utils.asAList(shortKey).add(Base64.encodeBase64String(keys.getHmacKey()));
+        JSONObject collections = new JSONObject();
+        Utils.asMap(collections).put("bookmarks", shortKey);
+        
+        JSONObject[] bundles = new JSONObject[] { new JSONObject(), new JSONObject() };
+        Utils.asMap(bundles[0]).put("default", emptyKey);
+        Utils.asMap(bundles[1]).put("default", keyPair(keys));
+        Utils.asMap(bundles[1]).put("collections", collections);
+        for (JSONObject bundle : bundles) {
+            Utils.asMap(bundle).put("id", "keys");
+            Utils.asMap(bundle).put("collection", "crypto");
+            
+            CryptoInfo encrypted = Cryptographer.encrypt(new CryptoInfo(
+                    bundle.toString().getBytes(), cryptographer.getCryptoKeysBundleKeys()));
+            JSONObject payload = new JSONObject();
+            Utils.asMap(payload).put("ciphertext", Base64.encodeBase64String(encrypted.getMessage()));
+            Utils.asMap(payload).put("IV", Base64.encodeBase64String(encrypted.getIv()));
+            Utils.asMap(payload).put("hmac", Utils.byte2hex(encrypted.getHmac()));
+            JSONObject in = new JSONObject();
+            Utils.asMap(in).put("payload", payload.toString());
+            Utils.asMap(in).put("id", "keys");
+            
+            // Rejected up front, and the keys in use are kept
+            CryptoStatusBundle result = cryptographer.decryptWBO(in.toString());
+            assertEquals(CryptoStatus.INVALID_KEYS_BUNDLE, result.getStatus());
+            assertEquals(true, Arrays.equals(current.getEncryptionKey(), cryptographer.getKeys().getEncryptionKey()));
+        }
+    }
+    
+    @Test
+    public void testCreateKeysBundleCollections() throws Exception {
+        String username =               "b6evr62dptbxz7fvebek7btljyu322wp";
+        String friendlyBase32SyncKey =  "basuxv2426eqj7frhvpcwkavdi";
+        
+        SyncCryptographer cryptographer = new SyncCryptographer(username, friendlyBase32SyncKey);
+        CryptoStatusBundle result = cryptographer.generateCryptoKeysWBOPayload();
+        JSONObject in = new JSONObject();
+        Utils.asMap(in).put("payload", result.getJson());
+        Utils.asMap(in).put("id", "keys");
+        result = cryptographer.decryptWBO(in.toString());
+        assertEquals(CryptoStatus.OK, result.getStatus());
+        
+        // collections must be a json object, not a string
+        JSONObject bundle = (JSONObject) new JSONParser().parse(result.getJson());
+        assertEquals(JSONObject.class, bundle.get("collections").getClass());
+    }
+    
+    /*
+     * One instance shared by many threads, with the crypto/keys record
+     * being applied again and again while records are decrypted.
+     */
+    @Test
+    public void testEncryptDecryptBytes() {
+        String username =               "b6evr62dptbxz7fvebek7btljyu322wp";
+        String friendlyBase32SyncKey =  "basuxv2426eqj7frhvpcwkavdi";
+        
+        // Non ASCII text must survive regardless of the platform charset
+        String originalText =           "{\"id\":\"utf8\",\"title\":\"caf\u00e9 \ud83d\ude00 \u65e5\u672c\"}";
+        byte[] originalBytes =          originalText.getBytes(StandardCharsets.UTF_8);
+        
+        SyncCryptographer cryptographer = new SyncCryptographer(username, friendlyBase32SyncKey);
+        cryptographer.generateCryptoKeysWBOPayload();
+        
+        CryptoStatusBundle encrypted = cryptographer.encryptWBO(originalBytes);
+        assertEquals(CryptoStatus.OK, encrypted.getStatus());
+        
+        byte[] wbo = wrapPayload("utf8", encrypted.getPayload());
+        
+        CryptoStatusBundle decrypted = cryptographer.decryptWBO(wbo);
+        assertEquals(CryptoStatus.OK, decrypted.getStatus());
+        assertEquals(true, Arrays.equals(originalBytes, decrypted.getPayload()));
+        assertEquals(originalText, decrypted.getJson());
+        
+        // String API decrypts the same WBO to the same text
+        assertEquals(originalText, cryptographer.decryptWBO(new String(wbo, StandardCharsets.UTF_8)).getJson());
+        
+        // Direct buffers have no backing array
+        ByteBuffer direct = ByteBuffer.allocateDirect(wbo.length);
+        direct.put(wbo).flip();
+        decrypted = cryptographer.decryptWBO(direct, null);
+        assertEquals(CryptoStatus.OK, decrypted.getStatus());
+        assertEquals(originalText, decrypted.getJson());
+        assertEquals(0, direct.remaining());
+        
+        // String encryption produces the same UTF-8 bytes
+        encrypted = cryptographer.encryptWBO(originalText);
+        decrypted = cryptographer.decryptWBO(wrapPayload("utf8", encrypted.getPayload()));
+        assertEquals(originalText, decrypted.getJson());
+    }
+    
+    /*
+     * Wraps an encrypted payload in a WBO, as UTF-8 json
+     */
+    private static byte[] wrapPayload(String id, byte[] payload) {
+        JSONObject in = new JSONObject();
+        Utils.asMap(in).put("payload", new String(payload, StandardCharsets.UTF_8));
+        Utils.asMap(in).put("id", id);
+        return in.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    @Test
+    public void testFailureStatuses() {
+        String username =               "b6evr62dptbxz7fvebek7btljyu322wp";
+        String friendlyBase32SyncKey =  "basuxv2426eqj7frhvpcwkavdi";
+        String originalText =           "{\"id\":\"failures\"}";
+        
+        SyncCryptographer cryptographer = new SyncCryptographer(username, friendlyBase32SyncKey);
+        cryptographer.generateCryptoKeysWBOPayload();
+        String payload = cryptographer.encryptWBO(originalText).getJson();
+        String wbo = new String(wrapPayload("failures", payload.getBytes(StandardCharsets.UTF_8)), 
+                                StandardCharsets.UTF_8);
+        assertEquals(CryptoStatus.OK, cryptographer.decryptWBO(wbo).getStatus());
+        
+        // Stale record after a key rotation
+        cryptographer.generateCryptoKeysWBOPayload();
+        CryptoStatusBundle result = cryptographer.decryptWBO(wbo);
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, result.getStatus());
+        assertEquals(wbo, result.getJson());
+        
+        // Garbled hmac
+        JSONObject json = new JSONObject();
+        Utils.asMap(json).put("ciphertext", "AAAA");
+        Utils.asMap(json).put("IV", "AAAA");
+        Utils.asMap(json).put("hmac", "not hex");
+        String garbled = new String(wrapPayload("garbled", json.toString().getBytes(StandardCharsets.UTF_8)), 
+                                    StandardCharsets.UTF_8);
+        assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, cryptographer.decryptWBO(garbled).getStatus());
+        
+        // Correct hmac over a ciphertext that can't be decrypted
+        KeyBundle keys = cryptographer.getKeys();
+        byte[] base64CipherText = Base64.encodeBase64(new byte[] { 1, 2, 3 });
+        CryptoInfo info = Cryptographer.encrypt(new CryptoInfo(new byte[] { 1, 2, 3 }, keys));
+        Utils.asMap(json).put("ciphertext", new String(base64CipherText));
+        Utils.asMap(json).put("IV", new String(Base64.encodeBase64(info.getIv())));
+        Utils.asMap(json).put("hmac", Utils.byte2hex(hmac(base64CipherText, keys.getHmacKey())));
+        String undecryptable = new String(wrapPayload("undecryptable", json.toString().getBytes(StandardCharsets.UTF_8)), 
+                                          StandardCharsets.UTF_8);
+        assertEquals(CryptoStatus.DECRYPTION_FAIL, cryptographer.decryptWBO(undecryptable).getStatus());
+        
+        // Every outcome is counted
+        CryptoStatusCounters counters = cryptographer.getDecryptCounters();
+        assertEquals(1, counters.get(CryptoStatus.OK));
+        assertEquals(2, counters.get(CryptoStatus.HMAC_VERIFY_FAIL));
+        assertEquals(1, counters.get(CryptoStatus.DECRYPTION_FAIL));
+        assertEquals(4, counters.total());
+        assertEquals(Long.valueOf(0), counters.snapshot().get(CryptoStatus.INVALID_JSON));
+        // Two crypto/keys payloads and one record
+        assertEquals(3, cryptographer.getEncryptCounters().get(CryptoStatus.OK));
+        counters.reset();
+        assertEquals(0, counters.total());
+    }
+    
+    private static byte[] hmac(byte[] message, byte[] hmacKey) {
+        try {
+            Mac hmacHasher = Mac.getInstance("HmacSHA256");
+            hmacHasher.init(new SecretKeySpec(hmacKey, "HmacSHA256"));
+            return hmacHasher.doFinal(message);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+    
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        String username =               "b6evr62dptbxz7fvebek7btljyu322wp";
+        String friendlyBase32SyncKey =  "basuxv2426eqj7frhvpcwkavdi";
+        int threads =                   8;
+        int iterations =                500;
+        
+        final SyncCryptographer cryptographer = new SyncCryptographer(username, friendlyBase32SyncKey);
+        JSONObject in = new JSONObject();
+        Utils.asMap(in).put("payload", cryptographer.generateCryptoKeysWBOPayload().getJson());
+        Utils.asMap(in).put("id", "keys");
+        final String keysWBO = in.toString();
+        
+        final String originalText = "{\"id\":\"shared\"}";
+        in = new JSONObject();
+        Utils.asMap(in).put("payload", cryptographer.encryptWBO(originalText).getJson());
+        Utils.asMap(in).put("id", "shared");
+        final String recordWBO = in.toString();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        for (int i = 0; i < iterations; i++) {
+                            CryptoStatusBundle result = cryptographer.decryptWBO(recordWBO);
+                            if (result.getStatus() != CryptoStatus.OK || !originalText.equals(result.getJson())) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            results.add(executor.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    for (int i = 0; i < iterations / 10; i++) {
+                        if (cryptographer.decryptWBO(keysWBO).getStatus() != CryptoStatus.OK) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+            
+            for (Future<Boolean> result : results) {
+                assertEquals(true, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testAsync() throws Exception {
+        String username =               "b6evr62dptbxz7fvebek7btljyu322wp";
+        String friendlyBase32SyncKey =  "basuxv2426eqj7frhvpcwkavdi";
+        int records =                   2000;
+        
+        SyncCryptographer cryptographer = new SyncCryptographer(username, friendlyBase32SyncKey);
+        cryptographer.generateCryptoKeysWBOPayload();
+        assertEquals(true, cryptographer.getAsyncExecutor() == CryptoExecutors.getDefault());
+        
+        // Thousands in flight at once, each encrypted then decrypted
+        List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < records; i++) {
+            final String id = "async" + i;
+            results.add(cryptographer.encryptWBOAsync("{\"id\":\"" + id + "\"}")
+                    .thenCompose(encrypted -> cryptographer.decryptWBOAsync(
+                            wrapPayload(id, encrypted.getPayload()), null))
+                    .thenApply(decrypted -> decrypted.getStatus() + " " + decrypted.getJson()));
+        }
+        for (int i = 0; i < records; i++) {
+            assertEquals("OK {\"id\":\"async" + i + "\"}", results.get(i).get());
+        }
+        assertEquals(records, cryptographer.getDecryptCounters().get(CryptoStatus.OK));
+        
+        // Pluggable executor, null restores the default. Keys are looked
+        // up when the record runs, so a stale record fails after rotation
+        byte[] stale = wrapPayload("stale", cryptographer.encryptWBO("{\"id\":\"stale\"}").getPayload());
+        cryptographer.generateCryptoKeysWBOPayload();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            cryptographer.setAsyncExecutor(executor);
+            assertEquals(CryptoStatus.HMAC_VERIFY_FAIL, cryptographer.decryptWBOAsync(stale, null).get().getStatus());
+        } finally {
+            executor.shutdown();
+        }
+        cryptographer.setAsyncExecutor(null);
+        assertEquals(true, cryptographer.getAsyncExecutor() == CryptoExecutors.getDefault());
+        
+        // Virtual threads (JDK 21+) on request
+        ExecutorService virtual = CryptoExecutors.newVirtualThreadExecutor();
+        if (virtual != null) {
+            try {
+                cryptographer.setAsyncExecutor(virtual);
+                byte[] fresh = wrapPayload("fresh", cryptographer.encryptWBO("{\"id\":\"fresh\"}").getPayload());
+                assertEquals(CryptoStatus.OK, cryptographer.decryptWBOAsync(fresh, null).get().getStatus());
+            } finally {
+                virtual.shutdown();
+                cryptographer.setAsyncExecutor(null);
+            }
+        }
+    }
+    
+    @Test
+    public void testBoundedExecutorQueue() throws Exception {
+        ExecutorService executor = CryptoExecutors.newBoundedExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // One running, one queued, the next runs on the submitting thread
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            executor.execute(() -> { });
+            Thread submitter = Thread.currentThread();
+            Thread[] ran = new Thread[1];
+            executor.execute(() -> ran[0] = Thread.currentThread());
+            assertEquals(true, ran[0] == submitter);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+    
+    private JSONArray keyPair(KeyBundle keys) {
+        JSONArray pair = new JSONArray();
+        Utils.asAList(pair).add(Base64.encodeBase64String(keys.getEncryptionKey()));
+        Utils.asAList(pair).add(Base64.encodeBase64String(keys.getHmacKey()));
+        return pair;
+    }
 
-}
\ No newline at end of file
+}
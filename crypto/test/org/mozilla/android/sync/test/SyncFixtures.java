@@ -0,0 +1,51 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONObject;
+import org.mozilla.android.sync.BatchResult;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+import org.mozilla.android.sync.domain.RecordFailure;
+
+/*
+ * Account and helpers shared by the tests
+ */
+final class SyncFixtures {
+    
+    static final String USERNAME =     "b6evr62dptbxz7fvebek7btljyu322wp";
+    static final String SYNC_KEY =     "basuxv2426eqj7frhvpcwkavdi";
+    
+    private SyncFixtures() {
+    }
+    
+    /*
+     * Output: WBO json {"payload":"...","id":"..."}
+     */
+    static String wrap(String id, String payload) {
+        JSONObject wbo = new JSONObject();
+        Utils.asMap(wbo).put("payload", payload);
+        Utils.asMap(wbo).put("id", id);
+        return wbo.toString();
+    }
+    
+    static byte[] wrapBytes(String id, String payload) {
+        return wrap(id, payload).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /*
+     * Output: status of the first failure of the record with this id,
+     *         null if it did not fail
+     */
+    static CryptoStatus failure(BatchResult result, String id) {
+        for (RecordFailure failure : result.getFailures()) {
+            if (id == null ? failure.getId() == null : id.equals(failure.getId())) {
+                return failure.getStatus();
+            }
+        }
+        return null;
+    }
+}
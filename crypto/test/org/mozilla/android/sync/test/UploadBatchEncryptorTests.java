@@ -0,0 +1,197 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mozilla.android.sync.test.SyncFixtures.SYNC_KEY;
+import static org.mozilla.android.sync.test.SyncFixtures.USERNAME;
+import static org.mozilla.android.sync.test.SyncFixtures.failure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+import org.mozilla.android.sync.SyncCryptographer;
+import org.mozilla.android.sync.UploadBatchEncryptor;
+import org.mozilla.android.sync.UploadBatchEncryptor.ChunkSink;
+import org.mozilla.android.sync.domain.ClearTextWBO;
+import org.mozilla.android.sync.domain.CryptoStatusBundle;
+import org.mozilla.android.sync.domain.CryptoStatusBundle.CryptoStatus;
+
+public class UploadBatchEncryptorTests {
+    
+    /*
+     * Keeps every chunk in memory
+     */
+    private static class MemorySink implements ChunkSink {
+        
+        final List<ByteArrayOutputStream> chunks = new ArrayList<ByteArrayOutputStream>();
+        final List<Integer> records = new ArrayList<Integer>();
+        
+        @Override
+        public OutputStream openChunk(int index) throws IOException {
+            assertEquals(chunks.size(), index);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            chunks.add(out);
+            return out;
+        }
+        
+        @Override
+        public void closeChunk(int index, OutputStream out, int records, long bytes) throws IOException {
+            assertEquals(chunks.get(index).size(), bytes);
+            this.records.add(records);
+        }
+    }
+    
+    @Test
+    public void testChunkByRecords() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        List<ClearTextWBO> records = newRecords(1000);
+        
+        MemorySink sink = new MemorySink();
+        UploadBatchEncryptor.Result result = new UploadBatchEncryptor(cryptographer, 0, 100)
+                .encryptWBOs(records, null, sink);
+        
+        assertEquals(10, result.getChunks());
+        assertEquals(1000, result.getRecords());
+        assertEquals(0, result.getFailures().size());
+        
+        // Every chunk is a json array of WBOs that decrypt, in input order
+        int next = 0;
+        for (int i = 0; i < sink.chunks.size(); i++) {
+            assertEquals(100, (int) sink.records.get(i));
+            JSONArray chunk = (JSONArray) new JSONParser().parse(sink.chunks.get(i).toString("UTF-8"));
+            for (Object wbo : chunk) {
+                CryptoStatusBundle decrypted = cryptographer.decryptWBO(((JSONObject) wbo).toString());
+                assertEquals(CryptoStatus.OK, decrypted.getStatus());
+                assertEquals("record" + next, ((JSONObject) wbo).get("id"));
+                assertEquals(clearText(next), decrypted.getJson());
+                next++;
+            }
+        }
+        assertEquals(1000, next);
+    }
+    
+    @Test
+    public void testChunkByBytes() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        cryptographer.generateCryptoKeysWBOPayload();
+        List<ClearTextWBO> records = newRecords(300);
+        
+        // One record much larger than a chunk, and an id that needs escaping
+        char[] large = new char[4096];
+        Arrays.fill(large, 'x');
+        records.add(100, new ClearTextWBO("large", "{\"id\":\"large\",\"data\":\"" + new String(large) + "\"}"));
+        records.add(new ClearTextWBO("quote\"d é", "{\"id\":\"quoted\"}"));
+        
+        long maxBytes = 2000;
+        MemorySink sink = new MemorySink();
+        UploadBatchEncryptor.Result result = new UploadBatchEncryptor(cryptographer, maxBytes, 0)
+                .encryptWBOs(records.iterator(), null, sink, new ForkJoinPool(4));
+        
+        assertEquals(301, result.getRecords());
+        assertEquals(1, result.getOversized().size());
+        assertEquals("large", result.getOversized().get(0));
+        assertEquals(1, result.getFailures().size());
+        assertEquals(100, result.getFailures().get(0).getPosition());
+        assertEquals(CryptoStatus.RECORD_TOO_LARGE, failure(result, "large"));
+        assertEquals(sink.chunks.size(), result.getChunks());
+        
+        long total = 0;
+        int written = 0;
+        for (int i = 0; i < sink.chunks.size(); i++) {
+            ByteArrayOutputStream chunk = sink.chunks.get(i);
+            assertEquals(true, chunk.size() <= maxBytes);
+            total += chunk.size();
+            JSONArray wbos = (JSONArray) new JSONParser().parse(chunk.toString("UTF-8"));
+            written += wbos.size();
+            
+            // Chunks before the last are filled, one more record would not have fit
+            if (i < sink.chunks.size() - 1) {
+                assertEquals(true, chunk.size() > maxBytes - 300);
+            }
+        }
+        assertEquals(result.getBytes(), total);
+        assertEquals(301, written);
+        
+        JSONArray last = (JSONArray) new JSONParser().parse(
+                sink.chunks.get(sink.chunks.size() - 1).toString("UTF-8"));
+        JSONObject quoted = (JSONObject) last.get(last.size() - 1);
+        assertEquals("quote\"d é", quoted.get("id"));
+        assertEquals("{\"id\":\"quoted\"}", cryptographer.decryptWBO(quoted.toString()).getJson());
+    }
+    
+    @Test
+    public void testChannelSinkAndMissingKeys() throws Exception {
+        SyncCryptographer cryptographer = new SyncCryptographer(USERNAME, SYNC_KEY);
+        
+        // No keys yet, nothing is written
+        MemorySink sink = new MemorySink();
+        UploadBatchEncryptor encryptor = new UploadBatchEncryptor(cryptographer, 0, 0);
+        UploadBatchEncryptor.Result result = encryptor.encryptWBOs(newRecords(3), null, sink);
+        assertEquals(0, result.getChunks());
+        assertEquals(3, result.getFailures().size());
+        assertEquals(CryptoStatus.MISSING_KEYS, failure(result, "record2"));
+        
+        // Channels work through Channels.newOutputStream
+        cryptographer.generateCryptoKeysWBOPayload();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        result = encryptor.encryptWBOs(newRecords(3), null, new ChunkSink() {
+            @Override
+            public OutputStream openChunk(int index) {
+                return Channels.newOutputStream(Channels.newChannel(body));
+            }
+            
+            @Override
+            public void closeChunk(int index, OutputStream out, int records, long bytes) throws IOException {
+                out.close();
+            }
+        });
+        assertEquals(1, result.getChunks());
+        JSONArray wbos = (JSONArray) new JSONParser().parse(new String(body.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(3, wbos.size());
+        
+        // A null id can't be serialized, the other records still are
+        List<ClearTextWBO> records = newRecords(3);
+        records.add(1, new ClearTextWBO(null, clearText(9)));
+        sink = new MemorySink();
+        result = encryptor.encryptWBOs(records, null, sink);
+        assertEquals(3, result.getRecords());
+        assertEquals(1, result.getFailures().size());
+        assertEquals(null, result.getFailures().get(0).getId());
+        assertEquals(1, result.getFailures().get(0).getPosition());
+        assertEquals(CryptoStatus.INVALID_JSON, result.getFailures().get(0).getStatus());
+        wbos = (JSONArray) new JSONParser().parse(sink.chunks.get(0).toString("UTF-8"));
+        assertEquals(3, wbos.size());
+        
+        // Empty input writes no chunk
+        sink = new MemorySink();
+        result = encryptor.encryptWBOs(new ArrayList<ClearTextWBO>(), null, sink);
+        assertEquals(0, result.getChunks());
+        assertEquals(0, sink.chunks.size());
+    }
+    
+    private static List<ClearTextWBO> newRecords(int count) {
+        List<ClearTextWBO> records = new ArrayList<ClearTextWBO>();
+        for (int i = 0; i < count; i++) {
+            records.add(new ClearTextWBO("record" + i, clearText(i)));
+        }
+        return records;
+    }
+    
+    private static String clearText(int i) {
+        return "{\"id\":\"record" + i + "\",\"title\":\"Title " + i + "\"}";
+    }
+}
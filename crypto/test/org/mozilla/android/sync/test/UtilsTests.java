@@ -0,0 +1,105 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.mozilla.android.sync.Utils;
+
+/*
+ * Tests the hex codecs in Utils.java
+ */
+public class UtilsTests {
+    
+    @Test
+    public void testByte2hex() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        
+        // Compare against the JDK's formatting of every byte value
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            expected.append(String.format("%02x", i));
+        }
+        assertEquals(expected.toString(), Utils.byte2hex(bytes));
+        
+        // Round trip
+        assertEquals(true, Arrays.equals(bytes, Utils.hex2Byte(expected.toString())));
+        assertEquals(true, Arrays.equals(bytes, Utils.hex2Byte(expected.toString().toUpperCase())));
+    }
+    
+    @Test
+    public void testHex2ByteOddLength() {
+        assertEquals(true, Arrays.equals(new byte[] {0x01}, Utils.hex2Byte("1")));
+        assertEquals(true, Arrays.equals(new byte[] {0x0a, (byte) 0xbc}, Utils.hex2Byte("abc")));
+    }
+    
+    @Test
+    public void testHex2ByteInvalid() {
+        try {
+            Utils.hex2Byte("0g");
+            fail();
+        } catch (NumberFormatException e) {
+            // Expected
+        }
+        
+        byte[] out = new byte[1];
+        assertEquals(false, Utils.hex2Byte("/0", 0, 2, out, 0));
+        assertEquals(false, Utils.hex2Byte(new byte[] {'0', ':'}, 0, 2, out, 0));
+    }
+    
+    @Test
+    public void testCallerSuppliedBuffers() {
+        byte[] hmac = Utils.hex2Byte("b1e6c18ac30deb70236bc0d65a46f7a4" +
+                                     "dce3b8b0e02cf92182b914e3afa5eebc");
+        String hex = Utils.byte2hex(hmac);
+        
+        char[] chars = new char[hex.length()];
+        Utils.byte2hex(hmac, 0, hmac.length, chars, 0);
+        assertEquals(hex, new String(chars));
+        
+        byte[] ascii = new byte[hex.length()];
+        Utils.byte2hex(hmac, 0, hmac.length, ascii, 0);
+        assertEquals(true, Arrays.equals(hex.getBytes(), ascii));
+        
+        byte[] decoded = new byte[hmac.length];
+        assertEquals(true, Utils.hex2Byte(ascii, 0, ascii.length, decoded, 0));
+        assertEquals(true, Arrays.equals(hmac, decoded));
+        
+        // ByteBuffer, including off-heap buffers
+        ByteBuffer encodedBuffer = ByteBuffer.allocateDirect(hex.length());
+        Utils.byte2hex(ByteBuffer.wrap(hmac), encodedBuffer);
+        encodedBuffer.flip();
+        ByteBuffer decodedBuffer = ByteBuffer.allocate(hmac.length);
+        assertEquals(true, Utils.hex2Byte(encodedBuffer, decodedBuffer));
+        assertEquals(true, Arrays.equals(hmac, decodedBuffer.array()));
+    }
+    
+    @Test
+    public void testHex2ByteConstantTime() {
+        
+        // Must agree with the table based decoder for every character
+        byte[] out = new byte[1];
+        byte[] expected = new byte[1];
+        for (char c = 0; c < 256; c++) {
+            String hex = "0" + c;
+            boolean valid = Utils.hex2Byte(hex, 0, 2, expected, 0);
+            assertEquals(valid, Utils.hex2ByteConstantTime(hex, out));
+            if (valid) {
+                assertEquals(expected[0], out[0]);
+            }
+        }
+        
+        // Wrong output length is rejected
+        assertEquals(false, Utils.hex2ByteConstantTime("0102", new byte[1]));
+        assertEquals(false, Utils.hex2ByteConstantTime("0102", new byte[3]));
+    }
+}
@@ -0,0 +1,100 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.android.sync.Utils;
+import org.mozilla.android.sync.WBOEnvelopeParser;
+import org.mozilla.android.sync.domain.WBOEnvelope;
+
+public class WBOEnvelopeParserTests {
+    
+    private static final String CIPHER_TEXT =   "F4ukf0LM+vhffiKyjaANXeUhfmOPPmQYX1XBoG/IjsheZuKra3kJSST/4SvRZ7qXn";
+    private static final String IV =            "GadPajeXhpk75K2YH+Ly4w==";
+    private static final String HMAC =          "71442d946502e3ca475c70a633d3d37f4b4e9313a6d1041d0c0550cd354e7605";
+    
+    @Test
+    public void testParseWBO() {
+        String jsonInput = createWBO("hkZYpC-BH4Xi");
+        
+        WBOEnvelope envelope = WBOEnvelopeParser.parse(jsonInput);
+        
+        assertEquals("hkZYpC-BH4Xi", envelope.getId());
+        assertEquals(CIPHER_TEXT, envelope.getCiphertext());
+        assertEquals(IV, envelope.getIv());
+        assertEquals(HMAC, envelope.getHmac());
+    }
+    
+    @Test
+    public void testParseWBOBytes() throws UnsupportedEncodingException {
+        // Non-ASCII id, including a character outside the BMP
+        String id = "r\u00e9cord-\ud83d\ude00";
+        byte[] jsonInput = ("  " + createWBO(id) + "\n").getBytes("UTF-8");
+        
+        WBOEnvelope envelope = WBOEnvelopeParser.parse(jsonInput, 2, jsonInput.length - 3);
+        
+        assertEquals(id, envelope.getId());
+        assertEquals(CIPHER_TEXT, envelope.getCiphertext());
+        assertEquals(IV, envelope.getIv());
+        assertEquals(HMAC, envelope.getHmac());
+    }
+    
+    @Test
+    public void testSkipsOtherMembers() {
+        String jsonInput = "{\"sortindex\": 90, \"parents\": [{\"a\": [1, \"]}\"]}, null]," +
+                           " \"payload\": \"{\\\"hmac\\\": \\\"" + HMAC + "\\\", \\\"extra\\\": " +
+                           "{\\\"x\\\": true}, \\\"IV\\\": \\\"" + IV + "\\\", \\\"ciphertext\\\":" +
+                           " \\\"a\\\\/b\\\"}\", \"id\": \"\\u0041BC\", \"modified\": 1.32e9}";
+        
+        WBOEnvelope envelope = WBOEnvelopeParser.parse(jsonInput);
+        
+        assertEquals("ABC", envelope.getId());
+        assertEquals("a/b", envelope.getCiphertext());
+        assertEquals(IV, envelope.getIv());
+        assertEquals(HMAC, envelope.getHmac());
+    }
+    
+    @Test
+    public void testMissingMembers() {
+        WBOEnvelope envelope = WBOEnvelopeParser.parse("{\"id\": \"keys\", \"payload\": \"{}\"}");
+        
+        assertEquals("keys", envelope.getId());
+        assertEquals(null, envelope.getCiphertext());
+        assertEquals(null, envelope.getIv());
+        assertEquals(null, envelope.getHmac());
+    }
+    
+    @Test
+    public void testMalformed() {
+        assertEquals(null, WBOEnvelopeParser.parse(""));
+        assertEquals(null, WBOEnvelopeParser.parse("{\"id\": \"a\""));
+        assertEquals(null, WBOEnvelopeParser.parse("{\"id\": \"a\"} x"));
+        assertEquals(null, WBOEnvelopeParser.parse("{\"id\": 5}"));
+        assertEquals(null, WBOEnvelopeParser.parse("{\"id\": \"a\", \"payload\": {}}"));
+        assertEquals(null, WBOEnvelopeParser.parse("{\"id\": \"a\", \"payload\": \"{\\\"IV\\\": 1}\"}"));
+        assertEquals(null, WBOEnvelopeParser.parse("{\"id\": \"a\", \"payload\": \"{} x\"}"));
+        assertEquals(null, WBOEnvelopeParser.parse("{\"id\": \"\\q\"}"));
+    }
+    
+    /*
+     * Builds a WBO the same way the server and SyncCryptographer do
+     */
+    private String createWBO(String id) {
+        JSONObject payload = new JSONObject();
+        Utils.asMap(payload).put("ciphertext", CIPHER_TEXT);
+        Utils.asMap(payload).put("IV", IV);
+        Utils.asMap(payload).put("hmac", HMAC);
+        
+        JSONObject json = new JSONObject();
+        Utils.asMap(json).put("id", id);
+        Utils.asMap(json).put("payload", payload.toString());
+        Utils.asMap(json).put("modified", 1320183464.21);
+        return json.toString();
+    }
+}